@@ -2,6 +2,7 @@ package com.xanadudevelopers.app.bluetooth;
 
 import android.app.DialogFragment;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
@@ -14,19 +15,28 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
 
 public class BluetoothDialogFragment extends DialogFragment {
     int mNum;
 
+    // SharedPreferences file of the DiscoveredDeviceCache
+    private static final String DISCOVERED_DEVICES_PREFERENCES = "discovered_devices";
+
     private BluetoothAdapter mBluetoothAdapter;
+    private DiscoveredDeviceCache mDeviceCache;
+    private DeviceRowAdapter mNewDevicesAdapter;
+    private DiscoveryIndex mDiscoveryIndex;
+    // addresses of the paired devices, which are listed separately
+    private final Set<String> mBondedAddresses = new HashSet<>();
 
     /**
      * Create a new instance of MyDialogFragment, providing "num"
@@ -89,20 +99,43 @@ public class BluetoothDialogFragment extends DialogFragment {
         });
 
         // Set up Bluetooth Device ListView
-        final ArrayAdapter<BluetoothDevice> mArrayAdapter =
-                new BluetoothDeviceArrayAdapter(getActivity(), R.layout.list_item_bluetooth_device);
+        DeviceRowAdapter pairedAdapter = new DeviceRowAdapter();
         ListView deviceList = (ListView) v.findViewById(R.id.device_list);
-        deviceList.setAdapter(mArrayAdapter);
+        deviceList.setAdapter(pairedAdapter);
         deviceList.setOnItemClickListener(mClickListener);
 
         // Get Bluetooth paired devices
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
-        if (pairedDevices.size() > 0) {
-            // Loop through paired devices
-            for (BluetoothDevice device : pairedDevices) {
-                // Add the name and address to an array adapter to show in a ListView
-                mArrayAdapter.add(device);
+        DiscoveryIndex.Row[] pairedRows = new DiscoveryIndex.Row[pairedDevices.size()];
+        int paired = 0;
+        // Loop through paired devices, asking each for its name only once
+        for (BluetoothDevice device : pairedDevices) {
+            pairedRows[paired++] = new DiscoveryIndex.Row(new DiscoveredDeviceCache.Entry(
+                    device.getAddress(), device.getName(), 0,
+                    DiscoveredDeviceCache.RSSI_UNKNOWN, 0), 0);
+            mBondedAddresses.add(device.getAddress());
+        }
+        pairedAdapter.setRows(pairedRows);
+
+        // List the devices found recently right away; discovery refreshes
+        // them, in batches of at most one per display frame
+        mNewDevicesAdapter = new DeviceRowAdapter();
+        ListView newDeviceList = (ListView) v.findViewById(R.id.new_device_list);
+        newDeviceList.setAdapter(mNewDevicesAdapter);
+        newDeviceList.setOnItemClickListener(mClickListener);
+        mDiscoveryIndex = new DiscoveryIndex(DiscoveryIndex.ORDER_RSSI, new DisplayFrameExecutor(),
+                new DiscoveryIndex.Listener() {
+                    @Override
+                    public void onRowsChanged(DiscoveryIndex.Row[] rows) {
+                        mNewDevicesAdapter.setRows(rows);
+                    }
+                });
+        mDeviceCache = new DiscoveredDeviceCache(getActivity().getSharedPreferences(
+                DISCOVERED_DEVICES_PREFERENCES, Context.MODE_PRIVATE));
+        for (DiscoveredDeviceCache.Entry entry : mDeviceCache.getAll()) {
+            if (!mBondedAddresses.contains(entry.address)) {
+                mDiscoveryIndex.upsert(entry);
             }
         }
 
@@ -115,6 +148,8 @@ public class BluetoothDialogFragment extends DialogFragment {
 
     private boolean isDiscovering = false;
     private BroadcastReceiver bluetoothDiscoveryReceiver;
+    // devices found since discovery started
+    private int mFoundCount;
 
     // try to find any available bluetooth devices
     private void startDiscovery() {
@@ -130,12 +165,7 @@ public class BluetoothDialogFragment extends DialogFragment {
             // Register the BroadcastReceiver
             ((MainActivity) getActivity()).makeShortToast("Finding Bluetooth devices in discovery mode.");
 
-            // Set up Bluetooth Device ListView
-            final ArrayAdapter<BluetoothDevice> mNewDevicesArrayAdapter =
-                    new BluetoothDeviceArrayAdapter(getActivity(), R.layout.list_item_bluetooth_device);
-            ListView deviceList = (ListView) getView().findViewById(R.id.new_device_list);
-            deviceList.setAdapter(mNewDevicesArrayAdapter);
-            deviceList.setOnItemClickListener(mClickListener);
+            mFoundCount = 0;
 
             // Create a BroadcastReceiver for ACTION_FOUND
             IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
@@ -146,14 +176,11 @@ public class BluetoothDialogFragment extends DialogFragment {
                     if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                         // Get the BluetoothDevice object from the Intent
                         BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                        // Add the name and address to an array adapter to show in a ListView
-                        // If it's already paired, skip it, because it's been listed already
-                        if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                            mNewDevicesArrayAdapter.add(device);
-                        }
+                        deviceFound(device, intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+                                DiscoveredDeviceCache.RSSI_UNKNOWN));
                     } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                         stopDiscovery();
-                        if (mNewDevicesArrayAdapter.getCount() == 0) {
+                        if (mFoundCount == 0) {
                             ((MainActivity) getActivity()).makeShortToast("No New Devices Found");
                         }
                     }
@@ -165,6 +192,22 @@ public class BluetoothDialogFragment extends DialogFragment {
         }
     }
 
+    // remembers a device discovery found and shows it, in place of what was
+    // listed for it before. Discovery reports a device many times over.
+    private void deviceFound(BluetoothDevice device, short rssi) {
+        mFoundCount++;
+        BluetoothClass bluetoothClass = device.getBluetoothClass();
+        DiscoveredDeviceCache.Entry entry = new DiscoveredDeviceCache.Entry(device.getAddress(),
+                device.getName(), bluetoothClass != null ? bluetoothClass.getDeviceClass() : 0,
+                rssi, System.currentTimeMillis());
+        mDeviceCache.put(entry);
+
+        // If it's already paired, skip it, because it's been listed already
+        if (!mBondedAddresses.contains(entry.address)) {
+            mDiscoveryIndex.upsert(entry);
+        }
+    }
+
     // stops discovery if it is currently started
     private void stopDiscovery() {
         Log.v("discovery", "Stop Discovery");
@@ -201,41 +244,54 @@ public class BluetoothDialogFragment extends DialogFragment {
     //
     // PRIVATE CLASSES/METHODS
 
-    // the 'styling' for the list view
-    private class BluetoothDeviceArrayAdapter extends ArrayAdapter<BluetoothDevice> {
-        public BluetoothDeviceArrayAdapter(Context context, int resource) {
-            super(context, resource);
+    // the 'styling' for the list views; rows come with their text made
+    private class DeviceRowAdapter extends BaseAdapter {
+        private DiscoveryIndex.Row[] mmRows = new DiscoveryIndex.Row[0];
+
+        void setRows(DiscoveryIndex.Row[] rows) {
+            mmRows = rows;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mmRows.length;
+        }
+
+        @Override
+        public DiscoveryIndex.Row getItem(int position) {
+            return mmRows[position];
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             // Check if an existing view is being reused, otherwise inflate the view
             if (convertView == null) {
-                convertView = LayoutInflater.from(getContext())
+                convertView = LayoutInflater.from(getActivity())
                         .inflate(R.layout.list_item_bluetooth_device, parent, false);
             }
 
             // Lookup view for data population
             TextView textView = (TextView) convertView.findViewById(R.id.text1);
-
-            // Get the data item for this position
-            BluetoothDevice device = getItem(position);
-            // Populate the data into the template view using the data object
-            textView.setText(device.getName() + "\n" + device.getAddress());
-            // Return the completed view to render on screen
+            textView.setText(getItem(position).text);
             return convertView;
         }
     }
 
-
     private AdapterView.OnItemClickListener mClickListener = new AdapterView.OnItemClickListener() {
         @Override
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            BluetoothDevice device = (BluetoothDevice) parent.getAdapter().getItem(position);
-            Log.v("dialog", "Clicked on " + device.getAddress());
+            DiscoveryIndex.Row row = (DiscoveryIndex.Row) parent.getAdapter().getItem(position);
+            Log.v("dialog", "Clicked on " + row.entry.address);
 
             // try to connect to the device
-            ((MainActivity) getActivity()).connect(device);
+            ((MainActivity) getActivity()).connect(
+                    mBluetoothAdapter.getRemoteDevice(row.entry.address));
             stopDiscovery();
 
             dismiss();
@@ -18,647 +18,376 @@ package com.xanadudevelopers.app.bluetooth;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.util.UUID;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices. It has tasks that listen for
+ * incoming connections, a task per device being connected to, and a
+ * {@link Connection} per connected device that performs its data
+ * transmissions. Any number of devices, up to a configurable limit, can be
+ * connected at the same time; they are keyed by their remote address.
+ *
+ * The work itself is done by a {@link ConnectionManager} over a
+ * {@link BluetoothTransport}; this class passes what happens on to the
+ * listeners of its {@link EventBus}, each on the executor it chose.
  */
 public class BluetoothService {
     // Debugging
     private static final String TAG = "BluetoothChatService";
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_SECURE = "BluetoothChatSecure";
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
-
-    // Unique UUID for this application
-    private static final UUID MY_UUID_SECURE =
-            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID MY_UUID_INSECURE =
-            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+    // A piconet has at most seven active peers
+    public static final int DEFAULT_MAX_CONNECTIONS = ConnectionManager.DEFAULT_MAX_CONNECTIONS;
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
-    private AcceptThread mSecureAcceptThread;
-    private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    private final ConnectionManager mManager;
+    private final Transport mTransport;
+    private final EventBus mEventBus = new EventBus();
 
     // Constants that indicate the current connection state
-    public static final int STATE_NONE = 0;       // we're doing nothing
-    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_NONE = ConnectionManager.STATE_NONE;
+    public static final int STATE_LISTEN = ConnectionManager.STATE_LISTEN;
+    public static final int STATE_CONNECTING = ConnectionManager.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = ConnectionManager.STATE_CONNECTED;
+
+    // SharedPreferences file of the ConnectStrategyCache
+    private static final String CONNECT_STRATEGY_PREFERENCES = "connect_strategies";
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
      *
      * @param context The UI Activity Context
-     * @param handler A Handler to send messages back to the UI Activity
      */
-    public BluetoothService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mHandler = handler;
+    public BluetoothService(Context context) {
+        this(new BluetoothTransport(BluetoothAdapter.getDefaultAdapter(),
+                new ConnectStrategyCache(context.getSharedPreferences(
+                        CONNECT_STRATEGY_PREFERENCES, Context.MODE_PRIVATE))));
     }
 
     /**
-     * Set the current state of the chat connection
+     * Constructor. Prepares a new BluetoothChat session over any transport.
      *
-     * @param state An integer defining the current connection state
+     * @param transport Opens the sockets
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
-
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    public BluetoothService(Transport transport) {
+        mTransport = transport;
+        mManager = new ConnectionManager(transport, mManagerListener);
     }
 
     /**
-     * Return the current connection state.
+     * Add a listener for state changes, connections and frames.
+     *
+     * @param listener The listener
+     * @param executor Runs the listener, e.g. a {@link DisplayFrameExecutor}
+     *                 for the UI or a single background thread for a logger
      */
-    public synchronized int getState() {
-        return mState;
+    public void addListener(EventBus.Listener listener, Executor executor) {
+        mEventBus.addListener(listener, executor);
+    }
+
+    public void removeListener(EventBus.Listener listener) {
+        mEventBus.removeListener(listener);
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume()
+     * Return the current connection state. This is STATE_CONNECTED as long
+     * as at least one device is connected.
      */
-    public synchronized void start() {
-        Log.d(TAG, "start");
-
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    public int getState() {
+        return mManager.getState();
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Return the connection state of a single device.
+     *
+     * @param address The remote device address
+     */
+    public int getState(String address) {
+        return mManager.getState(address);
+    }
 
-        setState(STATE_LISTEN);
+    /**
+     * Set how many devices may be connected at once. Incoming connections
+     * beyond the limit are refused; existing ones are kept.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mManager.setMaxConnections(maxConnections);
+    }
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(true);
-            mSecureAcceptThread.start();
-        }
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
-        }
+    public int getMaxConnections() {
+        return mManager.getMaxConnections();
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Return the connection to a device, or null if it is not connected.
      *
-     * @param device The BluetoothDevice to connect
-     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     * @param address The remote device address
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
+    public Connection getConnection(String address) {
+        return mManager.getConnection(address);
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
+    /**
+     * Return a snapshot of all current connections.
+     */
+    public List<Connection> getConnections() {
+        return mManager.getConnections();
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    public int getConnectionCount() {
+        return mManager.getConnectionCount();
+    }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+    /**
+     * Offer to compress messages on connections made from now on; it is
+     * used with devices that offer it too. See
+     * {@link ConnectionManager#setCompressionEnabled(boolean)}.
+     */
+    public void setCompressionEnabled(boolean compression) {
+        mManager.setCompressionEnabled(compression);
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * Choose what writes do when a device is not keeping up, see
+     * {@link ConnectionManager#setSendPolicy(int, long)}. Blocking writes
+     * must not be made on the UI thread.
      */
-    public synchronized void connected(NativeBluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
-
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    public void setSendPolicy(int policy, long blockTimeoutMillis) {
+        mManager.setSendPolicy(policy, blockTimeoutMillis);
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Set how often connections ping their peer to notice it is gone, see
+     * {@link ConnectionManager#setHeartbeatInterval(long)}.
+     */
+    public void setHeartbeatInterval(long intervalMillis) {
+        mManager.setHeartbeatInterval(intervalMillis);
+    }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+    /**
+     * Race secure, insecure and channel sockets against each other when
+     * connecting, see {@link BluetoothTransport#setHedgeDelay(long)}. Has
+     * no effect on other transports.
+     *
+     * @param hedgeDelayMillis How long each attempt gets before the next
+     *                         one starts; 0 turns hedging off
+     */
+    public void setHedgeDelay(long hedgeDelayMillis) {
+        if (mTransport instanceof BluetoothTransport) {
+            ((BluetoothTransport) mTransport).setHedgeDelay(hedgeDelayMillis);
         }
+    }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
-
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    /**
+     * Add a listener for state transitions. It is called on the thread
+     * making the change, before the event listeners hear of it.
+     */
+    public void addStateListener(ConnectionStateMachine.Listener listener) {
+        mManager.addStateListener(listener);
+    }
 
-        setState(STATE_CONNECTED);
+    public void removeStateListener(ConnectionStateMachine.Listener listener) {
+        mManager.removeStateListener(listener);
     }
 
     /**
-     * Stop all threads
+     * Return the traffic counters and latency histograms; call
+     * {@link Metrics#snapshot()} on the result to read them.
      */
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
+    public Metrics getMetrics() {
+        return mManager.getMetrics();
+    }
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    /**
+     * Start the chat service. Specifically start listening for incoming
+     * connections. Called by the Activity onResume(). Existing connections
+     * are left alone.
+     */
+    public void start() {
+        Log.d(TAG, "start");
+        mManager.start();
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Initiate a connection to a remote device. Connections to other
+     * devices are not affected.
+     *
+     * @param device The BluetoothDevice to connect
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public void connect(BluetoothDevice device, boolean secure) {
+        Log.d(TAG, "connect to: " + device);
+        mManager.connect(device.getAddress(), secure);
+    }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
+    /**
+     * Drop the connection to a single device, or stop connecting to it.
+     *
+     * @param address The remote device address
+     */
+    public void disconnect(String address) {
+        Log.d(TAG, "disconnect " + address);
+        mManager.disconnect(address);
+    }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
-        }
-        setState(STATE_NONE);
+    /**
+     * Stop all tasks and drop every connection
+     */
+    public void stop() {
+        Log.d(TAG, "stop");
+        mManager.stop();
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue bytes for every connected device without waiting for them to
+     * be sent
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see #write(byte[], WriteQueue.Callback)
      */
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
+        write(out, null);
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Queue bytes for every connected device. This never blocks on a
+     * socket; each connection's writer task sends the bytes in the
+     * background, batched together with other pending messages.
+     *
+     * @param out      The bytes to write; must not change until acknowledged
+     * @param callback Told once each device acknowledged the bytes or the
+     *                 session with it ended, or null
+     * @return false if no device accepted the write
+     * @throws IllegalArgumentException if out is larger than
+     *                                  {@link Session#MAX_MESSAGE_SIZE}
+     * @see Connection#write(byte[], WriteQueue.Callback)
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        // Start the service over to restart listening mode
-        BluetoothService.this.start();
+    public boolean write(byte[] out, WriteQueue.Callback callback) {
+        return mManager.write(out, callback);
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Queue bytes for a single device without waiting for them to be sent.
+     *
+     * @param address  The remote device address
+     * @param out      The bytes to write; must not change until acknowledged
+     * @param callback Told once the device acknowledged the bytes or the
+     *                 session with it ended, or null
+     * @return false if there is no session with the device or too many
+     * writes are waiting to be acknowledged
+     * @throws IllegalArgumentException if out is larger than
+     *                                  {@link Session#MAX_MESSAGE_SIZE}
      */
-    private void connectionLost() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        // Start the service over to restart listening mode
-        BluetoothService.this.start();
+    public boolean write(String address, byte[] out, WriteQueue.Callback callback) {
+        return mManager.write(address, out, callback);
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * Queue bytes for a single device at a priority, see
+     * {@link ConnectionManager#write(String, byte[], int, WriteQueue.Callback)}.
      */
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
-        private String mSocketType;
-
-        public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
-
-            // Create a new listening server socket
-            try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
-            }
-            mmServerSocket = tmp;
-        }
-
-        public void run() {
-            Log.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
-
-            NativeBluetoothSocket socket = null;
-
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
-                try {
-                    // This is a blocking call and will only return on a
-                    // successful connection or an exception
-                    socket = new NativeBluetoothSocket(mmServerSocket.accept());
-                } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
-                    break;
-                }
-
-                // If a connection was accepted
-                if (socket != null) {
-                    synchronized (BluetoothService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getUnderlyingSocket().getRemoteDevice(),
-                                        mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
-                    }
-                }
-            }
-            Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
-
-        }
-
-        public void cancel() {
-            Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type" + mSocketType + "close() of server failed", e);
-            }
-        }
+    public boolean write(String address, byte[] out, int priority,
+                         WriteQueue.Callback callback) {
+        return mManager.write(address, out, priority, callback);
     }
 
-
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * Start sending a file to a single device, see
+     * {@link ConnectionManager#sendFile(String, File, long, FileTransfer.Listener)}.
+     *
+     * @return the transfer, or null if there is no session with the device
      */
-    private class ConnectThread extends Thread {
-        private NativeBluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
-
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
-            }
-            mmSocket = new NativeBluetoothSocket(tmp);
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                Log.d("BT", "Trying the fallback.");
-                try {
-                    mmSocket = new FallbackBluetoothSocket(mmSocket.getUnderlyingSocket());
-                    Thread.sleep(500);
-                    mmSocket.connect();
-                } catch (FallbackException e1) {
-                    Log.w("BT", "Could not initialize FallbackBluetoothSocket classes.", e);
-                    connectionFailed();
-                    return;
-                } catch (InterruptedException e1) {
-                    Log.w("BT", e1.getMessage(), e1);
-                    connectionFailed();
-                    return;
-                } catch (IOException e1) {
-                    Log.w("BT", "Fallback failed. Cancelling.", e1);
-                    try {
-                        mmSocket.close();
-                    } catch (IOException e2) {
-                        Log.e(TAG, "unable to close() " + mSocketType +
-                                " socket during connection failure", e2);
-                    }
-                    connectionFailed();
-                    return;
-                }
-            }
-
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothService.this) {
-                mConnectThread = null;
-            }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
-            }
-        }
+    public FileTransfer sendFile(String address, File file, long offset,
+                                 FileTransfer.Listener listener) throws IOException {
+        return mManager.sendFile(address, file, offset, listener);
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Set who decides where offered files go; without one they are refused.
      */
-    private class ConnectedThread extends Thread {
-        private final NativeBluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(NativeBluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
-
-            // Keep listening to the InputStream while connected
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothService.this.start();
-                    break;
-                }
-            }
-        }
-
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
-        }
+    public void setFileReceiver(FileTransfer.Receiver receiver) {
+        mManager.setFileReceiver(receiver);
     }
 
-    // ===========================================================================
-    // ===========================================================================
-    // ===========================================================================
-    // ===========================================================================
-    // ===========================================================================
-    // http://stackoverflow.com/questions/18657427/ioexception-read-failed-socket-might-closed-bluetooth-on-android-4-3/25647197#25647197
-
-
-    public static interface BluetoothSocketWrapper {
-
-        InputStream getInputStream() throws IOException;
-
-        OutputStream getOutputStream() throws IOException;
-
-        String getRemoteDeviceName();
-
-        void connect() throws IOException;
-
-        String getRemoteDeviceAddress();
-
-        void close() throws IOException;
-
-        BluetoothSocket getUnderlyingSocket();
-
+    /**
+     * Open a logical channel to a device, see
+     * {@link ConnectionManager#openChannel(String, String, Channel.Listener, Executor)}.
+     *
+     * @return the channel, or null if the device is not connected or does
+     * not support channels
+     */
+    public Channel openChannel(String address, String name, Channel.Listener listener,
+                               Executor executor) {
+        return mManager.openChannel(address, name, listener, executor);
     }
 
+    /**
+     * Set who decides about the channels devices open; without one they
+     * are refused.
+     */
+    public void setChannelAcceptor(Channel.Acceptor acceptor, Executor executor) {
+        mManager.setChannelAcceptor(acceptor, executor);
+    }
 
-    public static class NativeBluetoothSocket implements BluetoothSocketWrapper {
-
-        private BluetoothSocket socket;
-
-        public NativeBluetoothSocket(BluetoothSocket tmp) {
-            this.socket = tmp;
-        }
-
-        @Override
-        public InputStream getInputStream() throws IOException {
-            return socket.getInputStream();
-        }
-
+    /**
+     * Passes everything the connection engine does on to the event bus.
+     */
+    private final ConnectionManager.Listener mManagerListener = new ConnectionManager.Listener() {
         @Override
-        public OutputStream getOutputStream() throws IOException {
-            return socket.getOutputStream();
+        public void onStateChanged(int oldState, int newState) {
+            Log.d(TAG, "setState() " + oldState + " -> " + newState);
+            mEventBus.postStateChanged(oldState, newState);
         }
 
         @Override
-        public String getRemoteDeviceName() {
-            return socket.getRemoteDevice().getName();
+        public void onConnected(Connection connection) {
+            Log.d(TAG, "connected, Socket Type:" + connection.getSocketType());
+            mEventBus.postDeviceConnected(connection.getAddress(), connection.getName());
         }
 
         @Override
-        public void connect() throws IOException {
-            socket.connect();
+        public void onConnectFailed(String address, IOException e) {
+            Log.w(TAG, "connect to " + address + " failed", e);
+            mEventBus.postConnectFailed(address);
         }
 
         @Override
-        public String getRemoteDeviceAddress() {
-            return socket.getRemoteDevice().getAddress();
+        public void onListenFailed(boolean secure, IOException e) {
+            Log.e(TAG, "Socket Type: " + (secure ? "Secure" : "Insecure")
+                    + " listen/accept failed", e);
         }
 
         @Override
-        public void close() throws IOException {
-            socket.close();
+        public void onFrameReceived(Connection connection, Frame frame) {
+            mEventBus.postFrame(frame, false);
         }
 
         @Override
-        public BluetoothSocket getUnderlyingSocket() {
-            return socket;
-        }
-
-    }
-
-
-    public class FallbackBluetoothSocket extends NativeBluetoothSocket {
-
-        private BluetoothSocket fallbackSocket;
-
-        public FallbackBluetoothSocket(BluetoothSocket tmp) throws FallbackException {
-            super(tmp);
-            try
-            {
-                Class<?> clazz = tmp.getRemoteDevice().getClass();
-                Class<?>[] paramTypes = new Class<?>[] {Integer.TYPE};
-                Method m = clazz.getMethod("createRfcommSocket", paramTypes);
-                Object[] params = new Object[] {Integer.valueOf(1)};
-                fallbackSocket = (BluetoothSocket) m.invoke(tmp.getRemoteDevice(), params);
+        public void onFrameSent(Connection connection, int type, byte[] data) {
+            // Share the sent message with the listeners
+            Frame frame = Frame.obtain(type, data, data.length, null);
+            if (type == Frame.TYPE_CHANNEL) {
+                ChannelManager.readMessage(frame, true);
             }
-            catch (Exception e)
-            {
-                throw new FallbackException(e);
-            }
-        }
-
-        @Override
-        public InputStream getInputStream() throws IOException {
-            return fallbackSocket.getInputStream();
-        }
-
-        @Override
-        public OutputStream getOutputStream() throws IOException {
-            return fallbackSocket.getOutputStream();
+            frame.setConnection(connection);
+            mEventBus.postFrame(frame, true);
         }
 
-
         @Override
-        public void connect() throws IOException {
-            fallbackSocket.connect();
+        public void onWriteFailed(Connection connection, byte[] data, IOException e) {
+            Log.e(TAG, "Exception during write to " + connection, e);
         }
 
-
         @Override
-        public void close() throws IOException {
-            fallbackSocket.close();
-        }
-
-    }
-
-    public static class FallbackException extends Exception {
-
-        /**
-         *
-         */
-        private static final long serialVersionUID = 1L;
-
-        public FallbackException(Exception e) {
-            super(e);
+        public void onConnectionLost(Connection connection, IOException e) {
+            Log.e(TAG, "disconnected " + connection, e);
+            mEventBus.postConnectionLost(connection.getAddress());
         }
-
-    }
+    };
 }
@@ -0,0 +1,34 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A stream socket to a remote device, as handed out by a {@link Transport}.
+ * On a phone this wraps an RFCOMM {@link android.bluetooth.BluetoothSocket};
+ * {@link MemoryTransport} and {@link TcpTransport} provide stand-ins that run
+ * on a plain JVM.
+ */
+public interface BluetoothSocketWrapper extends Closeable {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    String getRemoteDeviceName();
+
+    void connect() throws IOException;
+
+    String getRemoteDeviceAddress();
+
+    /**
+     * Return whether the socket is authenticated and encrypted. A hedged
+     * connect may end up with another kind of socket than was asked for.
+     */
+    boolean isSecure();
+
+    void close() throws IOException;
+
+}
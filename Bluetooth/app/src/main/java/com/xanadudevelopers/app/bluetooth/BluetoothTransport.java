@@ -0,0 +1,578 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The {@link Transport} used on a phone: RFCOMM sockets from the local
+ * {@link BluetoothAdapter}. Outgoing connections that fail on the service
+ * record are retried on channel 1 through the hidden createRfcommSocket().
+ * With a {@link ConnectStrategyCache}, devices that needed the fallback
+ * before get it on the first attempt.
+ */
+public class BluetoothTransport implements Transport {
+
+    /**
+     * Told how every successful outgoing connection was made.
+     */
+    public interface StrategyListener {
+        /**
+         * @param address  The remote device address
+         * @param secure   Whether a secure connection was asked for
+         * @param strategy One of the ConnectStrategyCache.STRATEGY_ constants
+         * @param millis   How long the whole connect took
+         */
+        void onConnected(String address, boolean secure, int strategy, long millis);
+    }
+
+    // Debugging
+    private static final String TAG = "BluetoothTransport";
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    // Unique UUID for this application
+    private static final UUID MY_UUID_SECURE =
+            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID MY_UUID_INSECURE =
+            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    // The channel the fallback connects to when no other one is known
+    private static final int DEFAULT_CHANNEL = 1;
+
+    // The pause between a failed service record attempt and the fallback.
+    // It starts at the old fixed value and then adapts per device: shorter
+    // after the fallback worked, longer after it failed.
+    private static final long INITIAL_FALLBACK_DELAY_MS = 500;
+    private static final long MIN_FALLBACK_DELAY_MS = 50;
+    private static final long MAX_FALLBACK_DELAY_MS = 2000;
+    private static final int FALLBACK_ATTEMPTS = 2;
+
+    // Member fields
+    private final BluetoothAdapter mAdapter;
+    private final ConnectStrategyCache mStrategies;
+    private volatile long mHedgeDelayMillis;
+    private volatile StrategyListener mStrategyListener;
+
+    public BluetoothTransport(BluetoothAdapter adapter) {
+        this(adapter, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param adapter    The local adapter
+     * @param strategies Remembers how each device was last connected to, or
+     *                   null to always start with the service record
+     */
+    public BluetoothTransport(BluetoothAdapter adapter, ConnectStrategyCache strategies) {
+        mAdapter = adapter;
+        mStrategies = strategies;
+    }
+
+    /**
+     * Turn hedged connects on or off. When on, connect() starts with one
+     * strategy and launches the next whenever the running ones have not
+     * connected within the hedge delay or have all failed. The first socket
+     * to connect wins and the others are closed. This trades extra radio
+     * work for a shorter tail on flaky peers.
+     *
+     * @param hedgeDelayMillis How long to give each strategy before
+     *                         starting the next; 0 turns hedging off
+     */
+    public void setHedgeDelay(long hedgeDelayMillis) {
+        mHedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    public long getHedgeDelay() {
+        return mHedgeDelayMillis;
+    }
+
+    public void setStrategyListener(StrategyListener listener) {
+        mStrategyListener = listener;
+    }
+
+    @Override
+    public ServerSocketWrapper listen(boolean secure) throws IOException {
+        // Create a new listening server socket
+        BluetoothServerSocket tmp;
+        if (secure) {
+            tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
+                    MY_UUID_SECURE);
+        } else {
+            tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                    NAME_INSECURE, MY_UUID_INSECURE);
+        }
+        return new NativeBluetoothServerSocket(tmp, secure);
+    }
+
+    @Override
+    public BluetoothSocketWrapper connect(String address, boolean secure, TaskScope scope)
+            throws IOException, InterruptedException {
+        String socketType = secure ? "Secure" : "Insecure";
+        Log.i(TAG, "connect to " + address + " SocketType:" + socketType);
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+
+        // Always cancel discovery because it will slow down a connection
+        mAdapter.cancelDiscovery();
+
+        ConnectStrategyCache.Entry known =
+                mStrategies != null ? mStrategies.get(address, secure) : null;
+        int channel = known != null ? known.channel : DEFAULT_CHANNEL;
+        long delay = known != null ? known.fallbackDelayMillis : INITIAL_FALLBACK_DELAY_MS;
+        long start = System.nanoTime();
+
+        long hedgeDelay = mHedgeDelayMillis;
+        if (hedgeDelay > 0) {
+            int first = known != null && !isDowngrade(secure, known.strategy)
+                    ? known.strategy : -1;
+            HedgeRace race = connectHedged(device, secure, channel, first, hedgeDelay, scope);
+            // An insecure link only stands in for this attempt; the next
+            // secure request races for a secure one again
+            if (!isDowngrade(secure, race.mWinnerStrategy)) {
+                remember(address, secure, race.mWinnerStrategy, channel, delay);
+            }
+            reportConnected(address, secure, race.mWinnerStrategy, start);
+            return race.mWinner;
+        }
+
+        // Go straight to the channel if that is what worked last time
+        if (known != null && known.strategy == ConnectStrategyCache.STRATEGY_CHANNEL
+                && FallbackBluetoothSocket.isAvailable()) {
+            try {
+                BluetoothSocketWrapper socket = connectChannel(device, channel, scope);
+                reportConnected(address, secure, ConnectStrategyCache.STRATEGY_CHANNEL, start);
+                return socket;
+            } catch (IOException e) {
+                Log.d(TAG, "Channel " + channel + " no longer works for " + address, e);
+            }
+        }
+
+        IOException failure;
+        try {
+            BluetoothSocketWrapper socket = connectServiceRecord(device, secure, scope);
+            remember(address, secure, ConnectStrategyCache.STRATEGY_SERVICE_RECORD, channel, delay);
+            reportConnected(address, secure, ConnectStrategyCache.STRATEGY_SERVICE_RECORD, start);
+            return socket;
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        if (!FallbackBluetoothSocket.isAvailable()) {
+            Log.w(TAG, "No fallback available for " + socketType + " socket", failure);
+            forget(address, secure);
+            throw failure;
+        }
+        for (int attempt = 0; attempt < FALLBACK_ATTEMPTS; attempt++) {
+            Log.d(TAG, "Trying the fallback on channel " + channel + " after " + delay + " ms");
+            Thread.sleep(delay);
+            try {
+                BluetoothSocketWrapper socket = connectChannel(device, channel, scope);
+                // See whether a shorter pause is enough next time
+                remember(address, secure, ConnectStrategyCache.STRATEGY_CHANNEL, channel,
+                        Math.max(MIN_FALLBACK_DELAY_MS, delay * 3 / 4));
+                reportConnected(address, secure, ConnectStrategyCache.STRATEGY_CHANNEL, start);
+                return socket;
+            } catch (IOException e) {
+                Log.w(TAG, "Fallback failed", e);
+                failure = e;
+                delay = Math.min(MAX_FALLBACK_DELAY_MS, delay * 2);
+            }
+        }
+        forget(address, secure);
+        throw failure;
+    }
+
+    private BluetoothSocketWrapper connectServiceRecord(BluetoothDevice device, boolean secure,
+                                                        TaskScope scope) throws IOException {
+        return connect(createServiceRecordSocket(device, secure), scope);
+    }
+
+    private BluetoothSocketWrapper connectChannel(BluetoothDevice device, int channel,
+                                                  TaskScope scope) throws IOException {
+        return connect(createChannelSocket(device, channel), scope);
+    }
+
+    private static NativeBluetoothSocket createServiceRecordSocket(BluetoothDevice device,
+                                                                   boolean secure)
+            throws IOException {
+        // Get a BluetoothSocket for a connection with the
+        // given BluetoothDevice
+        BluetoothSocket tmp;
+        if (secure) {
+            tmp = device.createRfcommSocketToServiceRecord(
+                    MY_UUID_SECURE);
+        } else {
+            tmp = device.createInsecureRfcommSocketToServiceRecord(
+                    MY_UUID_INSECURE);
+        }
+        return new NativeBluetoothSocket(tmp, secure);
+    }
+
+    private static NativeBluetoothSocket createChannelSocket(BluetoothDevice device, int channel)
+            throws IOException {
+        try {
+            return new FallbackBluetoothSocket(device, channel);
+        } catch (FallbackException e) {
+            throw new IOException("Could not create a socket on channel " + channel, e);
+        }
+    }
+
+    private static NativeBluetoothSocket createSocket(BluetoothDevice device, boolean secure,
+                                                      int strategy, int channel)
+            throws IOException {
+        switch (strategy) {
+            case ConnectStrategyCache.STRATEGY_CHANNEL:
+                return createChannelSocket(device, channel);
+            case ConnectStrategyCache.STRATEGY_INSECURE_SERVICE_RECORD:
+                return createServiceRecordSocket(device, false);
+            default:
+                return createServiceRecordSocket(device, secure);
+        }
+    }
+
+    /**
+     * Race the connect strategies against each other, starting a new one
+     * every hedge delay or as soon as all running ones have failed.
+     *
+     * @param first The strategy that worked last time, tried first, or -1
+     * @return the finished race, holding the winning socket
+     * @throws IOException if every strategy failed; the last error is thrown
+     */
+    private HedgeRace connectHedged(final BluetoothDevice device, final boolean secure,
+                                    final int channel, int first, long hedgeDelay,
+                                    final TaskScope scope)
+            throws IOException, InterruptedException {
+        List<Integer> order = new ArrayList<>();
+        if (first >= 0) order.add(first);
+        if (!order.contains(ConnectStrategyCache.STRATEGY_SERVICE_RECORD)) {
+            order.add(ConnectStrategyCache.STRATEGY_SERVICE_RECORD);
+        }
+        if (secure && !order.contains(ConnectStrategyCache.STRATEGY_INSECURE_SERVICE_RECORD)) {
+            order.add(ConnectStrategyCache.STRATEGY_INSECURE_SERVICE_RECORD);
+        }
+        if (FallbackBluetoothSocket.isAvailable()
+                && !order.contains(ConnectStrategyCache.STRATEGY_CHANNEL)) {
+            order.add(ConnectStrategyCache.STRATEGY_CHANNEL);
+        }
+
+        final HedgeRace race = new HedgeRace();
+        for (int i = 0; i < order.size(); i++) {
+            if (i > 0 && !race.awaitNextLaunch(hedgeDelay)) break;
+            final int strategy = order.get(i);
+            race.launched();
+            try {
+                scope.execute("hedge " + ConnectStrategyCache.name(strategy), new Runnable() {
+                    @Override
+                    public void run() {
+                        race.run(device, secure, strategy, channel, scope);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                race.failed(new IOException("No thread available", e));
+            }
+        }
+        race.awaitWinner();
+        return race;
+    }
+
+    /**
+     * Whether a strategy gives a weaker link than the request asked for.
+     */
+    private static boolean isDowngrade(boolean secure, int strategy) {
+        return secure && strategy == ConnectStrategyCache.STRATEGY_INSECURE_SERVICE_RECORD;
+    }
+
+    private void reportConnected(String address, boolean secure, int strategy, long start) {
+        long millis = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, "connected to " + address + " through the "
+                + ConnectStrategyCache.name(strategy) + " in " + millis + " ms");
+        StrategyListener listener = mStrategyListener;
+        if (listener != null) {
+            listener.onConnected(address, secure, strategy, millis);
+        }
+    }
+
+    /**
+     * The shared state of one hedged connect: which attempts are running,
+     * which sockets they opened, and who won.
+     */
+    private static class HedgeRace {
+        private final List<NativeBluetoothSocket> mmSockets = new ArrayList<>();
+        private int mmLaunched;
+        private int mmFailed;
+        private IOException mmFailure;
+        NativeBluetoothSocket mWinner;
+        int mWinnerStrategy = -1;
+
+        void run(BluetoothDevice device, boolean secure, int strategy, int channel,
+                 TaskScope scope) {
+            NativeBluetoothSocket socket;
+            try {
+                socket = createSocket(device, secure, strategy, channel);
+            } catch (IOException e) {
+                failed(e);
+                return;
+            }
+            if (!register(socket)) {
+                closeQuietly(socket);
+                return;
+            }
+            scope.add(socket);
+            try {
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                socket.connect();
+            } catch (IOException e) {
+                closeQuietly(socket);
+                failed(e);
+                return;
+            }
+            if (!win(socket, strategy)) {
+                closeQuietly(socket);
+            }
+        }
+
+        synchronized void launched() {
+            mmLaunched++;
+        }
+
+        synchronized void failed(IOException e) {
+            mmFailed++;
+            mmFailure = e;
+            notifyAll();
+        }
+
+        private synchronized boolean register(NativeBluetoothSocket socket) {
+            if (mWinner != null) return false;
+            mmSockets.add(socket);
+            return true;
+        }
+
+        private boolean win(NativeBluetoothSocket socket, int strategy) {
+            List<NativeBluetoothSocket> losers;
+            synchronized (this) {
+                if (mWinner != null) return false;
+                mWinner = socket;
+                mWinnerStrategy = strategy;
+                losers = new ArrayList<>(mmSockets);
+                losers.remove(socket);
+                notifyAll();
+            }
+            // Closing a socket is what aborts its blocking connect()
+            for (NativeBluetoothSocket loser : losers) {
+                closeQuietly(loser);
+            }
+            return true;
+        }
+
+        /**
+         * Wait until the next strategy should start.
+         *
+         * @return false if there is a winner and nothing more should start
+         */
+        synchronized boolean awaitNextLaunch(long delayMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + delayMillis * 1000000;
+            long wait;
+            while (mWinner == null && mmFailed < mmLaunched
+                    && (wait = (deadline - System.nanoTime()) / 1000000) > 0) {
+                wait(wait);
+            }
+            return mWinner == null;
+        }
+
+        synchronized void awaitWinner() throws IOException, InterruptedException {
+            while (mWinner == null && mmFailed < mmLaunched) {
+                wait();
+            }
+            if (mWinner == null) {
+                throw mmFailure != null ? mmFailure : new IOException("No connect strategy left");
+            }
+        }
+    }
+
+    private static BluetoothSocketWrapper connect(NativeBluetoothSocket socket, TaskScope scope)
+            throws IOException {
+        scope.add(socket);
+        try {
+            // This is a blocking call and will only return on a
+            // successful connection or an exception
+            socket.connect();
+            return socket;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "unable to close() socket during connection failure", e2);
+            }
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(NativeBluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to close() socket of a lost hedge", e);
+        }
+    }
+
+    private void remember(String address, boolean secure, int strategy, int channel, long delay) {
+        if (mStrategies != null) {
+            mStrategies.put(address, secure,
+                    new ConnectStrategyCache.Entry(strategy, channel, delay));
+        }
+    }
+
+    private void forget(String address, boolean secure) {
+        if (mStrategies != null) {
+            mStrategies.remove(address, secure);
+        }
+    }
+
+    public static class NativeBluetoothServerSocket implements ServerSocketWrapper {
+
+        private BluetoothServerSocket serverSocket;
+        private final boolean secure;
+
+        public NativeBluetoothServerSocket(BluetoothServerSocket tmp, boolean secure) {
+            this.serverSocket = tmp;
+            this.secure = secure;
+        }
+
+        @Override
+        public BluetoothSocketWrapper accept() throws IOException {
+            return new NativeBluetoothSocket(serverSocket.accept(), secure);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+    }
+
+    // ===========================================================================
+    // ===========================================================================
+    // ===========================================================================
+    // ===========================================================================
+    // ===========================================================================
+    // http://stackoverflow.com/questions/18657427/ioexception-read-failed-socket-might-closed-bluetooth-on-android-4-3/25647197#25647197
+
+
+    public static class NativeBluetoothSocket implements BluetoothSocketWrapper {
+
+        private BluetoothSocket socket;
+        private final boolean secure;
+
+        public NativeBluetoothSocket(BluetoothSocket tmp, boolean secure) {
+            this.socket = tmp;
+            this.secure = secure;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteDeviceName() {
+            return socket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            socket.connect();
+        }
+
+        @Override
+        public String getRemoteDeviceAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public boolean isSecure() {
+            return secure;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        public BluetoothSocket getUnderlyingSocket() {
+            return socket;
+        }
+
+    }
+
+
+    public static class FallbackBluetoothSocket extends NativeBluetoothSocket {
+
+        // Looked up once per process; null where the hidden method is missing
+        private static final Method sCreateRfcommSocket = findCreateRfcommSocket();
+
+        public FallbackBluetoothSocket(BluetoothDevice device, int channel)
+                throws FallbackException {
+            // createRfcommSocket() authenticates and encrypts
+            super(createRfcommSocket(device, channel), true);
+        }
+
+        public static boolean isAvailable() {
+            return sCreateRfcommSocket != null;
+        }
+
+        private static Method findCreateRfcommSocket() {
+            try {
+                return BluetoothDevice.class.getMethod("createRfcommSocket", Integer.TYPE);
+            } catch (Exception e) {
+                Log.w(TAG, "createRfcommSocket() is not available", e);
+                return null;
+            }
+        }
+
+        private static BluetoothSocket createRfcommSocket(BluetoothDevice device, int channel)
+                throws FallbackException {
+            if (sCreateRfcommSocket == null) {
+                throw new FallbackException(new NoSuchMethodException("createRfcommSocket"));
+            }
+            try {
+                return (BluetoothSocket) sCreateRfcommSocket.invoke(device, channel);
+            } catch (Exception e) {
+                throw new FallbackException(e);
+            }
+        }
+
+    }
+
+    public static class FallbackException extends Exception {
+
+        /**
+         *
+         */
+        private static final long serialVersionUID = 1L;
+
+        public FallbackException(Exception e) {
+            super(e);
+        }
+
+    }
+}
@@ -0,0 +1,65 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of equally sized byte buffers that are handed out to the reading
+ * side of a connection and given back once the consumer is done with them.
+ * Every chunk delivered to the UI gets a buffer of its own, so the next read
+ * can never overwrite data that has not been decoded yet.
+ *
+ * The free list is array backed, so acquiring and releasing a buffer does
+ * not allocate once the pool has been filled.
+ */
+public class BufferPool {
+
+    // Member fields
+    private final int mBufferSize;
+    private final ArrayBlockingQueue<byte[]> mFree;
+
+    /**
+     * Constructor. Allocates all pooled buffers up front.
+     *
+     * @param bufferSize The size in bytes of every buffer in the pool
+     * @param capacity   The number of buffers kept around for reuse
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mFree = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mFree.offer(new byte[bufferSize]);
+        }
+    }
+
+    /**
+     * Return the size in bytes of the buffers handed out by this pool.
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Take a buffer out of the pool. If every buffer is still held by a
+     * consumer a fresh one is allocated rather than blocking the reader;
+     * it joins the pool when it is released.
+     */
+    public byte[] acquire() {
+        byte[] buffer = mFree.poll();
+        if (buffer == null) {
+            buffer = new byte[mBufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. Buffers that did not come from this
+     * pool, or that arrive once the pool is already full, are left to the
+     * garbage collector.
+     *
+     * @param buffer The buffer previously returned by {@link #acquire()}
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize) return;
+        mFree.offer(buffer);
+    }
+}
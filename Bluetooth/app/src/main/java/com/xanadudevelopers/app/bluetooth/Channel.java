@@ -0,0 +1,358 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One logical stream of messages with a peer, such as chat, telemetry or a
+ * bulk transfer, sharing the peer's {@link Session} with the others. Open
+ * one with {@link ConnectionManager#openChannel(String, String, Listener,
+ * Executor)}; the peer's {@link Acceptor} takes it or refuses it.
+ *
+ * A channel queues its own messages, and the session takes them from all
+ * channels in turn, with only {@link #MAX_IN_FLIGHT} of a channel's
+ * messages unacknowledged at a time, so a busy channel cannot hold up the
+ * others. Each side grants the other credit for {@link #WINDOW} messages
+ * its listener has not consumed yet, so a slow listener only stalls its
+ * own channel. Messages are delivered in order on the listener's executor.
+ * A channel sends at interactive priority unless it is set to bulk, in
+ * which case its messages give way to interactive ones, see
+ * {@link Session}.
+ */
+public class Channel {
+
+    /**
+     * Told what happens on a channel. Called on the channel's executor,
+     * one call at a time, even if the executor is a pool.
+     */
+    public interface Listener {
+        /**
+         * The channel is open: the peer accepted it, or we did.
+         */
+        void onChannelOpen(Channel channel);
+
+        /**
+         * A message arrived. The frame is only valid during the call.
+         */
+        void onMessage(Channel channel, Frame frame);
+
+        /**
+         * The channel is closed, after every message that came before.
+         *
+         * @param e Why, or null if either side closed it
+         */
+        void onChannelClosed(Channel channel, IOException e);
+    }
+
+    /**
+     * Decides about channels a peer opens. Called on the connection's
+     * reader thread, so it should return quickly.
+     */
+    public interface Acceptor {
+        /**
+         * @return the listener for the channel, or null to refuse it
+         */
+        Listener onChannelRequested(Channel channel);
+    }
+
+    // Most messages waiting in a channel to be handed to the session
+    public static final int MAX_QUEUED = 64;
+    // The largest message, leaving room for the channel's trailer
+    public static final int MAX_MESSAGE_SIZE =
+            Session.MAX_MESSAGE_SIZE - ChannelManager.TRAILER_SIZE;
+    // Most messages of a channel in the session window at a time; more
+    // than the session acknowledges at once, so one channel alone can
+    // keep the link busy
+    static final int MAX_IN_FLIGHT = Session.WINDOW / 2;
+    // Most messages received on a channel but not consumed yet
+    static final int WINDOW = 32;
+
+    // States
+    static final int STATE_OPENING = 0; // waiting for the peer to accept
+    static final int STATE_OPEN = 1;
+    static final int STATE_CLOSING = 2; // closed by us, waiting for the peer
+    static final int STATE_CLOSED = 3;
+
+    // Member fields; the sending state is guarded by the manager's lock
+    final ChannelManager.Mux mMux;
+    final int mKey;
+    private final String mName;
+    private Listener mListener;
+    private Executor mExecutor;
+    int mState;
+    final ArrayDeque<Outgoing> mQueue = new ArrayDeque<>();
+    int mInFlight;
+    int mPriority = Session.PRIORITY_INTERACTIVE;
+    // The priority the messages in flight were sent at
+    int mSendPriority = Session.PRIORITY_INTERACTIVE;
+    long mSent;
+    long mCreditLimit = WINDOW;
+    long mConsumed;
+    long mCreditSent;
+    boolean mCloseSent;
+
+    // Receiving state, guarded by the channel
+    private ArrayDeque<Frame> mReceived = new ArrayDeque<>();
+    private ArrayDeque<Frame> mDraining = new ArrayDeque<>();
+    private boolean mScheduled;
+    private boolean mNotifyOpen;
+    private boolean mNotifyClosed;
+    private boolean mClosedDelivered;
+    private IOException mCloseError;
+
+    Channel(ChannelManager.Mux mux, int key, String name, int state, Listener listener,
+            Executor executor) {
+        mMux = mux;
+        mKey = key;
+        mName = name;
+        mState = state;
+        mListener = listener;
+        mExecutor = executor;
+    }
+
+    /**
+     * Set who hears about an accepted channel, before it is registered.
+     */
+    void setListener(Listener listener, Executor executor) {
+        mListener = listener;
+        mExecutor = executor;
+    }
+
+    /**
+     * Return the number of the channel, unique among the channels with
+     * its peer.
+     */
+    public int getId() {
+        return mKey;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Return the address of the peer.
+     */
+    public String getAddress() {
+        return mMux.getAddress();
+    }
+
+    /**
+     * Return false once the channel is closing or closed.
+     */
+    public boolean isOpen() {
+        synchronized (mMux) {
+            return mState == STATE_OPENING || mState == STATE_OPEN;
+        }
+    }
+
+    /**
+     * Queue a message. Messages queued before the peer accepted the channel
+     * are sent once it did.
+     *
+     * @param data     The message; must not change until acknowledged
+     * @param callback Told once the peer acknowledged the message or the
+     *                 channel ended, or null
+     * @return false if {@link #MAX_QUEUED} messages are waiting already or
+     * the channel is closing
+     * @throws IllegalArgumentException if data is larger than
+     *                                  {@link #MAX_MESSAGE_SIZE}
+     */
+    public boolean send(byte[] data, WriteQueue.Callback callback) {
+        if (data.length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Message of " + data.length
+                    + " bytes exceeds the limit of " + MAX_MESSAGE_SIZE);
+        }
+        return mMux.send(this, data, callback);
+    }
+
+    /**
+     * Send the channel's messages at a priority from now on. Messages
+     * already in flight are acknowledged first, so the order holds.
+     *
+     * @param priority {@link Session#PRIORITY_INTERACTIVE}, the default, or
+     *                 {@link Session#PRIORITY_BULK}
+     */
+    public void setPriority(int priority) {
+        if (priority != Session.PRIORITY_INTERACTIVE && priority != Session.PRIORITY_BULK) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        mMux.setPriority(this, priority);
+    }
+
+    /**
+     * Close the channel once the messages queued so far are sent. The peer
+     * can still send until it has seen the close; the listener hears
+     * {@link Listener#onChannelClosed(Channel, IOException)} when it did.
+     */
+    public void close() {
+        mMux.close(this);
+    }
+
+    // ------------------------------------------------------------------
+    // Delivery, on the listener's executor
+
+    void postOpen() {
+        synchronized (this) {
+            mNotifyOpen = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Queue a received message for the listener. The channel owns the
+     * frame from now on.
+     */
+    void postMessage(Frame frame) {
+        synchronized (this) {
+            if (mNotifyClosed) {
+                // Nobody to hand it to any more
+                frame.recycle();
+                return;
+            }
+            mReceived.add(frame);
+        }
+        schedule();
+    }
+
+    /**
+     * Tell the listener the channel is closed, after the messages queued
+     * before.
+     */
+    void postClosed(IOException e) {
+        synchronized (this) {
+            if (mNotifyClosed) return;
+            mNotifyClosed = true;
+            mCloseError = e;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        execute();
+    }
+
+    private void execute() {
+        try {
+            mExecutor.execute(mDrain);
+        } catch (RejectedExecutionException e) {
+            // The executor was shut down; nobody is listening anymore
+            ArrayDeque<Frame> frames;
+            synchronized (this) {
+                frames = mReceived;
+                mReceived = new ArrayDeque<>();
+                mScheduled = false;
+            }
+            for (Frame frame : frames) {
+                frame.recycle();
+            }
+        }
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            boolean open;
+            ArrayDeque<Frame> frames;
+            synchronized (Channel.this) {
+                open = mNotifyOpen;
+                mNotifyOpen = false;
+                frames = mReceived;
+                mReceived = mDraining;
+                mDraining = frames;
+            }
+            int consumed = 0;
+            try {
+                if (open) {
+                    mListener.onChannelOpen(Channel.this);
+                }
+                Frame frame;
+                while ((frame = frames.poll()) != null) {
+                    try {
+                        mListener.onMessage(Channel.this, frame);
+                    } finally {
+                        frame.recycle();
+                        consumed++;
+                    }
+                }
+            } finally {
+                // Only left non-empty if the listener threw
+                Frame frame;
+                while ((frame = frames.poll()) != null) {
+                    frame.recycle();
+                    consumed++;
+                }
+                if (consumed > 0) {
+                    mMux.onConsumed(Channel.this, consumed);
+                }
+                finishDrain();
+            }
+        }
+    };
+
+    private void finishDrain() {
+        boolean closed = false;
+        boolean more;
+        IOException error = null;
+        synchronized (this) {
+            if (mReceived.isEmpty() && mNotifyClosed && !mClosedDelivered) {
+                closed = true;
+                error = mCloseError;
+                mClosedDelivered = true;
+            }
+            more = !mReceived.isEmpty() || mNotifyOpen || (mNotifyClosed && !mClosedDelivered);
+            mScheduled = more;
+        }
+        if (closed) {
+            mListener.onChannelClosed(this, error);
+        }
+        if (more) {
+            // Run again rather than loop, so a listener on a shared thread
+            // cannot hog it
+            execute();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Channel[" + mName + " #" + mKey + " with " + getAddress() + "]";
+    }
+
+    /**
+     * A message waiting to be sent or acknowledged.
+     */
+    static class Outgoing implements WriteQueue.Callback {
+        final Channel mmChannel;
+        final byte[] mmData;
+        final WriteQueue.Callback mmCallback;
+        byte[] mmFrame;
+
+        Outgoing(Channel channel, byte[] data, WriteQueue.Callback callback) {
+            mmChannel = channel;
+            mmData = data;
+            mmCallback = callback;
+        }
+
+        @Override
+        public void onWriteComplete(byte[] frame) {
+            mmChannel.mMux.onAcked(mmChannel);
+            if (mmCallback != null) mmCallback.onWriteComplete(mmData);
+        }
+
+        @Override
+        public void onWriteFailed(byte[] frame, IOException e) {
+            mmChannel.mMux.onAcked(mmChannel);
+            fail(e);
+        }
+
+        void fail(IOException e) {
+            if (mmCallback != null) mmCallback.onWriteFailed(mmData, e);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps track of the {@link Channel}s of a {@link ConnectionManager}, one
+ * {@link Mux} per session, and hands incoming {@link Frame#TYPE_CHANNEL}
+ * frames to the channel they belong to.
+ *
+ * Every channel frame ends with the channel id and an operation. It is a
+ * trailer rather than a header so a message can be handed to the listener
+ * in the buffer it was read into, only cut shorter. The opener picks the
+ * id from its own range: the top bit of the id on the
+ * wire says whether the sender of the frame opened the channel, so both
+ * sides can open channels at once without agreeing on ids. Opening is
+ * answered with an accept or a reject, and closing with a close, after
+ * which the id is free again.
+ */
+class ChannelManager {
+
+    // Operations
+    private static final int OP_OPEN = 0;    // the channel name follows
+    private static final int OP_ACCEPT = 1;
+    private static final int OP_REJECT = 2;
+    private static final int OP_DATA = 3;    // the message follows
+    private static final int OP_CREDIT = 4;  // the new credit limit follows
+    private static final int OP_CLOSE = 5;
+
+    // Channel id and operation
+    static final int TRAILER_SIZE = 3;
+
+    // Set in the id of a channel the other side opened
+    private static final int PEER_OPENED = 0x8000;
+    private static final int MAX_ID = PEER_OPENED - 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Member fields
+    private final ConcurrentHashMap<String, Mux> mMuxes = new ConcurrentHashMap<>();
+    private volatile Channel.Acceptor mAcceptor;
+    private volatile Executor mAcceptExecutor;
+
+    void setAcceptor(Channel.Acceptor acceptor, Executor executor) {
+        mAcceptExecutor = executor;
+        mAcceptor = acceptor;
+    }
+
+    /**
+     * Open a channel on a session.
+     *
+     * @return the channel, or null if the peer does not support channels
+     * or the session has all the channels it can take
+     */
+    Channel open(Session session, String name, Channel.Listener listener, Executor executor) {
+        return getMux(session).open(name, listener, executor);
+    }
+
+    /**
+     * Hand a message read with {@link #readMessage(Frame, boolean)} to its
+     * channel, or recycle it if the channel is gone.
+     */
+    void onMessageReceived(Session session, Frame frame) {
+        getMux(session).onMessageReceived(frame);
+    }
+
+    /**
+     * Handle a channel frame counted by the session that is not a message.
+     * Recycles the frame.
+     */
+    void onFrameReceived(Session session, Frame frame) {
+        if (frame.getLength() < TRAILER_SIZE) {
+            frame.recycle();
+            return;
+        }
+        getMux(session).onFrameReceived(frame);
+    }
+
+    /**
+     * Close every channel of a session that ended.
+     */
+    void onSessionClosed(String address, IOException e) {
+        Mux mux = mMuxes.remove(address);
+        if (mux != null) {
+            mux.closeAll(e);
+        }
+    }
+
+    private Mux getMux(Session session) {
+        Mux mux = mMuxes.get(session.getAddress());
+        if (mux == null || mux.mmSession != session) {
+            Mux created = new Mux(session);
+            if (mux == null) {
+                mux = mMuxes.putIfAbsent(session.getAddress(), created);
+                if (mux == null) mux = created;
+            } else {
+                // Left over from a session that ended without telling us
+                mMuxes.put(session.getAddress(), created);
+                mux.closeAll(new IOException("Session ended"));
+                mux = created;
+            }
+        }
+        return mux;
+    }
+
+    /**
+     * Return true if a channel frame carries a message rather than opening,
+     * closing or crediting a channel.
+     */
+    static boolean isMessage(byte[] frame, int length) {
+        return length >= TRAILER_SIZE && frame[length - 1] == OP_DATA;
+    }
+
+    /**
+     * Cut the trailer off a channel frame that carries a message, and
+     * note the channel it belongs to in the frame.
+     *
+     * @param outgoing True if we sent the frame, false if it was received
+     * @return false, leaving the frame alone, if it is not a message
+     */
+    static boolean readMessage(Frame frame, boolean outgoing) {
+        byte[] data = frame.getData();
+        int length = frame.getLength();
+        if (!isMessage(data, length)) return false;
+        length -= TRAILER_SIZE;
+        int id = ((data[length] & 0xff) << 8) | (data[length + 1] & 0xff);
+        frame.setChannelId(outgoing ? id : id ^ PEER_OPENED);
+        frame.setLength(length);
+        return true;
+    }
+
+    private static byte[] encode(int op, int id, byte[] payload, int length) {
+        byte[] frame = new byte[length + TRAILER_SIZE];
+        if (length > 0) {
+            System.arraycopy(payload, 0, frame, 0, length);
+        }
+        frame[length] = (byte) (id >>> 8);
+        frame[length + 1] = (byte) id;
+        frame[length + 2] = (byte) op;
+        return frame;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * The channels with one peer, and the turn they take in its session.
+     * Everything about sending is guarded by the mux.
+     */
+    class Mux {
+        final Session mmSession;
+        private final HashMap<Integer, Channel> mmChannels = new HashMap<>();
+        // The channels in the order they take turns
+        private final ArrayList<Channel> mmOrder = new ArrayList<>();
+        // Opens, answers and credit, sent ahead of messages
+        private final ArrayDeque<byte[]> mmControl = new ArrayDeque<>();
+        // Channels the peer closed, to be answered behind their messages
+        private final ArrayDeque<Channel> mmCloseReplies = new ArrayDeque<>();
+        private int mmTurn;
+        private int mmNextId = 1;
+        private boolean mmClosed;
+
+        Mux(Session session) {
+            mmSession = session;
+            session.setWritableListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (mmSession.isResumed() && !mmSession.hasChannels()) {
+                        closeAll(new IOException(getAddress() + " does not support channels"));
+                    } else {
+                        pump();
+                    }
+                }
+            });
+        }
+
+        String getAddress() {
+            return mmSession.getAddress();
+        }
+
+        Channel open(String name, Channel.Listener listener, Executor executor) {
+            synchronized (this) {
+                if (mmClosed || mmChannels.size() >= MAX_ID) return null;
+                if (mmSession.isResumed() && !mmSession.hasChannels()) return null;
+                while (mmChannels.containsKey(mmNextId)) {
+                    mmNextId = mmNextId % MAX_ID + 1;
+                }
+                int id = mmNextId;
+                mmNextId = mmNextId % MAX_ID + 1;
+                Channel channel = new Channel(this, id, name, Channel.STATE_OPENING, listener,
+                        executor);
+                add(channel);
+                byte[] bytes = name.getBytes(UTF_8);
+                mmControl.add(encode(OP_OPEN, id, bytes, bytes.length));
+                pump();
+                return channel;
+            }
+        }
+
+        boolean send(Channel channel, byte[] data, WriteQueue.Callback callback) {
+            synchronized (this) {
+                if (channel.mState != Channel.STATE_OPENING
+                        && channel.mState != Channel.STATE_OPEN) return false;
+                if (channel.mQueue.size() >= Channel.MAX_QUEUED) return false;
+                channel.mQueue.add(new Channel.Outgoing(channel, data, callback));
+                pump();
+                return true;
+            }
+        }
+
+        synchronized void setPriority(Channel channel, int priority) {
+            channel.mPriority = priority;
+            pump();
+        }
+
+        synchronized void close(Channel channel) {
+            if (channel.mState != Channel.STATE_OPENING
+                    && channel.mState != Channel.STATE_OPEN) return;
+            // The close goes out once the queue is empty, see pump()
+            channel.mState = Channel.STATE_CLOSING;
+            pump();
+        }
+
+        /**
+         * A message of the channel was acknowledged or given up on.
+         */
+        synchronized void onAcked(Channel channel) {
+            channel.mInFlight--;
+        }
+
+        /**
+         * The listener of a channel consumed messages. Grant the credit
+         * back, in steps.
+         */
+        synchronized void onConsumed(Channel channel, int count) {
+            channel.mConsumed += count;
+            if (channel.mState == Channel.STATE_CLOSED
+                    || channel.mConsumed - channel.mCreditSent < Channel.WINDOW / 4) return;
+            channel.mCreditSent = channel.mConsumed;
+            byte[] limit = new byte[8];
+            putLong(limit, 0, channel.mConsumed + Channel.WINDOW);
+            mmControl.add(encode(OP_CREDIT, channel.mKey, limit, limit.length));
+            pump();
+        }
+
+        /**
+         * Hand the session what it takes: control frames first, then one
+         * message from each channel in turn. Messages go at the priority
+         * of their channel; a close goes the same way, so it cannot
+         * overtake them.
+         */
+        synchronized void pump() {
+            // Held back until the peer said it knows channels
+            if (mmClosed || !mmSession.hasChannels()) return;
+            while (!mmControl.isEmpty()) {
+                if (!mmSession.send(Frame.TYPE_CHANNEL, Session.PRIORITY_CONTROL,
+                        mmControl.peek(), null)) return;
+                mmControl.poll();
+            }
+            while (!mmCloseReplies.isEmpty()) {
+                if (!sendClose(mmCloseReplies.peek())) return;
+                mmCloseReplies.poll();
+            }
+            boolean progress = true;
+            while (progress && !mmOrder.isEmpty()) {
+                progress = false;
+                int count = mmOrder.size();
+                for (int i = 0; i < count; i++) {
+                    Channel channel = mmOrder.get((mmTurn + i) % count);
+                    if (!canSend(channel)) continue;
+                    Channel.Outgoing message = channel.mQueue.peek();
+                    if (message.mmFrame == null) {
+                        message.mmFrame = encode(OP_DATA, channel.mKey, message.mmData,
+                                message.mmData.length);
+                    }
+                    if (!mmSession.send(Frame.TYPE_CHANNEL, channel.mSendPriority,
+                            message.mmFrame, message)) {
+                        // This channel goes first next time
+                        mmTurn = (mmTurn + i) % count;
+                        return;
+                    }
+                    channel.mQueue.poll();
+                    channel.mInFlight++;
+                    channel.mSent++;
+                    progress = true;
+                }
+                mmTurn = (mmTurn + 1) % count;
+            }
+            for (Channel channel : mmOrder) {
+                if (channel.mState == Channel.STATE_CLOSING && !channel.mCloseSent
+                        && channel.mQueue.isEmpty()) {
+                    if (!sendClose(channel)) return;
+                }
+            }
+        }
+
+        private boolean sendClose(Channel channel) {
+            if (!mmSession.send(Frame.TYPE_CHANNEL, channel.mSendPriority,
+                    encode(OP_CLOSE, channel.mKey, null, 0), null)) return false;
+            channel.mCloseSent = true;
+            return true;
+        }
+
+        private boolean canSend(Channel channel) {
+            if (channel.mPriority != channel.mSendPriority) {
+                // Switch lanes only once the old one holds none of the
+                // channel's messages, to keep them in order
+                if (channel.mInFlight > 0) return false;
+                channel.mSendPriority = channel.mPriority;
+            }
+            return (channel.mState == Channel.STATE_OPEN || channel.mState == Channel.STATE_CLOSING)
+                    && !channel.mQueue.isEmpty()
+                    && channel.mInFlight < Channel.MAX_IN_FLIGHT
+                    && channel.mSent < channel.mCreditLimit;
+        }
+
+        void onMessageReceived(Frame frame) {
+            Channel channel;
+            synchronized (this) {
+                channel = mmChannels.get(frame.getChannelId());
+            }
+            if (channel != null) {
+                channel.postMessage(frame);
+            } else {
+                frame.recycle();
+            }
+        }
+
+        void onFrameReceived(Frame frame) {
+            byte[] data = frame.getData();
+            int length = frame.getLength() - TRAILER_SIZE;
+            int id = (((data[length] & 0xff) << 8) | (data[length + 1] & 0xff)) ^ PEER_OPENED;
+            int op = data[length + 2];
+            try {
+                switch (op) {
+                    case OP_OPEN:
+                        onOpen(id, new String(data, 0, length, UTF_8));
+                        break;
+                    case OP_ACCEPT:
+                        onAccept(id);
+                        break;
+                    case OP_REJECT:
+                        remove(id, new IOException("Refused by the peer"));
+                        break;
+                    case OP_CREDIT:
+                        if (length >= 8) {
+                            onCredit(id, getLong(data, 0));
+                        }
+                        break;
+                    case OP_CLOSE:
+                        onClose(id);
+                        break;
+                }
+            } finally {
+                frame.recycle();
+            }
+        }
+
+        private void onOpen(int id, String name) {
+            Channel channel = new Channel(this, id, name, Channel.STATE_OPEN, null, null);
+            Channel.Acceptor acceptor = mAcceptor;
+            Executor executor = mAcceptExecutor;
+            Channel.Listener listener = null;
+            if (acceptor != null) {
+                listener = acceptor.onChannelRequested(channel);
+            }
+            synchronized (this) {
+                if (listener == null || mmClosed || mmChannels.containsKey(id)) {
+                    mmControl.add(encode(OP_REJECT, id, null, 0));
+                    pump();
+                    return;
+                }
+                channel.setListener(listener, executor);
+                add(channel);
+                mmControl.add(encode(OP_ACCEPT, id, null, 0));
+                pump();
+            }
+            channel.postOpen();
+        }
+
+        private void onAccept(int id) {
+            Channel channel;
+            synchronized (this) {
+                channel = mmChannels.get(id);
+                if (channel == null || channel.mState == Channel.STATE_OPEN) return;
+                if (channel.mState == Channel.STATE_OPENING) {
+                    channel.mState = Channel.STATE_OPEN;
+                }
+                pump();
+            }
+            channel.postOpen();
+        }
+
+        private synchronized void onCredit(int id, long limit) {
+            Channel channel = mmChannels.get(id);
+            if (channel == null) return;
+            channel.mCreditLimit = Math.max(channel.mCreditLimit, limit);
+            pump();
+        }
+
+        private void onClose(int id) {
+            IOException closed = new IOException("Closed by the peer");
+            List<Channel.Outgoing> failed;
+            Channel channel;
+            synchronized (this) {
+                channel = mmChannels.get(id);
+                if (channel == null) return;
+                if (!channel.mCloseSent) {
+                    // The peer closed first: whatever is still queued will
+                    // not be read, and the peer waits for our close
+                    mmCloseReplies.add(channel);
+                }
+                failed = unregister(channel);
+                pump();
+            }
+            for (Channel.Outgoing message : failed) {
+                message.fail(closed);
+            }
+            channel.postClosed(null);
+        }
+
+        private void remove(int id, IOException e) {
+            List<Channel.Outgoing> failed;
+            Channel channel;
+            synchronized (this) {
+                channel = mmChannels.get(id);
+                if (channel == null) return;
+                failed = unregister(channel);
+            }
+            for (Channel.Outgoing message : failed) {
+                message.fail(e);
+            }
+            channel.postClosed(e);
+        }
+
+        /**
+         * Close every channel, failing what was not sent yet.
+         */
+        void closeAll(IOException e) {
+            List<Channel> channels;
+            List<Channel.Outgoing> failed = new ArrayList<>();
+            synchronized (this) {
+                mmClosed = true;
+                channels = new ArrayList<>(mmOrder);
+                for (Channel channel : channels) {
+                    failed.addAll(unregister(channel));
+                }
+                mmControl.clear();
+                mmCloseReplies.clear();
+            }
+            for (Channel.Outgoing message : failed) {
+                message.fail(e);
+            }
+            for (Channel channel : channels) {
+                channel.postClosed(e);
+            }
+        }
+
+        private void add(Channel channel) {
+            mmChannels.put(channel.mKey, channel);
+            mmOrder.add(channel);
+        }
+
+        private List<Channel.Outgoing> unregister(Channel channel) {
+            channel.mState = Channel.STATE_CLOSED;
+            mmChannels.remove(channel.mKey);
+            int index = mmOrder.indexOf(channel);
+            mmOrder.remove(index);
+            if (mmTurn > index) mmTurn--;
+            if (mmTurn >= mmOrder.size()) mmTurn = 0;
+            List<Channel.Outgoing> failed = new ArrayList<>(channel.mQueue);
+            channel.mQueue.clear();
+            return failed;
+        }
+    }
+}
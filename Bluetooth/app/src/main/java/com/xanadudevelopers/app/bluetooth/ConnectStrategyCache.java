@@ -0,0 +1,93 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import android.content.SharedPreferences;
+
+/**
+ * Remembers, per remote device, how the last successful outgoing
+ * connection was made, so the next attempt can start with what worked
+ * instead of failing through the same steps again. Entries are kept in
+ * SharedPreferences and survive restarts.
+ */
+public class ConnectStrategyCache {
+
+    // How a connection was made
+    public static final int STRATEGY_SERVICE_RECORD = 0; // SDP lookup of our UUID
+    public static final int STRATEGY_CHANNEL = 1;        // fixed RFCOMM channel, by reflection
+    public static final int STRATEGY_INSECURE_SERVICE_RECORD = 2; // insecure SDP lookup for a
+                                                                  // secure request
+
+    // Member fields
+    private final SharedPreferences mPreferences;
+
+    /**
+     * Constructor.
+     *
+     * @param preferences Where entries are stored; the cache owns all keys
+     */
+    public ConnectStrategyCache(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Return what last worked for a device, or null if nothing is known.
+     */
+    public Entry get(String address, boolean secure) {
+        String value = mPreferences.getString(key(address, secure), null);
+        if (value == null) return null;
+        String[] parts = value.split(",");
+        try {
+            return new Entry(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                    Long.parseLong(parts[2]));
+        } catch (RuntimeException e) {
+            // Written by an older version; forget it
+            remove(address, secure);
+            return null;
+        }
+    }
+
+    public void put(String address, boolean secure, Entry entry) {
+        mPreferences.edit()
+                .putString(key(address, secure),
+                        entry.strategy + "," + entry.channel + "," + entry.fallbackDelayMillis)
+                .apply();
+    }
+
+    public void remove(String address, boolean secure) {
+        mPreferences.edit().remove(key(address, secure)).apply();
+    }
+
+    public static String name(int strategy) {
+        switch (strategy) {
+            case STRATEGY_SERVICE_RECORD:
+                return "service record";
+            case STRATEGY_CHANNEL:
+                return "channel";
+            case STRATEGY_INSECURE_SERVICE_RECORD:
+                return "insecure service record";
+            default:
+                return Integer.toString(strategy);
+        }
+    }
+
+    private static String key(String address, boolean secure) {
+        return address + (secure ? "/secure" : "/insecure");
+    }
+
+    /**
+     * One device's connect strategy.
+     */
+    public static class Entry {
+        public final int strategy;
+        // The RFCOMM channel STRATEGY_CHANNEL connects to
+        public final int channel;
+        // How long to let the stack settle after a failed service record
+        // attempt before trying the channel
+        public final long fallbackDelayMillis;
+
+        public Entry(int strategy, int channel, long fallbackDelayMillis) {
+            this.strategy = strategy;
+            this.channel = channel;
+            this.fallbackDelayMillis = fallbackDelayMillis;
+        }
+    }
+}
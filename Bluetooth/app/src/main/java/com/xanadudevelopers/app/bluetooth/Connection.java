@@ -0,0 +1,278 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A live link to one remote device. Every connection owns its reader
+ * task and its write queue, so any number of peers can be served side by
+ * side without one slowing down another. Both run in a {@link TaskScope}
+ * of their own, so closing the connection reliably stops all of its work.
+ */
+public class Connection implements Runnable, WriteQueue.Callback {
+
+    /**
+     * Receives everything that happens on a connection. Frames and write
+     * results arrive on the threads running the connection's tasks.
+     */
+    public interface Listener {
+        /**
+         * A frame has arrived. The listener owns the frame and must recycle it.
+         */
+        void onFrameReceived(Connection connection, Frame frame);
+
+        /**
+         * A data frame or a channel message was acknowledged by the peer.
+         *
+         * @param type {@link Frame#TYPE_DATA} or {@link Frame#TYPE_CHANNEL}
+         * @param data The frame as sent; a channel message still ends
+         *             with its trailer, which
+         *             {@link ChannelManager#readMessage(Frame, boolean)} cuts off
+         */
+        void onFrameSent(Connection connection, int type, byte[] data);
+
+        void onWriteFailed(Connection connection, byte[] data, IOException e);
+
+        /**
+         * The link broke. Called at most once, and never after {@link #close()}.
+         */
+        void onConnectionLost(Connection connection, IOException e);
+    }
+
+    // Outgoing frames are batched into writes of at most this many bytes
+    private static final int WRITE_BATCH_SIZE = 4096;
+    private static final int WRITE_QUEUE_CAPACITY = 256;
+    private static final long WRITE_FLUSH_DELAY_MS = 2;
+
+    // Member fields
+    private final BluetoothSocketWrapper mSocket;
+    private final String mAddress;
+    private final String mName;
+    private final String mSocketType;
+    private final FrameReader mFrameReader;
+    private final WriteQueue mWriteQueue;
+    private final Listener mListener;
+    private final ConnectionMetrics mMetrics;
+    private final FrameCompressor mCompressor;
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+    private volatile long mLastReceivedTime = System.nanoTime();
+    private volatile IOException mAbortCause;
+    private TaskScope mScope;
+
+    /**
+     * Constructor. Wraps the streams of a connected socket; nothing is read
+     * or written until {@link #start()}.
+     *
+     * @param socket         The connected socket
+     * @param socketType     Describes how the socket was opened, for logging
+     * @param readBufferPool The pool incoming payloads are read into
+     * @param metrics        Where traffic on this connection is counted
+     * @param listener       Told about frames, writes and link loss
+     * @throws IOException if the socket streams cannot be opened
+     */
+    public Connection(BluetoothSocketWrapper socket, String socketType,
+                      BufferPool readBufferPool, ConnectionMetrics metrics,
+                      Listener listener) throws IOException {
+        mSocket = socket;
+        mAddress = socket.getRemoteDeviceAddress();
+        mName = socket.getRemoteDeviceName();
+        mSocketType = socketType;
+        mListener = listener;
+        mMetrics = metrics;
+
+        // Frame the raw streams so whole messages come out the other end
+        mFrameReader = new FrameReader(socket.getInputStream(), readBufferPool,
+                FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        mWriteQueue = new WriteQueue(new FrameWriter(socket.getOutputStream(),
+                FrameCodec.DEFAULT_MAX_FRAME_SIZE, WRITE_BATCH_SIZE),
+                WRITE_QUEUE_CAPACITY, WRITE_FLUSH_DELAY_MS, this, metrics.getWriteLatency());
+        mCompressor = new FrameCompressor(FrameCodec.DEFAULT_MAX_FRAME_SIZE, readBufferPool,
+                metrics);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getSocketType() {
+        return mSocketType;
+    }
+
+    public ConnectionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    WriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
+    public boolean isOpen() {
+        return !mClosed.get();
+    }
+
+    /**
+     * Start the reader and writer tasks.
+     *
+     * @param engine The engine whose threads run the tasks
+     * @throws java.util.concurrent.RejectedExecutionException if the engine
+     *                                                         has no threads to spare
+     */
+    public synchronized void start(IoEngine engine) {
+        if (mScope == null) {
+            mScope = engine.newScope("Connection " + mAddress);
+            mScope.execute("writer", mWriteQueue);
+            mScope.execute("reader", this);
+        }
+    }
+
+    /**
+     * Return the scope the connection's tasks run in, or null before
+     * {@link #start(IoEngine)}. Timers belonging to the connection should be
+     * scheduled on it so they stop with the connection.
+     */
+    public synchronized TaskScope getScope() {
+        return mScope;
+    }
+
+    /**
+     * Queue a frame for this peer without blocking.
+     *
+     * @param data     The payload; must not change until sent
+     * @param callback Told once the bytes were sent, or null
+     * @return false if the connection is closed or its write queue is full
+     */
+    public boolean write(byte[] data, WriteQueue.Callback callback) {
+        return mWriteQueue.send(Frame.TYPE_DATA, data, callback);
+    }
+
+    boolean write(int type, byte[] data, WriteQueue.Callback callback) {
+        return mWriteQueue.send(type, data, callback);
+    }
+
+    /**
+     * Queue a frame whose write latency counts from an earlier time, see
+     * {@link WriteQueue#send(int, byte[], WriteQueue.Callback, long)}.
+     */
+    boolean write(int type, byte[] data, long queuedAt) {
+        return mWriteQueue.send(type, data, null, queuedAt);
+    }
+
+    /**
+     * Deflate outgoing data frames from now on, where that pays off. Only
+     * call once the peer said it can inflate them; incoming compressed
+     * frames are always accepted.
+     */
+    void enableCompression() {
+        mWriteQueue.setCompressor(mCompressor);
+    }
+
+    /**
+     * Return the compressor of the connection, which also inflates
+     * messages that arrived deflated in fragments.
+     */
+    FrameCompressor getCompressor() {
+        return mCompressor;
+    }
+
+    /**
+     * Return the {@link System#nanoTime()} the last frame arrived at, or
+     * the connection was made at if none did yet.
+     */
+    long getLastReceivedTime() {
+        return mLastReceivedTime;
+    }
+
+    /**
+     * Drop a link that stopped working without failing, such as one to a
+     * peer gone out of range. The socket is closed, which fails the reader,
+     * and the listener is told the connection was lost for this reason.
+     */
+    void abort(IOException e) {
+        if (mAbortCause == null) {
+            mAbortCause = e;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException ignored) {
+            // The reader fails either way
+        }
+    }
+
+    /**
+     * Close the connection. Pending writes are failed and the listener is
+     * not told about a lost connection.
+     */
+    public void close() throws IOException {
+        mClosed.set(true);
+        try {
+            mSocket.close();
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        mWriteQueue.close();
+        mCompressor.close();
+        mMetrics.onDisconnected(mWriteQueue);
+        TaskScope scope = getScope();
+        if (scope != null) {
+            scope.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+        // Keep listening to the InputStream while connected
+        while (true) {
+            Frame frame;
+            try {
+                // Block until a complete frame has arrived
+                frame = mFrameReader.read();
+                if (frame.getType() == Frame.TYPE_COMPRESSED) {
+                    frame = mCompressor.decompress(frame);
+                }
+            } catch (IOException e) {
+                if (mClosed.compareAndSet(false, true)) {
+                    try {
+                        mSocket.close();
+                    } catch (IOException ignored) {
+                        // The link is gone either way
+                    }
+                    shutdown();
+                    mListener.onConnectionLost(this, mAbortCause != null ? mAbortCause : e);
+                }
+                break;
+            }
+            long now = System.nanoTime();
+            frame.setConnection(this);
+            frame.setReceivedTime(now);
+            mLastReceivedTime = now;
+            mListener.onFrameReceived(this, frame);
+        }
+    }
+
+    @Override
+    public void onWriteComplete(byte[] data) {
+        // Traffic is counted and reported by the session, once per message
+    }
+
+    @Override
+    public void onWriteFailed(byte[] data, IOException e) {
+        mMetrics.onWriteFailed();
+        if (!mClosed.get()) {
+            // The writer has stopped; do not wait for the reader to notice
+            abort(e);
+        }
+        mListener.onWriteFailed(this, data, e);
+    }
+
+    @Override
+    public String toString() {
+        return "Connection[" + mAddress + ", " + mSocketType + "]";
+    }
+}
@@ -0,0 +1,938 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The connection engine behind {@link BluetoothService}. It listens for
+ * incoming connections, runs outgoing connection attempts and keeps a
+ * {@link Connection} per connected device, keyed by remote address.
+ *
+ * The engine only reaches devices through a {@link Transport} and reports
+ * everything through its {@link Listener}, so it has no Android
+ * dependencies and can run against {@link MemoryTransport} or
+ * {@link TcpTransport} on a plain JVM.
+ *
+ * Traffic to a device runs in a {@link Session} that survives dropped
+ * links. The side that connected out reconnects with jittered exponential
+ * backoff, the other side waits, and once the link is back only the frames
+ * the peer has not acknowledged are sent again. The listener only hears
+ * about a lost connection once the session is given up.
+ */
+public class ConnectionManager {
+
+    /**
+     * Receives everything the engine does. Called on the engine's threads.
+     */
+    public interface Listener extends Connection.Listener {
+        void onStateChanged(int oldState, int newState);
+
+        void onConnected(Connection connection);
+
+        void onConnectFailed(String address, IOException e);
+
+        void onListenFailed(boolean secure, IOException e);
+    }
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    // What a write does when a device has no credit left or too many
+    // messages unacknowledged, see Session
+    public static final int SEND_POLICY_FAIL = 0;  // return false right away
+    public static final int SEND_POLICY_BLOCK = 1; // wait, up to the block timeout
+    public static final int SEND_POLICY_DROP = 2;  // drop it and tell the callback
+
+    public static final long DEFAULT_BLOCK_TIMEOUT_MS = 5000;
+
+    // How often connections ping their peer unless told otherwise
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 1000;
+
+    // A piconet has at most seven active peers
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    // Size and number of the recycled buffers used by the read loops
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int READ_BUFFER_COUNT = 64;
+
+    // Two accept tasks, plus a reader, a writer and a connect attempt for
+    // each peer, with room to spare
+    private static final int MAX_IO_THREADS = 32;
+
+    // Reconnect backoff: the n-th attempt waits between half and all of
+    // min(BASE * 2^(n-1), MAX), and the session is given up after the last
+    private static final long RECONNECT_BASE_DELAY_MS = 250;
+    private static final long RECONNECT_MAX_DELAY_MS = 8000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+    // How long the side that was connected to waits for the peer to come
+    // back; longer than the peer's whole reconnect schedule
+    private static final long SESSION_TIMEOUT_MS = 60000;
+
+    // Member fields
+    private final Transport mTransport;
+    private final Listener mListener;
+    private final BufferPool mReadBufferPool;
+    private final IoEngine mEngine;
+    private final Metrics mMetrics = new Metrics();
+    private final ConcurrentHashMap<String, Connection> mConnections =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConnectTask> mConnectTasks =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session> mSessions = new ConcurrentHashMap<>();
+    private final ConnectionStateMachine mState = new ConnectionStateMachine();
+    private final FileTransferManager mFileTransfers;
+    private final ChannelManager mChannels = new ChannelManager();
+    private final Random mRandom = new Random();
+    private AcceptTask mSecureAcceptTask;
+    private AcceptTask mInsecureAcceptTask;
+    private volatile int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile boolean mCompression;
+    private volatile int mSendPolicy = SEND_POLICY_FAIL;
+    private volatile long mBlockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MS;
+    private volatile long mHeartbeatMillis = DEFAULT_HEARTBEAT_INTERVAL_MS;
+
+    /**
+     * Constructor.
+     *
+     * @param transport Opens the sockets
+     * @param listener  Told about state changes, connections and frames
+     */
+    public ConnectionManager(Transport transport, Listener listener) {
+        mTransport = transport;
+        mListener = listener;
+        mReadBufferPool = new BufferPool(READ_BUFFER_SIZE, READ_BUFFER_COUNT);
+        mEngine = new IoEngine(MAX_IO_THREADS);
+        // Chunk frames fit the peer's read buffers
+        mFileTransfers = new FileTransferManager(mEngine, READ_BUFFER_SIZE);
+        mState.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onTransition(int oldState, int newState) {
+                mListener.onStateChanged(oldState, newState);
+            }
+        });
+    }
+
+    public IoEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Return the counters and latency histograms of this manager and every
+     * device it has been connected to.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Add a listener for state transitions, on top of the one given to the
+     * constructor. Listeners are called on the thread making the change.
+     */
+    public void addStateListener(ConnectionStateMachine.Listener listener) {
+        mState.addListener(listener);
+    }
+
+    public void removeStateListener(ConnectionStateMachine.Listener listener) {
+        mState.removeListener(listener);
+    }
+
+    /**
+     * Work out the overall state from the connections, connection attempts
+     * and accept tasks, and publish it if it changed. This is the only place
+     * the state changes. It runs under the manager's lock, so two threads
+     * that changed the registry cannot publish what they saw in the wrong
+     * order and leave a stale state behind; readers never take the lock.
+     */
+    private synchronized void updateState() {
+        int state;
+        if (!mConnections.isEmpty()) {
+            state = STATE_CONNECTED;
+        } else if (!mConnectTasks.isEmpty()) {
+            state = STATE_CONNECTING;
+        } else if (mSecureAcceptTask != null || mInsecureAcceptTask != null) {
+            state = STATE_LISTEN;
+        } else {
+            state = STATE_NONE;
+        }
+        mState.moveTo(state);
+    }
+
+    /**
+     * Return the current connection state. This is STATE_CONNECTED as long
+     * as at least one device is connected.
+     */
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Return the connection state of a single device.
+     *
+     * @param address The remote device address
+     */
+    public int getState(String address) {
+        if (mConnections.containsKey(address)) return STATE_CONNECTED;
+        if (mConnectTasks.containsKey(address)) return STATE_CONNECTING;
+        return mState.get() == STATE_NONE ? STATE_NONE : STATE_LISTEN;
+    }
+
+    /**
+     * Set how many devices may be connected at once. Incoming connections
+     * beyond the limit are refused; existing ones are kept.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Offer to compress data frames on connections made from now on. It is
+     * used where the peer offers it too, and then only for frames that
+     * shrink, see {@link FrameCompressor}.
+     */
+    public void setCompressionEnabled(boolean compression) {
+        mCompression = compression;
+    }
+
+    public boolean isCompressionEnabled() {
+        return mCompression;
+    }
+
+    /**
+     * Choose what a write does when a device is not keeping up: it has no
+     * credit left because its listeners have not consumed what it got, or
+     * too many messages are unacknowledged.
+     *
+     * @param policy             {@link #SEND_POLICY_FAIL},
+     *                           {@link #SEND_POLICY_BLOCK} or
+     *                           {@link #SEND_POLICY_DROP}
+     * @param blockTimeoutMillis How long a blocked write waits at most
+     */
+    public void setSendPolicy(int policy, long blockTimeoutMillis) {
+        mSendPolicy = policy;
+        mBlockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    public int getSendPolicy() {
+        return mSendPolicy;
+    }
+
+    /**
+     * Set how often connections made from now on ping their peer. A peer
+     * that stays silent for {@value Session#MISSED_HEARTBEATS} intervals
+     * plus a margin taken from the round trip time, at most 30 seconds, is
+     * taken for gone and its connection dropped; the session then tries to
+     * reconnect as after any loss. The round trip times are in the metrics.
+     *
+     * @param intervalMillis The interval, or 0 to send no heartbeats and
+     *                       wait for the link itself to fail
+     */
+    public void setHeartbeatInterval(long intervalMillis) {
+        mHeartbeatMillis = intervalMillis;
+    }
+
+    public long getHeartbeatInterval() {
+        return mHeartbeatMillis;
+    }
+
+    /**
+     * Return the connection to a device, or null if it is not connected.
+     *
+     * @param address The remote device address
+     */
+    public Connection getConnection(String address) {
+        return mConnections.get(address);
+    }
+
+    /**
+     * Return a snapshot of all current connections.
+     */
+    public List<Connection> getConnections() {
+        return new ArrayList<>(mConnections.values());
+    }
+
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * Start AcceptTasks to listen for incoming connections. Existing
+     * connections are left alone.
+     */
+    public synchronized void start() {
+        if (mSecureAcceptTask == null) {
+            mSecureAcceptTask = startAcceptTask(true);
+        }
+        if (mInsecureAcceptTask == null) {
+            mInsecureAcceptTask = startAcceptTask(false);
+        }
+        updateState();
+    }
+
+    private AcceptTask startAcceptTask(boolean secure) {
+        ServerSocketWrapper serverSocket;
+        try {
+            serverSocket = mTransport.listen(secure);
+        } catch (IOException e) {
+            mListener.onListenFailed(secure, e);
+            return null;
+        }
+        AcceptTask acceptTask = new AcceptTask(serverSocket, secure);
+        try {
+            acceptTask.start();
+            return acceptTask;
+        } catch (RejectedExecutionException e) {
+            acceptTask.cancel();
+            mListener.onListenFailed(secure, new IOException("No thread available", e));
+            return null;
+        }
+    }
+
+    /**
+     * Start a ConnectTask to initiate a connection to a remote device.
+     * Connections to other devices are not affected.
+     *
+     * @param address The remote device address
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    public synchronized void connect(String address, boolean secure) {
+        // A manual connect takes over from a pending reconnect
+        Session session = mSessions.get(address);
+        if (session != null) {
+            session.cancelTimer();
+        }
+        startConnect(address, secure, false);
+    }
+
+    private void startConnect(String address, boolean secure, boolean reconnect) {
+        mMetrics.onConnectStarted();
+
+        // Cancel any task already attempting to connect to this device
+        ConnectTask connectTask = mConnectTasks.remove(address);
+        if (connectTask != null) {
+            connectTask.cancel();
+        }
+
+        // Replace any connection currently running with this device
+        closeConnection(mConnections.remove(address));
+
+        if (mConnections.size() >= mMaxConnections) {
+            connectionFailed(address, new IOException("Refused, "
+                    + mConnections.size() + " devices connected"), reconnect);
+            return;
+        }
+
+        // Start the task to connect with the given device
+        connectTask = new ConnectTask(address, secure, reconnect);
+        try {
+            connectTask.start();
+        } catch (RejectedExecutionException e) {
+            connectTask.cancel();
+            connectionFailed(address, new IOException("No thread available", e), reconnect);
+            return;
+        }
+        mConnectTasks.put(address, connectTask);
+        updateState();
+    }
+
+    /**
+     * Start a Connection to begin managing a connected socket, and resume
+     * the session with the device over it.
+     *
+     * @param socket      The socket on which the connection was made
+     * @param secure      Socket Security type - Secure (true) , Insecure (false)
+     * @param connectTask The task that connected out, or null for an
+     *                    accepted connection
+     */
+    private synchronized void connected(BluetoothSocketWrapper socket, boolean secure,
+                                        ConnectTask connectTask) {
+        String address = socket.getRemoteDeviceAddress();
+        boolean reconnect = connectTask != null && connectTask.mmReconnect;
+        long connectNanos = connectTask != null ? System.nanoTime() - connectTask.mmStartTime : -1;
+
+        // Cancel any task still attempting to connect to this device
+        ConnectTask pendingTask = mConnectTasks.remove(address);
+        if (pendingTask != null) {
+            pendingTask.cancel();
+        }
+
+        // Replace any connection currently running with this device
+        closeConnection(mConnections.remove(address));
+
+        ConnectionMetrics metrics = mMetrics.forAddress(address);
+        Session session = mSessions.get(address);
+        if (session == null) {
+            session = new Session(address, mEngine, mListener);
+            mSessions.put(address, session);
+            metrics.setSession(session);
+        }
+
+        // Start the connection to manage the socket and perform transmissions.
+        // The session is attached first so the peer's hello cannot arrive
+        // before it.
+        Connection connection = null;
+        try {
+            // A hedged connect may have won with another kind of socket
+            connection = new Connection(socket, socket.isSecure() ? "Secure" : "Insecure",
+                    mReadBufferPool, metrics, mConnectionListener);
+            session.attach(connection, connectTask != null, secure, mCompression);
+            connection.start(mEngine);
+            session.startTimers(connection, mHeartbeatMillis);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            connectionFailed(address, e, reconnect);
+            return;
+        } catch (RejectedExecutionException e) {
+            // The writer may be running already; stop it with the rest
+            if (connection != null) {
+                session.detach(connection);
+                closeConnection(connection);
+            } else {
+                closeQuietly(socket);
+            }
+            connectionFailed(address, new IOException("No thread available", e), reconnect);
+            return;
+        }
+        mConnections.put(address, connection);
+        metrics.onConnected(connection.getWriteQueue(), connectNanos);
+        mMetrics.onConnected(connectNanos);
+        mListener.onConnected(connection);
+        updateState();
+    }
+
+    /**
+     * Drop the connection to a single device, or stop connecting to it.
+     *
+     * @param address The remote device address
+     */
+    public synchronized void disconnect(String address) {
+        ConnectTask connectTask = mConnectTasks.remove(address);
+        if (connectTask != null) {
+            connectTask.cancel();
+        }
+        closeConnection(mConnections.remove(address));
+        Session session = mSessions.remove(address);
+        if (session != null) {
+            IOException e = new IOException("Disconnected");
+            session.close(e);
+            mFileTransfers.onSessionClosed(address, e);
+            mChannels.onSessionClosed(address, e);
+        }
+        updateState();
+    }
+
+    /**
+     * Stop all tasks and drop every connection. The worker threads stay
+     * around for a while so a later start() can reuse them.
+     */
+    public synchronized void stop() {
+        for (ConnectTask connectTask : mConnectTasks.values()) {
+            connectTask.cancel();
+        }
+        mConnectTasks.clear();
+
+        for (Connection connection : mConnections.values()) {
+            closeConnection(connection);
+        }
+        mConnections.clear();
+
+        IOException stopped = new IOException("Stopped");
+        for (Session session : mSessions.values()) {
+            session.close(stopped);
+            mFileTransfers.onSessionClosed(session.getAddress(), stopped);
+            mChannels.onSessionClosed(session.getAddress(), stopped);
+        }
+        mSessions.clear();
+
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
+        }
+
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
+        }
+        updateState();
+    }
+
+    /**
+     * Queue bytes for every connected device in an unsynchronized manner.
+     * This never blocks on a socket; each connection's writer task sends
+     * the bytes in the background, batched together with other pending
+     * messages.
+     *
+     * @param out      The bytes to write; must not change until acknowledged
+     * @param callback Told once each device acknowledged the bytes or the
+     *                 session with it ended, or null
+     * @return false if no device accepted the write
+     * @throws IllegalArgumentException if out is larger than
+     *                                  {@link Session#MAX_MESSAGE_SIZE}
+     * @see #setSendPolicy(int, long)
+     */
+    public boolean write(byte[] out, WriteQueue.Callback callback) {
+        boolean queued = false;
+        for (Session session : mSessions.values()) {
+            queued |= send(session, Session.PRIORITY_INTERACTIVE, out, callback);
+        }
+        return queued;
+    }
+
+    /**
+     * Queue bytes for a single device without waiting for them to be sent.
+     *
+     * @param address  The remote device address
+     * @param out      The bytes to write; must not change until acknowledged
+     * @param callback Told once the device acknowledged the bytes or the
+     *                 session with it ended, or null
+     * @return false if there is no session with the device, or it is not
+     * keeping up and the send policy says to fail. While the device is
+     * reconnecting writes are held back and sent once it is back.
+     * @throws IllegalArgumentException if out is larger than
+     *                                  {@link Session#MAX_MESSAGE_SIZE}
+     * @see #setSendPolicy(int, long)
+     */
+    public boolean write(String address, byte[] out, WriteQueue.Callback callback) {
+        return write(address, out, Session.PRIORITY_INTERACTIVE, callback);
+    }
+
+    /**
+     * Queue bytes for a single device at a priority. Large messages are
+     * sent in fragments, so a bulk message does not hold up interactive
+     * ones queued after it; messages of different priorities may arrive
+     * out of the order they were written in.
+     *
+     * @param address  The remote device address
+     * @param out      The bytes to write; must not change until acknowledged
+     * @param priority {@link Session#PRIORITY_INTERACTIVE} or
+     *                 {@link Session#PRIORITY_BULK}
+     * @param callback Told once the device acknowledged the bytes or the
+     *                 session with it ended, or null
+     * @return false as {@link #write(String, byte[], WriteQueue.Callback)}
+     * @throws IllegalArgumentException if out is larger than
+     *                                  {@link Session#MAX_MESSAGE_SIZE}
+     */
+    public boolean write(String address, byte[] out, int priority,
+                         WriteQueue.Callback callback) {
+        Session session = mSessions.get(address);
+        return session != null && send(session, priority, out, callback);
+    }
+
+    private boolean send(Session session, int priority, byte[] out,
+                         WriteQueue.Callback callback) {
+        switch (mSendPolicy) {
+            case SEND_POLICY_BLOCK:
+                return session.send(Frame.TYPE_DATA, priority, out, callback,
+                        mBlockTimeoutMillis);
+            case SEND_POLICY_DROP:
+                if (session.send(Frame.TYPE_DATA, priority, out, callback)) return true;
+                if (session.isClosed()) return false;
+                if (callback != null) {
+                    callback.onWriteFailed(out, new IOException("Dropped, "
+                            + session.getAddress() + " is not keeping up"));
+                }
+                return true;
+            default:
+                return session.send(Frame.TYPE_DATA, priority, out, callback);
+        }
+    }
+
+    /**
+     * Start sending a file to a device. The file goes in chunks between
+     * the messages, and keeps going across reconnects of the session.
+     *
+     * @param address  The remote device address
+     * @param file     The file to send
+     * @param offset   Where to start, 0 or the offset an earlier transfer
+     *                 of the file got to
+     * @param listener Told about progress and the end of the transfer
+     * @return the transfer, or null if there is no session with the device
+     * @throws IOException if the file cannot be read
+     */
+    public FileTransfer sendFile(String address, File file, long offset,
+                                 FileTransfer.Listener listener) throws IOException {
+        Session session = mSessions.get(address);
+        if (session == null) return null;
+        return mFileTransfers.send(session, file, offset, listener);
+    }
+
+    /**
+     * Set who decides where files offered by devices go. Without one,
+     * every offer is refused.
+     */
+    public void setFileReceiver(FileTransfer.Receiver receiver) {
+        mFileTransfers.setReceiver(receiver);
+    }
+
+    /**
+     * Open a logical channel to a device, sharing the connection with the
+     * messages and the other channels, see {@link Channel}.
+     *
+     * @param address  The remote device address
+     * @param name     Tells the device what the channel is for
+     * @param listener Told when the device accepted or closed the channel,
+     *                 and about its messages
+     * @param executor Runs the listener
+     * @return the channel, or null if there is no session with the device
+     * or it does not support channels
+     */
+    public Channel openChannel(String address, String name, Channel.Listener listener,
+                               Executor executor) {
+        Session session = mSessions.get(address);
+        if (session == null) return null;
+        return mChannels.open(session, name, listener, executor);
+    }
+
+    /**
+     * Set who decides about the channels devices open. Without one, every
+     * channel is refused.
+     *
+     * @param executor Runs the listeners of accepted channels; with a pool
+     *                 a slow listener holds up no other channel
+     */
+    public void setChannelAcceptor(Channel.Acceptor acceptor, Executor executor) {
+        mChannels.setAcceptor(acceptor, executor);
+    }
+
+    /**
+     * Return the session with a device, or null if there is none.
+     */
+    public Session getSession(String address) {
+        return mSessions.get(address);
+    }
+
+    private void connectionFailed(String address, IOException e, boolean reconnect) {
+        mMetrics.onConnectFailed();
+        if (reconnect) {
+            Session session = mSessions.get(address);
+            if (session != null && !session.isAttached()) {
+                scheduleReconnect(session, e);
+            }
+        } else {
+            mListener.onConnectFailed(address, e);
+        }
+
+        // Make sure we are still listening and publish the new state
+        start();
+    }
+
+    /**
+     * A session lost its connection. Reconnect if we made the connection,
+     * otherwise wait for the peer to do so.
+     */
+    private void suspend(final Session session, final IOException e) {
+        if (session.isOutgoing()) {
+            scheduleReconnect(session, e);
+        } else {
+            session.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ConnectionManager.this) {
+                        if (!session.isAttached()) {
+                            endSession(session, e);
+                        }
+                    }
+                }
+            }, SESSION_TIMEOUT_MS);
+        }
+    }
+
+    private void scheduleReconnect(final Session session, IOException e) {
+        int attempt = session.nextReconnectAttempt();
+        if (attempt > MAX_RECONNECT_ATTEMPTS) {
+            endSession(session, e);
+            return;
+        }
+        long ceiling = Math.min(RECONNECT_MAX_DELAY_MS,
+                RECONNECT_BASE_DELAY_MS << Math.min(attempt - 1, 20));
+        long delay = ceiling / 2 + (long) (mRandom.nextDouble() * (ceiling / 2));
+        session.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectionManager.this) {
+                    String address = session.getAddress();
+                    if (mSessions.get(address) == session && !session.isAttached()
+                            && !mConnectTasks.containsKey(address)) {
+                        startConnect(address, session.isSecure(), true);
+                    }
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Give up on a session and tell the listener the connection is lost.
+     */
+    private void endSession(Session session, IOException e) {
+        boolean removed;
+        synchronized (this) {
+            removed = mSessions.remove(session.getAddress(), session);
+        }
+        if (!removed) return;
+        session.close(e);
+        mFileTransfers.onSessionClosed(session.getAddress(), e);
+        mChannels.onSessionClosed(session.getAddress(), e);
+        mListener.onConnectionLost(session.getLastConnection(), e);
+    }
+
+    private void closeConnection(Connection connection) {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // The connection is dropped either way
+        }
+    }
+
+    private static void closeQuietly(BluetoothSocketWrapper socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with it
+        }
+    }
+
+    /**
+     * Keeps the registry up to date and passes events on to the listener.
+     */
+    private final Connection.Listener mConnectionListener = new Connection.Listener() {
+        @Override
+        public void onFrameReceived(Connection connection, Frame frame) {
+            Session session = mSessions.get(connection.getAddress());
+            switch (frame.getType()) {
+                case Frame.TYPE_DATA:
+                case Frame.TYPE_FILE:
+                case Frame.TYPE_CHANNEL:
+                    if (session != null && session.onDataReceived(connection, frame)) {
+                        dispatch(session, frame);
+                        return;
+                    }
+                    break;
+                case Frame.TYPE_FRAGMENT:
+                    if (session != null && session.onDataReceived(connection, frame)) {
+                        Frame message = session.reassemble(frame);
+                        if (message != null) dispatch(session, message);
+                        return;
+                    }
+                    break;
+                case Frame.TYPE_HELLO:
+                    if (session != null) session.onHello(connection, frame);
+                    break;
+                case Frame.TYPE_ACK:
+                    if (session != null) session.onAck(connection, frame);
+                    break;
+                case Frame.TYPE_PING:
+                    if (session != null) session.onPing(connection, frame);
+                    break;
+                default:
+                    // Unknown control frame from a newer peer
+                    break;
+            }
+            frame.recycle();
+        }
+
+        @Override
+        public void onFrameSent(Connection connection, int type, byte[] data) {
+            // The session reports sent messages itself, once each
+        }
+
+        /**
+         * Hand a counted frame to whoever consumes its type.
+         */
+        private void dispatch(Session session, Frame frame) {
+            switch (frame.getType()) {
+                case Frame.TYPE_DATA:
+                    mListener.onFrameReceived(frame.getConnection(), frame);
+                    break;
+                case Frame.TYPE_FILE:
+                    mFileTransfers.onFrameReceived(session, frame);
+                    break;
+                case Frame.TYPE_CHANNEL:
+                    if (ChannelManager.readMessage(frame, false)) {
+                        // The listener and the channel share the frame
+                        frame.retain(1);
+                        mListener.onFrameReceived(frame.getConnection(), frame);
+                        mChannels.onMessageReceived(session, frame);
+                    } else {
+                        mChannels.onFrameReceived(session, frame);
+                    }
+                    break;
+                default:
+                    frame.recycle();
+                    break;
+            }
+        }
+
+        @Override
+        public void onWriteFailed(Connection connection, byte[] data, IOException e) {
+            // Data frames are sent again after reconnecting; the session
+            // only reports them as failed when it is given up
+        }
+
+        @Override
+        public void onConnectionLost(Connection connection, IOException e) {
+            // Only drop it if a newer connection has not taken its place
+            mConnections.remove(connection.getAddress(), connection);
+            Session session = mSessions.get(connection.getAddress());
+            if (session != null && session.detach(connection)) {
+                suspend(session, e);
+            } else if (session == null) {
+                mListener.onConnectionLost(connection, e);
+            }
+
+            // Make sure we are still listening and publish the new state
+            start();
+        }
+    };
+
+    /**
+     * This task runs while listening for incoming connections. It keeps
+     * accepting connections while devices are connected, and runs until
+     * cancelled.
+     */
+    private class AcceptTask implements Runnable {
+        private final ServerSocketWrapper mmServerSocket;
+        private final TaskScope mmScope;
+        private final boolean mmSecure;
+        private final String mmSocketType;
+        private volatile boolean mmCancelled;
+
+        public AcceptTask(ServerSocketWrapper serverSocket, boolean secure) {
+            mmServerSocket = serverSocket;
+            mmSecure = secure;
+            mmSocketType = secure ? "Secure" : "Insecure";
+            mmScope = mEngine.newScope("AcceptTask" + mmSocketType);
+
+            // Closing the server socket is what ends a blocked accept()
+            mmScope.add(serverSocket);
+        }
+
+        public void start() {
+            mmScope.execute("accept", this);
+        }
+
+        public void run() {
+            // Listen to the server socket until cancelled
+            while (!mmCancelled) {
+                BluetoothSocketWrapper socket;
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    socket = mmServerSocket.accept();
+                } catch (IOException e) {
+                    if (!mmCancelled) {
+                        mListener.onListenFailed(mmSecure, e);
+                    }
+                    break;
+                }
+
+                synchronized (ConnectionManager.this) {
+                    if (mmCancelled || mConnections.size() >= mMaxConnections) {
+                        // Either shutting down or at the connection limit.
+                        // Terminate new socket.
+                        closeQuietly(socket);
+                    } else {
+                        // Situation normal. Start the connection.
+                        connected(socket, mmSecure, null);
+                    }
+                }
+            }
+
+            // Let start() open a new server socket if this one failed
+            synchronized (ConnectionManager.this) {
+                if (mSecureAcceptTask == this) {
+                    mSecureAcceptTask = null;
+                } else if (mInsecureAcceptTask == this) {
+                    mInsecureAcceptTask = null;
+                }
+                updateState();
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            mmScope.cancel();
+        }
+    }
+
+    /**
+     * This task runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectTask implements Runnable {
+        private final String mmAddress;
+        private final boolean mmSecure;
+        private final boolean mmReconnect;
+        private final TaskScope mmScope;
+        private volatile boolean mmCancelled;
+        private long mmStartTime;
+
+        public ConnectTask(String address, boolean secure, boolean reconnect) {
+            mmAddress = address;
+            mmSecure = secure;
+            mmReconnect = reconnect;
+            mmScope = mEngine.newScope("ConnectTask" + (secure ? "Secure" : "Insecure"));
+        }
+
+        public void start() {
+            mmStartTime = System.nanoTime();
+            mmScope.execute(mmAddress, this);
+        }
+
+        public void run() {
+            BluetoothSocketWrapper socket;
+            try {
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                socket = mTransport.connect(mmAddress, mmSecure, mmScope);
+            } catch (IOException e) {
+                failed(e);
+                return;
+            } catch (InterruptedException e) {
+                failed(new IOException("Connect to " + mmAddress + " interrupted"));
+                return;
+            }
+
+            synchronized (ConnectionManager.this) {
+                // A newer connect() or a disconnect() took over this device
+                if (mmCancelled) {
+                    closeQuietly(socket);
+                    return;
+                }
+
+                // Reset the ConnectTask because we're done
+                mConnectTasks.remove(mmAddress);
+
+                // Start the connection
+                connected(socket, mmSecure, this);
+            }
+        }
+
+        private void failed(IOException e) {
+            synchronized (ConnectionManager.this) {
+                // Nobody is waiting for this attempt any more
+                if (mmCancelled) return;
+                mConnectTasks.remove(mmAddress);
+            }
+            connectionFailed(mmAddress, e, mmReconnect);
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            mmScope.cancel();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one remote device. They outlive
+ * single connections, so traffic and reconnects add up across the
+ * lifetime of the service. Recording never allocates.
+ */
+public class ConnectionMetrics {
+
+    // Member fields
+    private final String mAddress;
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mMessagesIn = new AtomicLong();
+    private final AtomicLong mMessagesOut = new AtomicLong();
+    private final AtomicLong mWriteFailures = new AtomicLong();
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mCompressedFrames = new AtomicLong();
+    private final AtomicLong mSkippedFrames = new AtomicLong();
+    private final AtomicLong mCompressionInBytes = new AtomicLong();
+    private final AtomicLong mCompressionOutBytes = new AtomicLong();
+    private final AtomicLong mCompressNanos = new AtomicLong();
+    private final AtomicLong mDecompressNanos = new AtomicLong();
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+    private final LatencyHistogram mDispatchLag = new LatencyHistogram();
+    private final LatencyHistogram mRtt = new LatencyHistogram();
+    // Smoothed round trip time and its mean deviation, as in RFC 6298;
+    // guarded by the metrics
+    private long mSmoothedRttNanos = -1;
+    private long mRttJitterNanos;
+    private volatile long mLastConnectNanos = -1;
+    private volatile WriteQueue mWriteQueue;
+    private volatile Session mSession;
+
+    ConnectionMetrics(String address) {
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Record that the consumer of a received frame got to it, e.g. in the
+     * listener the frame is delivered to. Call before recycling.
+     */
+    public void onFrameDispatched(Frame frame) {
+        mDispatchLag.record(System.nanoTime() - frame.getReceivedTime());
+    }
+
+    /**
+     * @param writeQueue  The queue of the new connection, read for the
+     *                    queue depth gauge
+     * @param connectNanos How long connecting took, or -1 if the remote
+     *                     device connected to us
+     */
+    void onConnected(WriteQueue writeQueue, long connectNanos) {
+        mConnects.incrementAndGet();
+        mWriteQueue = writeQueue;
+        if (connectNanos >= 0) {
+            mLastConnectNanos = connectNanos;
+        }
+    }
+
+    /**
+     * @param session The session with the device, read for the queue depth
+     *                gauge
+     */
+    void setSession(Session session) {
+        mSession = session;
+    }
+
+    void onDisconnected(WriteQueue writeQueue) {
+        if (mWriteQueue == writeQueue) {
+            mWriteQueue = null;
+        }
+    }
+
+    /**
+     * A message of a sequenced type arrived, counted once however it was
+     * cut up or compressed on the way.
+     */
+    void onFrameReceived(int length) {
+        mMessagesIn.incrementAndGet();
+        mBytesIn.addAndGet(length);
+    }
+
+    /**
+     * The peer acknowledged a message of a sequenced type; retransmitting
+     * it does not count again.
+     */
+    void onFrameSent(int length) {
+        mMessagesOut.incrementAndGet();
+        mBytesOut.addAndGet(length);
+    }
+
+    void onWriteFailed() {
+        mWriteFailures.incrementAndGet();
+    }
+
+    /**
+     * @param length     The size of the payload that was deflated
+     * @param sentLength What went on the wire instead; length itself if
+     *                   compressing was not worth it
+     * @param nanos      How long deflating took
+     */
+    void onCompressed(int length, int sentLength, long nanos) {
+        if (sentLength < length) mCompressedFrames.incrementAndGet();
+        mCompressionInBytes.addAndGet(length);
+        mCompressionOutBytes.addAndGet(sentLength);
+        mCompressNanos.addAndGet(nanos);
+    }
+
+    /**
+     * A frame was sent as it is without trying to deflate it, because the
+     * ones before it did not compress.
+     */
+    void onCompressionSkipped(int length) {
+        mSkippedFrames.incrementAndGet();
+        mCompressionInBytes.addAndGet(length);
+        mCompressionOutBytes.addAndGet(length);
+    }
+
+    void onDecompressed(long nanos) {
+        mDecompressNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Record the time a heartbeat took to be answered.
+     */
+    synchronized void onRttSample(long nanos) {
+        mRtt.record(nanos);
+        if (mSmoothedRttNanos < 0) {
+            mSmoothedRttNanos = nanos;
+            mRttJitterNanos = nanos / 2;
+        } else {
+            mRttJitterNanos += (Math.abs(mSmoothedRttNanos - nanos) - mRttJitterNanos) / 4;
+            mSmoothedRttNanos += (nanos - mSmoothedRttNanos) / 8;
+        }
+    }
+
+    /**
+     * Return the smoothed round trip time, or -1 before the first heartbeat
+     * was answered.
+     */
+    synchronized long getSmoothedRttNanos() {
+        return mSmoothedRttNanos;
+    }
+
+    synchronized long getRttJitterNanos() {
+        return mRttJitterNanos;
+    }
+
+    long getConnects() {
+        return mConnects.get();
+    }
+
+    /**
+     * Return the histogram the write queue records time-to-socket into,
+     * counted from when the session took the message.
+     */
+    LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    public Snapshot snapshot() {
+        WriteQueue writeQueue = mWriteQueue;
+        Session session = mSession;
+        // Frames in the write queue are counted by the session as sent
+        int depth = session != null ? session.getUnackedCount()
+                : writeQueue != null ? writeQueue.size() : 0;
+        return new Snapshot(this, writeQueue != null, depth);
+    }
+
+    /**
+     * The metrics of one device at one point in time.
+     */
+    public static class Snapshot {
+        private final String mAddress;
+        private final boolean mConnected;
+        private final long mBytesIn;
+        private final long mBytesOut;
+        private final long mMessagesIn;
+        private final long mMessagesOut;
+        private final long mWriteFailures;
+        private final long mReconnects;
+        private final long mLastConnectNanos;
+        private final long mCompressedFrames;
+        private final long mSkippedFrames;
+        private final long mCompressionInBytes;
+        private final long mCompressionOutBytes;
+        private final long mCompressNanos;
+        private final long mDecompressNanos;
+        private final int mWriteQueueDepth;
+        private final LatencyHistogram.Snapshot mWriteLatency;
+        private final LatencyHistogram.Snapshot mDispatchLag;
+        private final long mSmoothedRttNanos;
+        private final long mRttJitterNanos;
+        private final LatencyHistogram.Snapshot mRtt;
+
+        Snapshot(ConnectionMetrics metrics, boolean connected, int writeQueueDepth) {
+            mAddress = metrics.mAddress;
+            mConnected = connected;
+            mBytesIn = metrics.mBytesIn.get();
+            mBytesOut = metrics.mBytesOut.get();
+            mMessagesIn = metrics.mMessagesIn.get();
+            mMessagesOut = metrics.mMessagesOut.get();
+            mWriteFailures = metrics.mWriteFailures.get();
+            mReconnects = Math.max(0, metrics.mConnects.get() - 1);
+            mLastConnectNanos = metrics.mLastConnectNanos;
+            mCompressedFrames = metrics.mCompressedFrames.get();
+            mSkippedFrames = metrics.mSkippedFrames.get();
+            mCompressionInBytes = metrics.mCompressionInBytes.get();
+            mCompressionOutBytes = metrics.mCompressionOutBytes.get();
+            mCompressNanos = metrics.mCompressNanos.get();
+            mDecompressNanos = metrics.mDecompressNanos.get();
+            mWriteQueueDepth = writeQueueDepth;
+            mWriteLatency = metrics.mWriteLatency.snapshot();
+            mDispatchLag = metrics.mDispatchLag.snapshot();
+            synchronized (metrics) {
+                mSmoothedRttNanos = metrics.mSmoothedRttNanos;
+                mRttJitterNanos = metrics.mRttJitterNanos;
+            }
+            mRtt = metrics.mRtt.snapshot();
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        /**
+         * Return the payload bytes of the data, file and channel messages
+         * received; control frames are not counted.
+         */
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        /**
+         * Return the payload bytes of the messages the peer acknowledged,
+         * each counted once however often it was sent.
+         */
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        public long getMessagesIn() {
+            return mMessagesIn;
+        }
+
+        public long getMessagesOut() {
+            return mMessagesOut;
+        }
+
+        public long getWriteFailures() {
+            return mWriteFailures;
+        }
+
+        /**
+         * Return how often the device connected again after the first time.
+         */
+        public long getReconnects() {
+            return mReconnects;
+        }
+
+        /**
+         * Return how long the last outgoing connect took, or -1 if we never
+         * connected out to this device.
+         */
+        public long getLastConnectNanos() {
+            return mLastConnectNanos;
+        }
+
+        /**
+         * Return the number of data frames that went out compressed.
+         */
+        public long getCompressedFrames() {
+            return mCompressedFrames;
+        }
+
+        /**
+         * Return the number of frames sent as they were without trying to
+         * compress them, because the ones before did not compress.
+         */
+        public long getSkippedFrames() {
+            return mSkippedFrames;
+        }
+
+        /**
+         * Return the bytes on the wire per byte of payload, over all frames
+         * large enough to be considered for compression; 1 if there were
+         * none. Below 1 means compression saved bandwidth.
+         */
+        public double getCompressionRatio() {
+            return mCompressionInBytes == 0 ? 1
+                    : (double) mCompressionOutBytes / mCompressionInBytes;
+        }
+
+        /**
+         * Return the time spent deflating outgoing frames.
+         */
+        public long getCompressNanos() {
+            return mCompressNanos;
+        }
+
+        /**
+         * Return the time spent inflating incoming frames.
+         */
+        public long getDecompressNanos() {
+            return mDecompressNanos;
+        }
+
+        /**
+         * Return the number of messages waiting in the session to be
+         * written, also while not connected, plus the frames written but
+         * not acknowledged yet.
+         */
+        public int getWriteQueueDepth() {
+            return mWriteQueueDepth;
+        }
+
+        /**
+         * Return the time from write() until the message reached the
+         * socket, including the wait in the session's priority lanes.
+         */
+        public LatencyHistogram.Snapshot getWriteLatency() {
+            return mWriteLatency;
+        }
+
+        /**
+         * Return the time from a frame being read until its consumer
+         * dispatched it.
+         */
+        public LatencyHistogram.Snapshot getDispatchLag() {
+            return mDispatchLag;
+        }
+
+        /**
+         * Return the smoothed round trip time of heartbeats, or -1 if none
+         * was answered yet.
+         */
+        public long getSmoothedRttNanos() {
+            return mSmoothedRttNanos;
+        }
+
+        /**
+         * Return how much the round trip time varies, the mean deviation
+         * from the smoothed one.
+         */
+        public long getRttJitterNanos() {
+            return mRttJitterNanos;
+        }
+
+        /**
+         * Return the round trip times of heartbeats.
+         */
+        public LatencyHistogram.Snapshot getRtt() {
+            return mRtt;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + (mConnected ? " connected" : " disconnected")
+                    + " in=" + mMessagesIn + "/" + mBytesIn + "B"
+                    + " out=" + mMessagesOut + "/" + mBytesOut + "B"
+                    + " failures=" + mWriteFailures + " reconnects=" + mReconnects
+                    + " queue=" + mWriteQueueDepth
+                    + String.format(Locale.US, " deflate=%d/%d ratio=%.3f cpu=%d/%dus",
+                    mCompressedFrames, mSkippedFrames, getCompressionRatio(),
+                    mCompressNanos / 1000, mDecompressNanos / 1000)
+                    + " write=[" + mWriteLatency + "] dispatch=[" + mDispatchLag + "]"
+                    + String.format(Locale.US, " srtt=%dus jitter=%dus", mSmoothedRttNanos / 1000,
+                    mRttJitterNanos / 1000);
+        }
+    }
+}
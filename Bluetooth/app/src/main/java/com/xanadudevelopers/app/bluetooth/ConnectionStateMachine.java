@@ -0,0 +1,125 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.xanadudevelopers.app.bluetooth.ConnectionManager.STATE_CONNECTED;
+import static com.xanadudevelopers.app.bluetooth.ConnectionManager.STATE_CONNECTING;
+import static com.xanadudevelopers.app.bluetooth.ConnectionManager.STATE_LISTEN;
+import static com.xanadudevelopers.app.bluetooth.ConnectionManager.STATE_NONE;
+
+/**
+ * The overall state of a {@link ConnectionManager}, one of the STATE_
+ * constants. Reading the state is a single volatile read and never waits
+ * on a lock. Changing it is a compare-and-set against a table of allowed
+ * transitions, and every transition is told to the listeners on the thread
+ * that made it.
+ */
+public class ConnectionStateMachine {
+
+    /**
+     * Told about every state change.
+     */
+    public interface Listener {
+        void onTransition(int oldState, int newState);
+    }
+
+    // ALLOWED[from][to]; a device is only ever connected after we listened
+    // for it or went out to connect to it
+    private static final boolean[][] ALLOWED = new boolean[4][4];
+
+    static {
+        allow(STATE_NONE, STATE_LISTEN, STATE_CONNECTING);
+        allow(STATE_LISTEN, STATE_NONE, STATE_CONNECTING, STATE_CONNECTED);
+        allow(STATE_CONNECTING, STATE_NONE, STATE_LISTEN, STATE_CONNECTED);
+        allow(STATE_CONNECTED, STATE_NONE, STATE_LISTEN, STATE_CONNECTING);
+    }
+
+    // Member fields
+    private final AtomicInteger mState = new AtomicInteger(STATE_NONE);
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private static void allow(int from, int... to) {
+        for (int state : to) {
+            ALLOWED[from][state] = true;
+        }
+    }
+
+    /**
+     * Return whether the table allows going from one state to another.
+     * Staying in the same state is always allowed.
+     */
+    public static boolean isAllowed(int from, int to) {
+        return from == to || ALLOWED[from][to];
+    }
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * Move from an expected state to a new one.
+     *
+     * @return false if the state was no longer the expected one
+     * @throws IllegalStateException if the transition is not in the table
+     */
+    private boolean transition(int expected, int state) {
+        if (!isAllowed(expected, state)) {
+            throw new IllegalStateException("Illegal state transition "
+                    + name(expected) + " -> " + name(state));
+        }
+        if (expected == state) {
+            return mState.get() == state;
+        }
+        if (!mState.compareAndSet(expected, state)) {
+            return false;
+        }
+        for (Listener listener : mListeners) {
+            listener.onTransition(expected, state);
+        }
+        return true;
+    }
+
+    /**
+     * Move to a new state from whatever the current one is.
+     *
+     * @return the state before the move
+     * @throws IllegalStateException if the transition is not in the table
+     */
+    public int moveTo(int state) {
+        while (true) {
+            int current = mState.get();
+            if (current == state || transition(current, state)) {
+                return current;
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public static String name(int state) {
+        switch (state) {
+            case STATE_NONE:
+                return "NONE";
+            case STATE_LISTEN:
+                return "LISTEN";
+            case STATE_CONNECTING:
+                return "CONNECTING";
+            case STATE_CONNECTED:
+                return "CONNECTED";
+            default:
+                return Integer.toString(state);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name(get());
+    }
+}
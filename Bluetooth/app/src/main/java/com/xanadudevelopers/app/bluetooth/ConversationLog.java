@@ -0,0 +1,266 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * The lines of a conversation, however long it gets, in bounded memory.
+ *
+ * The most recent lines are kept in a ring. Every line is also appended to
+ * segment files on disk, {@link #SEGMENT_SIZE} lines each, and lines that
+ * dropped out of the ring are read back a whole segment at a time when
+ * asked for. Only a few such pages are cached. Loading happens on the
+ * I/O executor, so {@link #get(int)} never blocks: it returns null for a
+ * line that is not loaded yet and the listener hears once it is.
+ *
+ * All disk access runs on the one I/O executor, in order, so a page is
+ * only read after everything in it was written.
+ */
+public class ConversationLog {
+
+    /**
+     * Told about lines that were paged in. Called on the I/O executor.
+     */
+    public interface Listener {
+        void onLinesLoaded();
+    }
+
+    // Lines per segment file, and so per page read back
+    static final int SEGMENT_SIZE = 256;
+    // Pages of older lines kept in memory
+    private static final int MAX_PAGES = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Member fields
+    private final File mDirectory;
+    private final Executor mIoExecutor;
+    private final Listener mListener;
+    private final String[] mRing;
+    private int mCount;
+    private final Set<Integer> mLoading = new HashSet<>();
+    private final LinkedHashMap<Integer, String[]> mPages =
+            new LinkedHashMap<Integer, String[]>(MAX_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+    // Bumped by clear() so loads started before it are dropped
+    private int mGeneration;
+
+    // Only touched on the I/O executor
+    private DataOutputStream mOut;
+    private int mOutSegment = -1;
+
+    /**
+     * Constructor. Segments left in the directory by an earlier log are
+     * deleted.
+     *
+     * @param directory    Where the segment files go; created if missing
+     * @param ringCapacity How many recent lines are kept in memory
+     * @param ioExecutor   Runs all disk access; must run tasks one at a
+     *                     time in order, like a single thread executor
+     * @param listener     Told when lines were paged in
+     */
+    public ConversationLog(File directory, int ringCapacity, Executor ioExecutor,
+                           Listener listener) {
+        mDirectory = directory;
+        mRing = new String[ringCapacity];
+        mIoExecutor = ioExecutor;
+        mListener = listener;
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteSegments();
+            }
+        });
+    }
+
+    /**
+     * Return the number of lines in the conversation.
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Add a line at the end.
+     */
+    public void append(final String line) {
+        final int index;
+        synchronized (this) {
+            index = mCount++;
+            mRing[index % mRing.length] = line;
+        }
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(index, line);
+            }
+        });
+    }
+
+    /**
+     * Return a line, or null if it is on disk and still being loaded. The
+     * listener is told once it can be had.
+     *
+     * @throws IndexOutOfBoundsException if there is no such line
+     */
+    public synchronized String get(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Line " + index + " of " + mCount);
+        }
+        if (index >= mCount - mRing.length) {
+            return mRing[index % mRing.length];
+        }
+        Integer segment = index / SEGMENT_SIZE;
+        String[] page = mPages.get(segment);
+        if (page != null) {
+            return page[index % SEGMENT_SIZE];
+        }
+        if (mLoading.add(segment)) {
+            load(segment, mGeneration);
+        }
+        return null;
+    }
+
+    /**
+     * Forget every line, in memory and on disk.
+     */
+    public void clear() {
+        synchronized (this) {
+            mCount = 0;
+            mGeneration++;
+            Arrays.fill(mRing, null);
+            mPages.clear();
+            mLoading.clear();
+        }
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeSegment();
+                deleteSegments();
+            }
+        });
+    }
+
+    /**
+     * Clear the log and release its file. The I/O executor can be shut
+     * down afterwards; tasks already queued on it still need to run.
+     */
+    public void close() {
+        clear();
+    }
+
+    private void load(final int segment, final int generation) {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String[] page = new String[SEGMENT_SIZE];
+                try {
+                    read(segment, page);
+                } catch (IOException e) {
+                    // Leave what could not be read empty rather than
+                    // asking for it again and again
+                }
+                synchronized (ConversationLog.this) {
+                    if (generation != mGeneration) return;
+                    mLoading.remove(segment);
+                    for (int i = 0; i < page.length; i++) {
+                        if (page[i] == null) page[i] = "";
+                    }
+                    mPages.put(segment, page);
+                }
+                mListener.onLinesLoaded();
+            }
+        });
+    }
+
+    private void write(int index, String line) {
+        int segment = index / SEGMENT_SIZE;
+        try {
+            if (segment != mOutSegment) {
+                closeSegment();
+                mOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(segmentFile(segment))));
+                mOutSegment = segment;
+            }
+            byte[] bytes = line.getBytes(UTF_8);
+            mOut.writeInt(bytes.length);
+            mOut.write(bytes);
+        } catch (IOException e) {
+            // The line stays in the ring for now and reads back empty later
+            closeSegment();
+        }
+    }
+
+    private void read(int segment, String[] page) throws IOException {
+        if (segment == mOutSegment && mOut != null) {
+            // The segment is still being written
+            mOut.flush();
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segmentFile(segment))));
+        try {
+            for (int i = 0; i < page.length; i++) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                page[i] = new String(bytes, UTF_8);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void closeSegment() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+                // Nothing left to do with it
+            }
+            mOut = null;
+        }
+        mOutSegment = -1;
+    }
+
+    private void deleteSegments() {
+        if (!mDirectory.isDirectory()) {
+            mDirectory.mkdirs();
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().endsWith(".seg")) {
+                file.delete();
+            }
+        }
+    }
+
+    private File segmentFile(int segment) {
+        return new File(mDirectory, String.format(Locale.US, "%08d.seg", segment));
+    }
+}
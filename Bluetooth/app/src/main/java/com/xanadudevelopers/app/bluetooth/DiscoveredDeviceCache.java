@@ -0,0 +1,152 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the devices discovery found recently, so the device dialog
+ * can list them the moment it opens instead of after a full inquiry.
+ * Entries are kept in SharedPreferences and survive restarts; they expire
+ * a while after the device was last seen, and only the most recently seen
+ * ones are kept.
+ */
+public class DiscoveredDeviceCache {
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    public static final int MAX_ENTRIES = 64;
+
+    // The signal strength of a device found without one
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    // Member fields
+    private final SharedPreferences mPreferences;
+    private final long mTtlMillis;
+
+    /**
+     * Constructor, with entries expiring after {@link #DEFAULT_TTL_MILLIS}.
+     *
+     * @param preferences Where entries are stored; the cache owns all keys
+     */
+    public DiscoveredDeviceCache(SharedPreferences preferences) {
+        this(preferences, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param preferences Where entries are stored; the cache owns all keys
+     * @param ttlMillis   How long after a device was last seen it is dropped
+     */
+    public DiscoveredDeviceCache(SharedPreferences preferences, long ttlMillis) {
+        mPreferences = preferences;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Return what is known about a device, or null if it was not seen
+     * recently.
+     */
+    public Entry get(String address) {
+        Entry entry = parse(address, mPreferences.getString(address, null));
+        if (entry == null || isExpired(entry, System.currentTimeMillis())) return null;
+        return entry;
+    }
+
+    /**
+     * Return every device seen recently, the most recently seen first.
+     * Expired entries are deleted on the way.
+     */
+    public List<Entry> getAll() {
+        long now = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>();
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> pref : mPreferences.getAll().entrySet()) {
+            Object value = pref.getValue();
+            Entry entry = value instanceof String ? parse(pref.getKey(), (String) value) : null;
+            if (entry == null || isExpired(entry, now)) {
+                if (editor == null) editor = mPreferences.edit();
+                editor.remove(pref.getKey());
+            } else {
+                entries.add(entry);
+            }
+        }
+        if (editor != null) editor.apply();
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.lastSeen < b.lastSeen ? 1 : a.lastSeen > b.lastSeen ? -1 : 0;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Remember a device, replacing what was known about it. If that makes
+     * too many, the ones seen longest ago are dropped.
+     */
+    public void put(Entry entry) {
+        mPreferences.edit()
+                .putString(entry.address, entry.lastSeen + "," + entry.rssi + ","
+                        + entry.deviceClass + "," + (entry.name != null ? entry.name : ""))
+                .apply();
+        if (mPreferences.getAll().size() > MAX_ENTRIES) {
+            List<Entry> entries = getAll();
+            SharedPreferences.Editor editor = mPreferences.edit();
+            for (int i = MAX_ENTRIES; i < entries.size(); i++) {
+                editor.remove(entries.get(i).address);
+            }
+            editor.apply();
+        }
+    }
+
+    public void remove(String address) {
+        mPreferences.edit().remove(address).apply();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.lastSeen > mTtlMillis;
+    }
+
+    private static Entry parse(String address, String value) {
+        if (value == null) return null;
+        // The name goes last since it may contain commas
+        String[] parts = value.split(",", 4);
+        try {
+            return new Entry(address, parts[3].isEmpty() ? null : parts[3],
+                    Integer.parseInt(parts[2]), Short.parseShort(parts[1]),
+                    Long.parseLong(parts[0]));
+        } catch (RuntimeException e) {
+            // Written by an older version; treated as expired
+            return null;
+        }
+    }
+
+    /**
+     * One device as last seen.
+     */
+    public static class Entry {
+        public final String address;
+        // The friendly name, or null if the device did not tell
+        public final String name;
+        // The BluetoothClass device class, or 0 if unknown
+        public final int deviceClass;
+        // The signal strength in dBm, or RSSI_UNKNOWN
+        public final short rssi;
+        // When the device was last seen, in milliseconds since the epoch
+        public final long lastSeen;
+
+        public Entry(String address, String name, int deviceClass, short rssi, long lastSeen) {
+            this.address = address;
+            this.name = name;
+            this.deviceClass = deviceClass;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The devices found by discovery, one row per address, ready to be shown.
+ *
+ * Discovery reports the same device again and again, and in a busy place
+ * hundreds of them. Reports go into a map keyed by address, so each is
+ * one lookup; a report that changes nothing shown is dropped. The text of
+ * a row is built once when the row changes rather than on every bind.
+ * Changes are not handed on one by one: the first change schedules a
+ * publish on the executor, and everything that changed until it runs goes
+ * out as one sorted snapshot. With a {@link DisplayFrameExecutor} that is
+ * at most one list update per display frame.
+ */
+public class DiscoveryIndex {
+
+    /**
+     * Gets the rows after changes. Called on the publish executor.
+     */
+    public interface Listener {
+        /**
+         * @param rows Every row, in order; the array is not changed later
+         */
+        void onRowsChanged(Row[] rows);
+    }
+
+    // Orderings
+    public static final int ORDER_RSSI = 0;    // strongest signal first
+    public static final int ORDER_RECENCY = 1; // most recently seen first
+
+    private static final Row[] NO_ROWS = new Row[0];
+
+    // Member fields
+    private final Executor mPublishExecutor;
+    private final Listener mListener;
+    private final Map<String, Row> mRows = new HashMap<>();
+    private int mOrder;
+    private boolean mScheduled;
+
+    private final Runnable mPublish = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param order           {@link #ORDER_RSSI} or {@link #ORDER_RECENCY}
+     * @param publishExecutor Runs the listener, normally a
+     *                        {@link DisplayFrameExecutor}
+     * @param listener        Gets the rows
+     */
+    public DiscoveryIndex(int order, Executor publishExecutor, Listener listener) {
+        mOrder = order;
+        mPublishExecutor = publishExecutor;
+        mListener = listener;
+    }
+
+    /**
+     * Add a device or update what is known about it. A name or signal
+     * strength missing from the report is taken from the earlier one.
+     */
+    public synchronized void upsert(DiscoveredDeviceCache.Entry entry) {
+        Row old = mRows.get(entry.address);
+        if (old != null) {
+            DiscoveredDeviceCache.Entry known = old.entry;
+            entry = new DiscoveredDeviceCache.Entry(entry.address,
+                    entry.name != null ? entry.name : known.name,
+                    entry.deviceClass != 0 ? entry.deviceClass : known.deviceClass,
+                    entry.rssi != DiscoveredDeviceCache.RSSI_UNKNOWN ? entry.rssi : known.rssi,
+                    Math.max(entry.lastSeen, known.lastSeen));
+        }
+        Row row = new Row(entry, System.currentTimeMillis());
+        if (old != null && old.text.equals(row.text) && (mOrder == ORDER_RSSI
+                ? old.entry.rssi == row.entry.rssi
+                : old.entry.lastSeen == row.entry.lastSeen)) {
+            // Neither the text nor the place of the row changed
+            return;
+        }
+        mRows.put(entry.address, row);
+        schedule();
+    }
+
+    public synchronized void remove(String address) {
+        if (mRows.remove(address) != null) {
+            schedule();
+        }
+    }
+
+    public synchronized void setOrder(int order) {
+        if (mOrder == order) return;
+        mOrder = order;
+        schedule();
+    }
+
+    public synchronized int size() {
+        return mRows.size();
+    }
+
+    private void schedule() {
+        if (mScheduled) return;
+        mScheduled = true;
+        mPublishExecutor.execute(mPublish);
+    }
+
+    private void publish() {
+        Row[] rows;
+        int order;
+        synchronized (this) {
+            mScheduled = false;
+            rows = mRows.isEmpty() ? NO_ROWS : mRows.values().toArray(new Row[mRows.size()]);
+            order = mOrder;
+        }
+        Arrays.sort(rows, order == ORDER_RSSI ? BY_RSSI : BY_RECENCY);
+        mListener.onRowsChanged(rows);
+    }
+
+    private static final Comparator<Row> BY_RECENCY = new Comparator<Row>() {
+        @Override
+        public int compare(Row a, Row b) {
+            long x = a.entry.lastSeen;
+            long y = b.entry.lastSeen;
+            return x < y ? 1 : x > y ? -1 : a.entry.address.compareTo(b.entry.address);
+        }
+    };
+
+    private static final Comparator<Row> BY_RSSI = new Comparator<Row>() {
+        @Override
+        public int compare(Row a, Row b) {
+            // RSSI_UNKNOWN is the smallest short, so those come last
+            int x = a.entry.rssi;
+            int y = b.entry.rssi;
+            return x < y ? 1 : x > y ? -1 : BY_RECENCY.compare(a, b);
+        }
+    };
+
+    /**
+     * One device as shown in a list.
+     */
+    public static final class Row {
+        public final DiscoveredDeviceCache.Entry entry;
+        // The name, address, signal strength and age, as shown
+        public final String text;
+
+        /**
+         * @param entry The device
+         * @param now   The time the age in the text is counted to
+         */
+        public Row(DiscoveredDeviceCache.Entry entry, long now) {
+            this.entry = entry;
+            this.text = describe(entry, now);
+        }
+
+        private static String describe(DiscoveredDeviceCache.Entry entry, long now) {
+            StringBuilder text = new StringBuilder();
+            text.append(entry.name != null ? entry.name : entry.address)
+                    .append('\n').append(entry.address);
+            if (entry.rssi != DiscoveredDeviceCache.RSSI_UNKNOWN) {
+                text.append("  ").append(entry.rssi).append(" dBm");
+            }
+            // Say how old an entry is until discovery sees the device again
+            long minutes = entry.lastSeen > 0
+                    ? TimeUnit.MILLISECONDS.toMinutes(now - entry.lastSeen)
+                    : 0;
+            if (minutes > 0) {
+                text.append("  seen ").append(minutes).append(" min ago");
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the UI thread at the start of the next display frame, all
+ * of them in one go. Listeners of the {@link EventBus} added with it are
+ * called at most once per vsync however fast data arrives, so the UI does
+ * its work, and the relayout that follows, once per frame.
+ */
+public class DisplayFrameExecutor implements Executor, Choreographer.FrameCallback {
+
+    // Member fields
+    private final Choreographer mChoreographer;
+    private ArrayDeque<Runnable> mPending = new ArrayDeque<>();
+    private ArrayDeque<Runnable> mRunning = new ArrayDeque<>();
+    private boolean mScheduled;
+
+    /**
+     * Constructor. Must be called on the UI thread, whose Choreographer
+     * paces the tasks.
+     */
+    public DisplayFrameExecutor() {
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Run a task with the next display frame. May be called from any thread.
+     */
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            mPending.add(task);
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        mChoreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        ArrayDeque<Runnable> tasks;
+        synchronized (this) {
+            tasks = mPending;
+            mPending = mRunning;
+            mRunning = tasks;
+            mScheduled = false;
+        }
+        // Tasks queued from here on wait for the next frame
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands what happens on the connections to any number of listeners, each
+ * on the {@link Executor} it chose: the UI thread, a background thread for
+ * a logger or recorder, or the posting thread itself.
+ *
+ * Every listener has a queue of its own. Posting puts a pooled event in
+ * each queue and, if the listener is not already due to run, gives its
+ * executor one task that drains the queue. Consecutive frames are
+ * delivered together as one {@link FrameBatch}, so a listener on a slow
+ * thread gets larger batches instead of falling further behind, and one
+ * on a {@link DisplayFrameExecutor} is called at most once per display
+ * frame. Events keep their order per listener. In the steady state
+ * posting allocates nothing.
+ */
+public class EventBus {
+
+    /**
+     * Receives events on the executor it was added with. Calls to one
+     * listener never overlap.
+     */
+    public interface Listener {
+        void onStateChanged(int oldState, int newState);
+
+        void onDeviceConnected(String address, String name);
+
+        void onConnectFailed(String address);
+
+        /**
+         * The device is gone for good, after any reconnect attempts.
+         */
+        void onConnectionLost(String address);
+
+        /**
+         * Frames sent and received since the last call, in order. The batch
+         * and its frames are only valid during the call; they are recycled
+         * afterwards.
+         */
+        void onFrames(FrameBatch frames);
+    }
+
+    /**
+     * A listener that ignores everything; override what is needed.
+     */
+    public static class SimpleListener implements Listener {
+        @Override
+        public void onStateChanged(int oldState, int newState) {
+        }
+
+        @Override
+        public void onDeviceConnected(String address, String name) {
+        }
+
+        @Override
+        public void onConnectFailed(String address) {
+        }
+
+        @Override
+        public void onConnectionLost(String address) {
+        }
+
+        @Override
+        public void onFrames(FrameBatch frames) {
+        }
+    }
+
+    // Event types
+    private static final int EVENT_STATE_CHANGED = 0;
+    private static final int EVENT_DEVICE_CONNECTED = 1;
+    private static final int EVENT_CONNECT_FAILED = 2;
+    private static final int EVENT_CONNECTION_LOST = 3;
+    private static final int EVENT_FRAME = 4;
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    // Replaced, never changed, so posting can walk it without a lock
+    private volatile Subscriber[] mSubscribers = NO_SUBSCRIBERS;
+
+    /**
+     * Add a listener.
+     *
+     * @param listener The listener
+     * @param executor Runs the listener; it must run tasks one after the
+     *                 other or not at all at the same time for a listener,
+     *                 which any executor does given one task at a time
+     */
+    public synchronized void addListener(Listener listener, Executor executor) {
+        Subscriber[] subscribers = new Subscriber[mSubscribers.length + 1];
+        System.arraycopy(mSubscribers, 0, subscribers, 0, mSubscribers.length);
+        subscribers[mSubscribers.length] = new Subscriber(listener, executor);
+        mSubscribers = subscribers;
+    }
+
+    /**
+     * Remove a listener. Events already queued for it are still delivered.
+     */
+    public synchronized void removeListener(Listener listener) {
+        Subscriber[] current = mSubscribers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].mmListener == listener) {
+                Subscriber[] subscribers = new Subscriber[current.length - 1];
+                System.arraycopy(current, 0, subscribers, 0, i);
+                System.arraycopy(current, i + 1, subscribers, i, current.length - i - 1);
+                mSubscribers = subscribers.length == 0 ? NO_SUBSCRIBERS : subscribers;
+                return;
+            }
+        }
+    }
+
+    public void postStateChanged(int oldState, int newState) {
+        for (Subscriber subscriber : mSubscribers) {
+            Event event = Event.obtain(EVENT_STATE_CHANGED);
+            event.mArg1 = oldState;
+            event.mArg2 = newState;
+            subscriber.post(event);
+        }
+    }
+
+    public void postDeviceConnected(String address, String name) {
+        post(EVENT_DEVICE_CONNECTED, address, name);
+    }
+
+    public void postConnectFailed(String address) {
+        post(EVENT_CONNECT_FAILED, address, null);
+    }
+
+    public void postConnectionLost(String address) {
+        post(EVENT_CONNECTION_LOST, address, null);
+    }
+
+    /**
+     * Post a frame. The bus owns it from now on and recycles it once every
+     * listener has seen it.
+     *
+     * @param outgoing True if we sent the frame, false if it was received
+     */
+    public void postFrame(Frame frame, boolean outgoing) {
+        Subscriber[] subscribers = mSubscribers;
+        if (subscribers.length == 0) {
+            frame.recycle();
+            return;
+        }
+        frame.retain(subscribers.length - 1);
+        for (Subscriber subscriber : subscribers) {
+            Event event = Event.obtain(EVENT_FRAME);
+            event.mFrame = frame;
+            event.mArg1 = outgoing ? 1 : 0;
+            subscriber.post(event);
+        }
+    }
+
+    private void post(int type, String address, String name) {
+        for (Subscriber subscriber : mSubscribers) {
+            Event event = Event.obtain(type);
+            event.mAddress = address;
+            event.mName = name;
+            subscriber.post(event);
+        }
+    }
+
+    /**
+     * The queue of one listener, and the task that drains it.
+     */
+    private static class Subscriber implements Runnable {
+        final Listener mmListener;
+        final Executor mmExecutor;
+        final FrameBatch mmBatch = new FrameBatch();
+        ArrayDeque<Event> mmQueue = new ArrayDeque<>();
+        ArrayDeque<Event> mmDraining = new ArrayDeque<>();
+        boolean mmScheduled;
+
+        Subscriber(Listener listener, Executor executor) {
+            mmListener = listener;
+            mmExecutor = executor;
+        }
+
+        void post(Event event) {
+            synchronized (this) {
+                mmQueue.add(event);
+                if (mmScheduled) return;
+                mmScheduled = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                mmExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The executor was shut down; nobody is listening anymore
+                ArrayDeque<Event> events;
+                synchronized (this) {
+                    events = mmQueue;
+                    mmQueue = new ArrayDeque<>();
+                    mmScheduled = false;
+                }
+                for (Event event : events) {
+                    event.recycle(true);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            ArrayDeque<Event> events;
+            synchronized (this) {
+                events = mmQueue;
+                mmQueue = mmDraining;
+                mmDraining = events;
+            }
+            try {
+                Event event;
+                while ((event = events.poll()) != null) {
+                    if (event.mType == EVENT_FRAME) {
+                        mmBatch.add(event.mFrame, event.mArg1 != 0);
+                        event.recycle(false);
+                    } else {
+                        deliverFrames();
+                        try {
+                            deliver(event);
+                        } finally {
+                            event.recycle(false);
+                        }
+                    }
+                }
+                deliverFrames();
+            } finally {
+                // Only left non-empty if the listener threw
+                mmBatch.recycle();
+                Event event;
+                while ((event = events.poll()) != null) {
+                    event.recycle(true);
+                }
+                boolean more;
+                synchronized (this) {
+                    more = !mmQueue.isEmpty();
+                    mmScheduled = more;
+                }
+                if (more) {
+                    // Run again rather than loop, so a listener on a shared
+                    // thread cannot hog it
+                    schedule();
+                }
+            }
+        }
+
+        private void deliverFrames() {
+            if (mmBatch.size() == 0) return;
+            try {
+                mmListener.onFrames(mmBatch);
+            } finally {
+                mmBatch.recycle();
+            }
+        }
+
+        private void deliver(Event event) {
+            switch (event.mType) {
+                case EVENT_STATE_CHANGED:
+                    mmListener.onStateChanged(event.mArg1, event.mArg2);
+                    break;
+                case EVENT_DEVICE_CONNECTED:
+                    mmListener.onDeviceConnected(event.mAddress, event.mName);
+                    break;
+                case EVENT_CONNECT_FAILED:
+                    mmListener.onConnectFailed(event.mAddress);
+                    break;
+                case EVENT_CONNECTION_LOST:
+                    mmListener.onConnectionLost(event.mAddress);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * One queued event, recycled through a global pool like {@link Frame}.
+     */
+    private static final class Event {
+        private static final int MAX_POOL_SIZE = 64;
+        private static final Object sPoolSync = new Object();
+        private static Event sPool;
+        private static int sPoolSize = 0;
+
+        int mType;
+        int mArg1;
+        int mArg2;
+        String mAddress;
+        String mName;
+        Frame mFrame;
+        private Event mNext;
+
+        static Event obtain(int type) {
+            Event event = null;
+            synchronized (sPoolSync) {
+                if (sPool != null) {
+                    event = sPool;
+                    sPool = event.mNext;
+                    event.mNext = null;
+                    sPoolSize--;
+                }
+            }
+            if (event == null) {
+                event = new Event();
+            }
+            event.mType = type;
+            return event;
+        }
+
+        /**
+         * @param recycleFrame Whether the frame is dropped along with the
+         *                     event rather than handed on
+         */
+        void recycle(boolean recycleFrame) {
+            if (recycleFrame && mFrame != null) {
+                mFrame.recycle();
+            }
+            mFrame = null;
+            mAddress = null;
+            mName = null;
+            synchronized (sPoolSync) {
+                if (sPoolSize < MAX_POOL_SIZE) {
+                    mNext = sPool;
+                    sPool = this;
+                    sPoolSize++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * One file being sent to or received from a peer, see
+ * {@link ConnectionManager#sendFile(String, File, long, Listener)}.
+ *
+ * The file travels in {@link Frame#TYPE_FILE} frames on the peer's
+ * {@link Session}, so a dropped link only pauses it. The sender reads the
+ * file through a memory-mapped window into pooled chunk buffers, with a
+ * bounded number of chunks unacknowledged; the receiver writes each chunk
+ * at its offset into a file preallocated to the full size, straight from
+ * the buffer it was read into. Neither side holds more than a window of
+ * chunks, however large the file.
+ *
+ * Every file frame starts with an operation, the transfer id and an
+ * offset. An offer adds the size and the name; a chunk carries the bytes
+ * at the offset; a cancel, sent by either side, ends the transfer.
+ * Chunks arrive in order, so the offset reached is always a place the
+ * transfer can be started again from.
+ */
+public class FileTransfer {
+
+    /**
+     * Told how a transfer is going. Called on the connection's threads.
+     */
+    public interface Listener {
+        /**
+         * @param offset Bytes the peer has acknowledged, or that were
+         *               written, counted from the start of the file
+         */
+        void onProgress(FileTransfer transfer, long offset);
+
+        void onTransferComplete(FileTransfer transfer);
+
+        /**
+         * The transfer stopped. {@link #getOffset()} says where a new one
+         * can pick up; a received file keeps its full size, but only that
+         * many bytes of it are valid.
+         */
+        void onTransferFailed(FileTransfer transfer, IOException e);
+    }
+
+    /**
+     * Decides where offered files go, and hears how they are coming along.
+     */
+    public interface Receiver extends Listener {
+        /**
+         * A peer offers a file. If the transfer starts past offset 0, the
+         * file returned should be the one the earlier transfer wrote to.
+         *
+         * @return where to write it, or null to refuse it
+         */
+        File onFileOffered(FileTransfer transfer);
+    }
+
+    // Operations
+    static final int OP_OFFER = 0;
+    static final int OP_CHUNK = 1;
+    static final int OP_CANCEL = 2;
+
+    // Operation, transfer id and offset
+    static final int HEADER_SIZE = 17;
+
+    // Bytes of the file mapped at a time on the sending side
+    private static final int MAP_WINDOW = 1024 * 1024;
+    // Most chunks unacknowledged; half the session window, so messages
+    // still get through during a transfer
+    static final int MAX_CHUNKS_IN_FLIGHT = Session.WINDOW / 2;
+    // Progress is reported about this often, in bytes
+    private static final long PROGRESS_INTERVAL = 64 * 1024;
+    // How long to wait at a time for room in the session
+    private static final long SEND_WAIT_MS = 100;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Member fields
+    private final long mId;
+    private final String mAddress;
+    private final String mName;
+    private final long mSize;
+    private final long mStartOffset;
+    private final boolean mIncoming;
+    private Listener mListener;
+    private volatile long mOffset;
+    private long mReportedOffset;
+    private volatile boolean mFinished;
+    private FileChannel mChannel;
+
+    // Sending side only
+    private Session mSession;
+    private BufferPool mChunkPool;
+    private TaskScope mScope;
+    private final Semaphore mPermits = new Semaphore(MAX_CHUNKS_IN_FLIGHT);
+
+    FileTransfer(long id, String address, String name, long size, long offset,
+                 boolean incoming) {
+        mId = id;
+        mAddress = address;
+        mName = name;
+        mSize = size;
+        mStartOffset = offset;
+        mOffset = offset;
+        mReportedOffset = offset;
+        mIncoming = incoming;
+    }
+
+    long getId() {
+        return mId;
+    }
+
+    /**
+     * Return the address of the peer.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Return the name of the file, without its directory.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Return where the transfer started, 0 unless it picks up an earlier one.
+     */
+    public long getStartOffset() {
+        return mStartOffset;
+    }
+
+    /**
+     * Return how far the transfer got: bytes acknowledged by the peer when
+     * sending, bytes written when receiving. A transfer can be started
+     * again from here.
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public boolean isIncoming() {
+        return mIncoming;
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Stop the transfer and tell the peer. The listener hears it failed.
+     */
+    public void cancel() {
+        if (fail(new IOException("Transfer cancelled"))) {
+            sendControl(OP_CANCEL);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Sending
+
+    /**
+     * Start sending the file from the offset on the session.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    void startSending(File file, Session session, BufferPool chunkPool, IoEngine engine,
+                      Listener listener) throws IOException {
+        mSession = session;
+        mChunkPool = chunkPool;
+        mListener = listener;
+        mChannel = new RandomAccessFile(file, "r").getChannel();
+        mScope = engine.newScope("FileTransfer " + mName);
+        try {
+            mScope.execute("sender", new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeChannel();
+            throw new IOException("No thread available", e);
+        }
+    }
+
+    private void send() {
+        try {
+            byte[] name = mName.getBytes(UTF_8);
+            byte[] offer = new byte[HEADER_SIZE + 8 + name.length];
+            putHeader(offer, OP_OFFER, mId, mStartOffset);
+            putLong(offer, HEADER_SIZE, mSize);
+            System.arraycopy(name, 0, offer, HEADER_SIZE + 8, name.length);
+            sendFrame(offer, Session.PRIORITY_CONTROL, null);
+            if (mStartOffset == mSize) {
+                // Nothing left to send; done once the offer is through
+                finish();
+                return;
+            }
+
+            int chunkSize = mChunkPool.getBufferSize() - HEADER_SIZE;
+            MappedByteBuffer window = null;
+            long windowStart = 0;
+            long position = mStartOffset;
+            while (position < mSize && !mFinished) {
+                mPermits.acquire();
+                int length = (int) Math.min(chunkSize, mSize - position);
+                if (window == null || position + length > windowStart + window.limit()) {
+                    windowStart = position;
+                    window = mChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAP_WINDOW, mSize - position));
+                }
+                // Frames are sent whole, so only the last chunk gets a
+                // buffer of its own size
+                byte[] chunk = length == chunkSize
+                        ? mChunkPool.acquire()
+                        : new byte[HEADER_SIZE + length];
+                putHeader(chunk, OP_CHUNK, mId, position);
+                window.position((int) (position - windowStart));
+                window.get(chunk, HEADER_SIZE, length);
+                sendFrame(chunk, Session.PRIORITY_BULK, mChunkCallback);
+                position += length;
+            }
+        } catch (InterruptedException e) {
+            // Cancelled
+        } catch (IOException e) {
+            if (fail(e)) sendControl(OP_CANCEL);
+        } finally {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Queue a file frame, waiting while its lane in the session is full.
+     * The offer goes ahead of other traffic, the chunks behind it.
+     */
+    private void sendFrame(byte[] frame, int priority, WriteQueue.Callback callback)
+            throws IOException, InterruptedException {
+        while (!mSession.send(Frame.TYPE_FILE, priority, frame, callback, SEND_WAIT_MS)) {
+            if (mSession.isClosed()) throw new IOException("Session ended");
+            if (mFinished || Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Counts acknowledged chunks and gives their buffers back.
+     */
+    private final WriteQueue.Callback mChunkCallback = new WriteQueue.Callback() {
+        @Override
+        public void onWriteComplete(byte[] data) {
+            mChunkPool.release(data);
+            mPermits.release();
+            if (mFinished) return;
+            progress(mOffset + data.length - HEADER_SIZE);
+        }
+
+        @Override
+        public void onWriteFailed(byte[] data, IOException e) {
+            mChunkPool.release(data);
+            mPermits.release();
+            fail(e);
+        }
+    };
+
+    // ------------------------------------------------------------------
+    // Receiving
+
+    /**
+     * Open the target file, preallocated to the full size.
+     */
+    void startReceiving(File target, Listener listener) throws IOException {
+        mListener = listener;
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            if (file.length() < mStartOffset) {
+                throw new IOException(target + " is shorter than the offset " + mStartOffset);
+            }
+            file.setLength(mSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        synchronized (this) {
+            mChannel = file.getChannel();
+        }
+    }
+
+    /**
+     * Write a chunk at its offset. Called on the connection's reader thread.
+     */
+    void onChunk(Frame frame) {
+        FileChannel channel;
+        synchronized (this) {
+            if (mFinished) return;
+            channel = mChannel;
+        }
+        byte[] data = frame.getData();
+        long offset = getLong(data, 9);
+        int length = frame.getLength() - HEADER_SIZE;
+        if (offset != mOffset || offset + length > mSize) {
+            fail(new IOException("Chunk at " + offset + " does not follow " + mOffset));
+            sendControl(OP_CANCEL);
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, HEADER_SIZE, length);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            // Also how a cancel that closed the channel meanwhile ends up
+            // here; it already told the listener, so fail() does nothing
+            if (fail(e)) sendControl(OP_CANCEL);
+            return;
+        }
+        progress(offset + length);
+    }
+
+    /**
+     * Tell the peer on the session it runs on. Receiving transfers are
+     * given the session to answer on.
+     */
+    void setSession(Session session) {
+        mSession = session;
+    }
+
+    // ------------------------------------------------------------------
+
+    private void progress(long offset) {
+        mOffset = offset;
+        if (offset == mSize) {
+            finish();
+        } else if (offset - mReportedOffset >= PROGRESS_INTERVAL) {
+            mReportedOffset = offset;
+            mListener.onProgress(this, offset);
+        }
+    }
+
+    private void finish() {
+        synchronized (this) {
+            if (mFinished) return;
+            mFinished = true;
+        }
+        IOException error = null;
+        if (mIncoming) {
+            try {
+                mChannel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            closeChannel();
+        }
+        if (error != null) {
+            mListener.onTransferFailed(this, error);
+        } else {
+            mListener.onProgress(this, mSize);
+            mListener.onTransferComplete(this);
+        }
+    }
+
+    /**
+     * End the transfer with an error, unless it already ended.
+     *
+     * @return false if it had already ended
+     */
+    boolean fail(IOException e) {
+        synchronized (this) {
+            if (mFinished) return false;
+            mFinished = true;
+        }
+        if (mScope != null) {
+            mScope.cancel();
+        }
+        if (mIncoming) {
+            closeChannel();
+        }
+        if (mListener != null) {
+            mListener.onTransferFailed(this, e);
+        }
+        return true;
+    }
+
+    private void sendControl(int op) {
+        if (mSession == null) return;
+        byte[] frame = new byte[HEADER_SIZE];
+        putHeader(frame, op, mId, mOffset);
+        // Best effort; if the session is gone so is the peer's side
+        mSession.send(Frame.TYPE_FILE, Session.PRIORITY_CONTROL, frame, null);
+    }
+
+    /**
+     * Close the file. The field keeps the closed channel, so a write still
+     * running on another thread fails with an IOException rather than
+     * finding null.
+     */
+    private synchronized void closeChannel() {
+        if (mChannel == null) return;
+        try {
+            mChannel.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with it
+        }
+    }
+
+    static void putHeader(byte[] b, int op, long id, long offset) {
+        b[0] = (byte) op;
+        putLong(b, 1, id);
+        putLong(b, 9, offset);
+    }
+
+    static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    static String getName(byte[] b, int off, int length) {
+        return new String(b, off, length, UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "FileTransfer[" + mName + (mIncoming ? " from " : " to ") + mAddress
+                + ", " + mOffset + "/" + mSize + "]";
+    }
+}
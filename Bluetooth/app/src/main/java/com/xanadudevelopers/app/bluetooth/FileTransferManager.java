@@ -0,0 +1,186 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the file transfers of a {@link ConnectionManager} and
+ * hands incoming {@link Frame#TYPE_FILE} frames to the transfer they
+ * belong to.
+ */
+class FileTransferManager {
+
+    // Member fields
+    private final IoEngine mEngine;
+    private final BufferPool mChunkPool;
+    private final Random mRandom = new Random();
+    private final ConcurrentHashMap<Long, FileTransfer> mOutgoing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, FileTransfer> mIncoming = new ConcurrentHashMap<>();
+    private volatile FileTransfer.Receiver mReceiver;
+
+    /**
+     * Constructor.
+     *
+     * @param engine    Runs the sending tasks
+     * @param frameSize The size of a whole chunk frame; best no larger than
+     *                  the peer's read buffers, so chunks are read into
+     *                  pooled buffers
+     */
+    FileTransferManager(IoEngine engine, int frameSize) {
+        mEngine = engine;
+        mChunkPool = new BufferPool(frameSize, FileTransfer.MAX_CHUNKS_IN_FLIGHT);
+    }
+
+    void setReceiver(FileTransfer.Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    /**
+     * Start sending a file over a session.
+     *
+     * @throws IOException if the file cannot be read or the offset is past its end
+     */
+    FileTransfer send(Session session, File file, long offset,
+                      final FileTransfer.Listener listener) throws IOException {
+        long size = file.length();
+        if (!file.isFile()) throw new IOException("Cannot read " + file);
+        if (offset < 0 || offset > size) {
+            throw new IOException("Offset " + offset + " outside " + file + " of " + size
+                    + " bytes");
+        }
+        long id;
+        do {
+            id = mRandom.nextLong();
+        } while (mOutgoing.containsKey(id));
+        final FileTransfer transfer = new FileTransfer(id, session.getAddress(), file.getName(),
+                size, offset, false);
+        mOutgoing.put(id, transfer);
+        try {
+            transfer.startSending(file, session, mChunkPool, mEngine,
+                    new Forget(mOutgoing, listener));
+        } catch (IOException e) {
+            mOutgoing.remove(id);
+            throw e;
+        }
+        return transfer;
+    }
+
+    /**
+     * Handle a file frame counted by the session. Recycles the frame.
+     */
+    void onFrameReceived(Session session, Frame frame) {
+        try {
+            if (frame.getLength() < FileTransfer.HEADER_SIZE) return;
+            byte[] data = frame.getData();
+            long id = FileTransfer.getLong(data, 1);
+            switch (data[0]) {
+                case FileTransfer.OP_OFFER:
+                    onOffer(session, id, frame);
+                    break;
+                case FileTransfer.OP_CHUNK: {
+                    FileTransfer transfer = mIncoming.get(id);
+                    if (transfer != null) transfer.onChunk(frame);
+                    break;
+                }
+                case FileTransfer.OP_CANCEL: {
+                    // Either the sender gave up, or the receiver refused ours
+                    FileTransfer transfer = mIncoming.get(id);
+                    if (transfer == null) transfer = mOutgoing.get(id);
+                    if (transfer != null) transfer.fail(new IOException("Cancelled by the peer"));
+                    break;
+                }
+            }
+        } finally {
+            frame.recycle();
+        }
+    }
+
+    /**
+     * Fail the incoming transfers from a peer whose session ended. The
+     * outgoing ones fail on their own as their chunks do.
+     */
+    void onSessionClosed(String address, IOException e) {
+        Iterator<FileTransfer> it = mIncoming.values().iterator();
+        while (it.hasNext()) {
+            FileTransfer transfer = it.next();
+            if (transfer.getAddress().equals(address)) {
+                transfer.fail(e);
+            }
+        }
+    }
+
+    private void onOffer(Session session, long id, Frame frame) {
+        byte[] data = frame.getData();
+        if (frame.getLength() < FileTransfer.HEADER_SIZE + 8) return;
+        long offset = FileTransfer.getLong(data, 9);
+        long size = FileTransfer.getLong(data, FileTransfer.HEADER_SIZE);
+        String name = FileTransfer.getName(data, FileTransfer.HEADER_SIZE + 8,
+                frame.getLength() - FileTransfer.HEADER_SIZE - 8);
+        // Never let a peer pick the directory
+        name = new File(name).getName();
+
+        FileTransfer transfer = new FileTransfer(id, session.getAddress(), name, size, offset,
+                true);
+        transfer.setSession(session);
+        FileTransfer.Receiver receiver = mReceiver;
+        File target = receiver != null ? receiver.onFileOffered(transfer) : null;
+        if (target == null) {
+            transfer.cancel();
+            return;
+        }
+        mIncoming.put(id, transfer);
+        try {
+            transfer.startReceiving(target, new Forget(mIncoming, receiver));
+        } catch (IOException e) {
+            transfer.cancel();
+            return;
+        }
+        if (offset == size) {
+            Frame chunk = emptyChunk(id, offset);
+            transfer.onChunk(chunk);
+            chunk.recycle();
+        }
+    }
+
+    /**
+     * A chunk with no bytes, to complete a transfer that has none left.
+     */
+    private static Frame emptyChunk(long id, long offset) {
+        byte[] data = new byte[FileTransfer.HEADER_SIZE];
+        FileTransfer.putHeader(data, FileTransfer.OP_CHUNK, id, offset);
+        return Frame.obtain(Frame.TYPE_FILE, data, data.length, null);
+    }
+
+    /**
+     * Passes events on and forgets a transfer once it has ended.
+     */
+    private static class Forget implements FileTransfer.Listener {
+        private final ConcurrentHashMap<Long, FileTransfer> mmTransfers;
+        private final FileTransfer.Listener mmListener;
+
+        Forget(ConcurrentHashMap<Long, FileTransfer> transfers, FileTransfer.Listener listener) {
+            mmTransfers = transfers;
+            mmListener = listener;
+        }
+
+        @Override
+        public void onProgress(FileTransfer transfer, long offset) {
+            mmListener.onProgress(transfer, offset);
+        }
+
+        @Override
+        public void onTransferComplete(FileTransfer transfer) {
+            mmTransfers.remove(transfer.getId());
+            mmListener.onTransferComplete(transfer);
+        }
+
+        @Override
+        public void onTransferFailed(FileTransfer transfer, IOException e) {
+            mmTransfers.remove(transfer.getId());
+            mmListener.onTransferFailed(transfer, e);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.xanadudevelopers.app.bluetooth;
+
+/**
+ * One complete message exchanged with a remote device. Frames are recycled
+ * the same way {@link android.os.Message} is: get one with
+ * {@link #obtain(int, byte[], int, BufferPool)} and hand it back with
+ * {@link #recycle()} once its payload has been consumed, which also returns
+ * the payload buffer to the pool it came from. A frame handed to several
+ * consumers is retained once per extra consumer, and only goes back to
+ * the pool when the last of them recycled it.
+ */
+public final class Frame {
+
+    // Frame types carried in the type byte of the header
+    public static final int TYPE_DATA = 0;
+    public static final int TYPE_HELLO = 1; // session resumption, see Session
+    public static final int TYPE_ACK = 2;   // cumulative acknowledgement, see Session
+    public static final int TYPE_COMPRESSED = 3; // deflated TYPE_DATA, see FrameCompressor
+    public static final int TYPE_FILE = 4;  // file transfer, see FileTransfer
+    public static final int TYPE_CHANNEL = 5; // logical channel, see ChannelManager
+    public static final int TYPE_FRAGMENT = 6; // piece of a larger frame, see Session
+    public static final int TYPE_PING = 7;  // heartbeat and its answer, see Session
+
+    // The channel of a frame that is not a channel message
+    public static final int NO_CHANNEL = -1;
+
+    private static final int MAX_POOL_SIZE = 64;
+    private static final Object sPoolSync = new Object();
+    private static Frame sPool;
+    private static int sPoolSize = 0;
+
+    // Member fields
+    private int mType;
+    private byte[] mData;
+    private int mLength;
+    private BufferPool mBufferPool;
+    private Connection mConnection;
+    private long mReceivedTime;
+    private int mChannelId = NO_CHANNEL;
+    private int mRefCount;
+    private Session mSession;
+    private Frame mNext;
+
+    private Frame() {
+    }
+
+    /**
+     * Return a frame from the global pool, allocating one only if the pool
+     * is empty.
+     *
+     * @param type       The frame type
+     * @param data       The buffer holding the payload, starting at index 0
+     * @param length     The number of valid payload bytes in data
+     * @param bufferPool The pool data is returned to on recycle, or null
+     */
+    static Frame obtain(int type, byte[] data, int length, BufferPool bufferPool) {
+        Frame frame = null;
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                frame = sPool;
+                sPool = frame.mNext;
+                frame.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (frame == null) {
+            frame = new Frame();
+        }
+        frame.mType = type;
+        frame.mData = data;
+        frame.mLength = length;
+        frame.mBufferPool = bufferPool;
+        frame.mChannelId = NO_CHANNEL;
+        frame.mRefCount = 1;
+        return frame;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Return true for the types a {@link Session} numbers and acknowledges,
+     * false for control frames.
+     */
+    static boolean isSequenced(int type) {
+        return type == TYPE_DATA || type == TYPE_FILE || type == TYPE_CHANNEL
+                || type == TYPE_FRAGMENT;
+    }
+
+    /**
+     * Return the buffer holding the payload. Only the first
+     * {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Cut off the end of the payload, for a trailer already read.
+     */
+    void setLength(int length) {
+        mLength = length;
+    }
+
+    /**
+     * Return the connection this frame was received on or sent through.
+     */
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    void setConnection(Connection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * Return the {@link System#nanoTime()} at which the frame was read off
+     * the socket, or 0 for frames that were not received.
+     */
+    public long getReceivedTime() {
+        return mReceivedTime;
+    }
+
+    void setReceivedTime(long receivedTime) {
+        mReceivedTime = receivedTime;
+    }
+
+    /**
+     * Return the id of the channel a {@link #TYPE_CHANNEL} message belongs
+     * to, as {@link Channel#getId()} has it, or {@link #NO_CHANNEL}. The
+     * payload of such a frame is the message alone.
+     */
+    public int getChannelId() {
+        return mChannelId;
+    }
+
+    void setChannelId(int channelId) {
+        mChannelId = channelId;
+    }
+
+    /**
+     * Make recycling the frame give credit back to the session it was
+     * received on.
+     */
+    void setSession(Session session) {
+        mSession = session;
+    }
+
+    /**
+     * Let count more consumers hold the frame; each of them calls
+     * {@link #recycle()} once.
+     */
+    synchronized void retain(int count) {
+        mRefCount += count;
+    }
+
+    private synchronized boolean release() {
+        if (mRefCount <= 0) {
+            throw new IllegalStateException("Frame has already been recycled");
+        }
+        return --mRefCount == 0;
+    }
+
+    /**
+     * Return the frame and its payload buffer to their pools, once every
+     * consumer holding it has called this. The frame must not be touched
+     * afterwards.
+     */
+    public void recycle() {
+        if (!release()) return;
+        if (mBufferPool != null) {
+            mBufferPool.release(mData);
+        }
+        if (mSession != null) {
+            mSession.onConsumed();
+            mSession = null;
+        }
+        mData = null;
+        mBufferPool = null;
+        mConnection = null;
+        mReceivedTime = 0;
+        mChannelId = NO_CHANNEL;
+        mLength = 0;
+        mType = TYPE_DATA;
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+}
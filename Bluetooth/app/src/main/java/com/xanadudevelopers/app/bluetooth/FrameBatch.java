@@ -0,0 +1,69 @@
+package com.xanadudevelopers.app.bluetooth;
+
+/**
+ * A run of frames sent and received, in the order they happened, as
+ * handed to {@link EventBus.Listener#onFrames(FrameBatch)}. Batches are
+ * reused: {@link #recycle()} recycles every frame and empties the batch
+ * without freeing its arrays.
+ */
+public final class FrameBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Member fields
+    private Frame[] mFrames = new Frame[INITIAL_CAPACITY];
+    private boolean[] mOutgoing = new boolean[INITIAL_CAPACITY];
+    private int mSize;
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return a frame of the batch. It stays valid until the batch is
+     * recycled.
+     */
+    public Frame getFrame(int index) {
+        checkIndex(index);
+        return mFrames[index];
+    }
+
+    /**
+     * Return true if the frame was sent by us, false if it was received.
+     */
+    public boolean isOutgoing(int index) {
+        checkIndex(index);
+        return mOutgoing[index];
+    }
+
+    void add(Frame frame, boolean outgoing) {
+        if (mSize == mFrames.length) {
+            Frame[] frames = new Frame[mSize * 2];
+            boolean[] outgoingFlags = new boolean[mSize * 2];
+            System.arraycopy(mFrames, 0, frames, 0, mSize);
+            System.arraycopy(mOutgoing, 0, outgoingFlags, 0, mSize);
+            mFrames = frames;
+            mOutgoing = outgoingFlags;
+        }
+        mFrames[mSize] = frame;
+        mOutgoing[mSize] = outgoing;
+        mSize++;
+    }
+
+    /**
+     * Recycle every frame and empty the batch.
+     */
+    void recycle() {
+        for (int i = 0; i < mSize; i++) {
+            mFrames[i].recycle();
+            mFrames[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + mSize);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.xanadudevelopers.app.bluetooth;
+
+/**
+ * Wire format shared by {@link FrameReader} and {@link FrameWriter}.
+ *
+ * Every frame is the payload length as an unsigned LEB128 varint, followed
+ * by one type byte, followed by the payload itself:
+ *
+ * <pre>
+ *   +----------------+------+-----------------+
+ *   | length (1..5)  | type | payload[length] |
+ *   +----------------+------+-----------------+
+ * </pre>
+ */
+public final class FrameCodec {
+
+    // Largest payload accepted unless a connection asks for something else
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+    // A 32 bit varint takes at most five bytes, plus the type byte
+    public static final int MAX_HEADER_SIZE = 6;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Write a frame header into a buffer.
+     *
+     * @param dst    The buffer to write to; needs MAX_HEADER_SIZE bytes free
+     * @param offset The index in dst to start writing at
+     * @param length The payload length
+     * @param type   The frame type, 0..255
+     * @return The number of header bytes written
+     */
+    public static int writeHeader(byte[] dst, int offset, int length, int type) {
+        int pos = offset;
+        int value = length;
+        while ((value & ~0x7f) != 0) {
+            dst[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        dst[pos++] = (byte) type;
+        return pos - offset;
+    }
+
+    /**
+     * Return the number of bytes the header of a frame with the given
+     * payload length takes on the wire.
+     */
+    public static int headerSize(int length) {
+        int size = 2;
+        while ((length & ~0x7f) != 0) {
+            size++;
+            length >>>= 7;
+        }
+        return size;
+    }
+}
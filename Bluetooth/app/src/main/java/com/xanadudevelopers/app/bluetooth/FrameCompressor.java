@@ -0,0 +1,250 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates outgoing data frames and inflates incoming ones on a connection
+ * whose peers both offered compression in their hello.
+ *
+ * Compressing is decided frame by frame. Frames below {@link #MIN_SIZE}
+ * go out as they are, since the deflate overhead eats the gain. Larger
+ * ones are deflated at the fastest level, and only sent compressed if
+ * they shrank to at most 7/8 of their size. After a frame that did not,
+ * the next ones are sent as they are without trying, for a stretch that
+ * doubles with every further miss, so a stream of incompressible data
+ * costs next to no CPU.
+ *
+ * A compressed frame is {@link Frame#TYPE_COMPRESSED}; its payload is the
+ * original length as a varint followed by the zlib stream. Messages the
+ * {@link Session} sends in fragments are deflated whole the same way
+ * before they are cut. The deflating half is used by the writer thread
+ * and the session, the inflating half by the reader thread; each
+ * allocates its native state on first use.
+ */
+public class FrameCompressor {
+
+    // Smallest payload worth deflating, in bytes
+    static final int MIN_SIZE = 128;
+
+    // A compressed frame must be at most this many sixteenths of the original
+    private static final int MAX_RATIO_SIXTEENTHS = 14;
+    // Most frames passed over after a miss before trying again
+    private static final int MAX_SKIP = 64;
+    // Bytes the original length takes at most in front of the zlib stream
+    private static final int MAX_VARINT_SIZE = 5;
+
+    // Member fields
+    private final int mMaxFrameSize;
+    private final BufferPool mBufferPool;
+    private final ConnectionMetrics mMetrics;
+    private final Object mDeflateLock = new Object();
+    private final Object mInflateLock = new Object();
+    private Deflater mDeflater;
+    private byte[] mOutput;
+    private int mSkip;
+    private int mBackoff;
+    private Inflater mInflater;
+    private volatile boolean mClosed;
+
+    /**
+     * Constructor.
+     *
+     * @param maxFrameSize The largest payload before and after compressing
+     * @param bufferPool   The pool inflated payloads are taken from
+     * @param metrics      Where the ratio and time spent are counted
+     */
+    public FrameCompressor(int maxFrameSize, BufferPool bufferPool, ConnectionMetrics metrics) {
+        mMaxFrameSize = maxFrameSize;
+        mBufferPool = bufferPool;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Deflate a payload if that is worth it. Only call from one thread.
+     *
+     * @return the length of the compressed payload in {@link #getOutput()},
+     * or -1 if the frame should be sent as it is
+     */
+    public int compress(byte[] data, int length) {
+        if (length < MIN_SIZE) return -1;
+        synchronized (mDeflateLock) {
+            if (mClosed) return -1;
+            if (mOutput == null) {
+                mOutput = new byte[mMaxFrameSize];
+            }
+            return deflate(data, length, mOutput);
+        }
+    }
+
+    /**
+     * Deflate a whole message if that is worth it, into an array of its
+     * own, so it can be called from any thread while the writer uses
+     * {@link #compress(byte[], int)}.
+     *
+     * @return the compressed payload, or null if the message should be
+     * sent as it is
+     */
+    public byte[] compressMessage(byte[] data) {
+        if (data.length < MIN_SIZE) return null;
+        byte[] output = new byte[Math.min(MAX_VARINT_SIZE
+                + (int) ((long) data.length * MAX_RATIO_SIXTEENTHS / 16), mMaxFrameSize)];
+        synchronized (mDeflateLock) {
+            if (mClosed) return null;
+            int length = deflate(data, data.length, output);
+            return length < 0 ? null : Arrays.copyOf(output, length);
+        }
+    }
+
+    private int deflate(byte[] data, int length, byte[] output) {
+        if (mSkip > 0) {
+            mSkip--;
+            mMetrics.onCompressionSkipped(length);
+            return -1;
+        }
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.BEST_SPEED);
+        }
+
+        long start = System.nanoTime();
+        int count = putVarint(output, 0, length);
+        // Anything that does not fit by here was not worth compressing
+        int limit = Math.min(count + (int) ((long) length * MAX_RATIO_SIXTEENTHS / 16),
+                output.length);
+        mDeflater.setInput(data, 0, length);
+        mDeflater.finish();
+        while (!mDeflater.finished() && count < limit) {
+            count += mDeflater.deflate(output, count, limit - count);
+        }
+        boolean compressed = mDeflater.finished();
+        mDeflater.reset();
+        mMetrics.onCompressed(length, compressed ? count : length,
+                System.nanoTime() - start);
+
+        if (!compressed) {
+            mBackoff = Math.min(Math.max(1, mBackoff * 2), MAX_SKIP);
+            mSkip = mBackoff;
+            return -1;
+        }
+        mBackoff = 0;
+        return count;
+    }
+
+    /**
+     * Return the buffer the last {@link #compress(byte[], int)} wrote to.
+     * It is reused by the next call.
+     */
+    public byte[] getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Inflate a {@link Frame#TYPE_COMPRESSED} frame back into a data frame.
+     * The compressed frame is recycled, also if this fails. Only call from
+     * one thread.
+     *
+     * @throws IOException if the payload is corrupt or inflates to more
+     *                     than the largest frame
+     */
+    public Frame decompress(Frame frame) throws IOException {
+        try {
+            return inflate(frame);
+        } finally {
+            frame.recycle();
+        }
+    }
+
+    private Frame inflate(Frame frame) throws IOException {
+        synchronized (mInflateLock) {
+            if (mClosed) throw new IOException("Connection closed");
+            if (mInflater == null) {
+                mInflater = new Inflater();
+            }
+
+            long start = System.nanoTime();
+            byte[] in = frame.getData();
+            int inLength = frame.getLength();
+            int pos = 0;
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (pos == inLength || shift > 28) {
+                    throw new IOException("Malformed compressed frame");
+                }
+                int b = in[pos++] & 0xff;
+                length |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            if (length < 0 || length > mMaxFrameSize) {
+                throw new FrameTooLargeException(length, mMaxFrameSize);
+            }
+
+            byte[] out;
+            BufferPool pool;
+            if (length <= mBufferPool.getBufferSize()) {
+                out = mBufferPool.acquire();
+                pool = mBufferPool;
+            } else {
+                out = new byte[length];
+                pool = null;
+            }
+            int count = 0;
+            try {
+                mInflater.setInput(in, pos, inLength - pos);
+                while (count < length) {
+                    int n = mInflater.inflate(out, count, length - count);
+                    if (n == 0 && (mInflater.finished() || mInflater.needsInput()
+                            || mInflater.needsDictionary())) {
+                        break;
+                    }
+                    count += n;
+                }
+                if (count != length) {
+                    throw new IOException("Compressed frame inflated to " + count
+                            + " of " + length + " bytes");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed frame", e);
+            } finally {
+                mInflater.reset();
+                if (count != length && pool != null) {
+                    pool.release(out);
+                }
+            }
+            mMetrics.onDecompressed(System.nanoTime() - start);
+            return Frame.obtain(Frame.TYPE_DATA, out, length, pool);
+        }
+    }
+
+    /**
+     * Free the native compression state. Later calls send frames as they
+     * are and refuse compressed ones.
+     */
+    public void close() {
+        synchronized (mDeflateLock) {
+            mClosed = true;
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+        }
+        synchronized (mInflateLock) {
+            if (mInflater != null) {
+                mInflater.end();
+                mInflater = null;
+            }
+        }
+    }
+
+    private static int putVarint(byte[] dst, int offset, int value) {
+        int pos = offset;
+        while ((value & ~0x7f) != 0) {
+            dst[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos - offset;
+    }
+}
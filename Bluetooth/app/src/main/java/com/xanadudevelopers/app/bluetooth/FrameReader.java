@@ -0,0 +1,128 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads whole frames (see {@link FrameCodec}) off a socket input stream, no
+ * matter how the transport split or merged the bytes.
+ *
+ * Small reads are gathered in a read-ahead buffer so several frames can be
+ * parsed out of one call to the stream. Once a payload is larger than that
+ * buffer the rest of it is read straight into the frame's own buffer, so
+ * bulk data is not copied twice.
+ */
+public class FrameReader {
+
+    private static final int READ_AHEAD_SIZE = 4096;
+
+    // Member fields
+    private final InputStream mIn;
+    private final BufferPool mBufferPool;
+    private final int mMaxFrameSize;
+    private final byte[] mBuffer;
+    private int mPos;
+    private int mLimit;
+
+    /**
+     * Constructor.
+     *
+     * @param in           The stream to read frames from
+     * @param bufferPool   The pool payload buffers are taken from
+     * @param maxFrameSize The largest payload accepted, in bytes
+     */
+    public FrameReader(InputStream in, BufferPool bufferPool, int maxFrameSize) {
+        mIn = in;
+        mBufferPool = bufferPool;
+        mMaxFrameSize = maxFrameSize;
+        mBuffer = new byte[READ_AHEAD_SIZE];
+    }
+
+    /**
+     * Block until the next complete frame has arrived. The caller owns the
+     * returned frame and must {@link Frame#recycle()} it.
+     *
+     * @throws FrameTooLargeException if the header announces a payload
+     *                                larger than the limit; nothing of the
+     *                                payload has been read at that point
+     * @throws EOFException           if the stream ends
+     */
+    public Frame read() throws IOException {
+        int length = readLength();
+        if (length > mMaxFrameSize) {
+            throw new FrameTooLargeException(length, mMaxFrameSize);
+        }
+        int type = readByte();
+
+        byte[] data;
+        BufferPool pool;
+        if (length <= mBufferPool.getBufferSize()) {
+            data = mBufferPool.acquire();
+            pool = mBufferPool;
+        } else {
+            data = new byte[length];
+            pool = null;
+        }
+
+        try {
+            int filled = 0;
+            while (filled < length) {
+                int remaining = length - filled;
+                if (mPos == mLimit && remaining >= mBuffer.length) {
+                    // Nothing buffered and lots to come: skip the read-ahead
+                    int n = mIn.read(data, filled, remaining);
+                    if (n < 0) {
+                        throw new EOFException("End of stream inside a frame");
+                    }
+                    filled += n;
+                } else {
+                    if (mPos == mLimit) {
+                        fill();
+                    }
+                    int n = Math.min(mLimit - mPos, remaining);
+                    System.arraycopy(mBuffer, mPos, data, filled, n);
+                    mPos += n;
+                    filled += n;
+                }
+            }
+        } catch (IOException e) {
+            if (pool != null) {
+                pool.release(data);
+            }
+            throw e;
+        }
+        return Frame.obtain(type, data, length, pool);
+    }
+
+    private int readLength() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new FrameTooLargeException(Integer.MAX_VALUE, mMaxFrameSize);
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed frame length");
+    }
+
+    private int readByte() throws IOException {
+        if (mPos == mLimit) {
+            fill();
+        }
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    private void fill() throws IOException {
+        int n = mIn.read(mBuffer, 0, mBuffer.length);
+        if (n < 0) {
+            throw new EOFException("End of stream");
+        }
+        mPos = 0;
+        mLimit = n;
+    }
+}
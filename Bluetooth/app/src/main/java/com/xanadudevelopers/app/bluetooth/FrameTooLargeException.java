@@ -0,0 +1,17 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a frame header announces a payload larger than the receiver
+ * accepts. The stream cannot be resynchronized afterwards, so the connection
+ * should be dropped.
+ */
+public class FrameTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FrameTooLargeException(int length, int maxLength) {
+        super("Frame of " + length + " bytes exceeds the limit of " + maxLength);
+    }
+}
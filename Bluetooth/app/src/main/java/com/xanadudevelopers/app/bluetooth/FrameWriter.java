@@ -0,0 +1,104 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames (see {@link FrameCodec}) to a socket output stream.
+ *
+ * Frames are gathered in a batch buffer and only reach the stream when the
+ * buffer is full or {@link #flush()} is called, so many small messages cost
+ * a single socket write. Frames too large for the buffer are written as
+ * header plus payload without copying the payload.
+ *
+ * Not thread safe; a connection has a single writer.
+ */
+public class FrameWriter {
+
+    // Member fields
+    private final OutputStream mOut;
+    private final int mMaxFrameSize;
+    private final byte[] mBuffer;
+    private int mCount;
+
+    /**
+     * Constructor.
+     *
+     * @param out          The stream to write frames to
+     * @param maxFrameSize The largest payload the remote side accepts
+     * @param batchSize    The size of the batch buffer, in bytes
+     */
+    public FrameWriter(OutputStream out, int maxFrameSize, int batchSize) {
+        mOut = out;
+        mMaxFrameSize = maxFrameSize;
+        mBuffer = new byte[Math.max(batchSize, FrameCodec.MAX_HEADER_SIZE)];
+    }
+
+    /**
+     * Append one frame to the batch, writing out the batch first if the
+     * frame does not fit behind what is already buffered.
+     *
+     * @param type   The frame type
+     * @param data   The buffer holding the payload
+     * @param offset The index of the first payload byte in data
+     * @param length The number of payload bytes
+     * @throws FrameTooLargeException if length is above the limit; nothing
+     *                                is written in that case
+     */
+    public void write(int type, byte[] data, int offset, int length) throws IOException {
+        if (length > mMaxFrameSize) {
+            throw new FrameTooLargeException(length, mMaxFrameSize);
+        }
+        int size = FrameCodec.headerSize(length) + length;
+        if (size > mBuffer.length - mCount) {
+            flushBuffer();
+        }
+        if (size <= mBuffer.length) {
+            mCount += FrameCodec.writeHeader(mBuffer, mCount, length, type);
+            System.arraycopy(data, offset, mBuffer, mCount, length);
+            mCount += length;
+        } else {
+            // Too big to batch: header and payload go out on their own
+            int header = FrameCodec.writeHeader(mBuffer, 0, length, type);
+            mOut.write(mBuffer, 0, header);
+            mOut.write(data, offset, length);
+        }
+    }
+
+    /**
+     * Return the largest payload this writer accepts.
+     */
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     * Return the number of bytes waiting in the batch buffer.
+     */
+    public int getBufferedSize() {
+        return mCount;
+    }
+
+    /**
+     * Return the size of the batch buffer.
+     */
+    public int getBatchSize() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Write out everything batched so far and flush the stream.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            int count = mCount;
+            mCount = 0;
+            mOut.write(mBuffer, 0, count);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads every blocking task of the service runs on: accept loops,
+ * connection attempts, readers and writers. Idle worker threads are kept
+ * for a while and reused, so reconnecting does not create new threads, and
+ * the total number of threads is bounded.
+ *
+ * Work is always started through a {@link TaskScope}, which ties related
+ * tasks, timers and sockets together so they can be stopped as one.
+ */
+public class IoEngine {
+
+    // Idle workers are kept this long before their thread exits
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    // Member fields
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    /**
+     * Constructor.
+     *
+     * @param maxThreads The most blocking tasks that may run at once; tasks
+     *                   beyond that are rejected rather than queued, since
+     *                   they would never start while the others block
+     */
+    public IoEngine(int maxThreads) {
+        mExecutor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("BluetoothIO-"));
+        mTimer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BluetoothTimer-"));
+        mTimer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return a new scope whose tasks run on this engine.
+     *
+     * @param name Used in the thread name of the scope's tasks
+     */
+    public TaskScope newScope(String name) {
+        return new TaskScope(this, name);
+    }
+
+    /**
+     * Return the number of worker threads that currently exist, busy or idle.
+     */
+    public int getPoolSize() {
+        return mExecutor.getPoolSize();
+    }
+
+    /**
+     * Stop all work. Running tasks are interrupted; the engine cannot be
+     * used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    ThreadPoolExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    ScheduledThreadPoolExecutor getTimer() {
+        return mTimer;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mPrefix + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the journal of one peer written by {@link MessageJournal}, oldest
+ * record first, optionally starting from a point in time.
+ *
+ * Segments are memory-mapped one at a time, read-only, so reading does
+ * not copy whole segments onto the heap. The reader sees the records that
+ * were on disk when it reached their segment; a torn record ends the
+ * segment. The current record stays valid until the next call to
+ * {@link #next()}.
+ */
+public class JournalReader {
+
+    // The channel of a record that is not a channel message
+    public static final int NO_CHANNEL = Frame.NO_CHANNEL;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // Member fields
+    private final File[] mSegments;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mHeader = new byte[MessageJournal.RECORD_HEADER_SIZE];
+    private int mSegment = -1;
+    private ByteBuffer mBuffer;
+    private boolean mPending;
+
+    // The current record
+    private byte[] mData = new byte[INITIAL_CAPACITY];
+    private int mLength;
+    private long mSequence;
+    private long mTime;
+    private boolean mOutgoing;
+    private int mChannel;
+    private int mPosition;
+    private int mNextPosition;
+
+    /**
+     * Constructor. Use {@link MessageJournal#openReader(String)}.
+     *
+     * @param directory The journal directory of the peer
+     */
+    JournalReader(File directory) {
+        mSegments = MessageJournal.listSegments(directory);
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false if there are no more
+     */
+    public boolean next() throws IOException {
+        if (mPending) {
+            mPending = false;
+            return true;
+        }
+        while (true) {
+            if (mBuffer != null && nextInSegment()) {
+                return true;
+            }
+            if (mSegment + 1 >= mSegments.length) {
+                return false;
+            }
+            openSegment(mSegment + 1);
+        }
+    }
+
+    /**
+     * Skip to the first record at or after a time, using the index files to
+     * find where to start looking. The next call to {@link #next()} returns
+     * that record.
+     *
+     * @param time Milliseconds since the epoch
+     * @return false if no record is that recent
+     */
+    public boolean seek(long time) throws IOException {
+        mPending = false;
+        if (mSegments.length == 0) return false;
+
+        // The last segment that starts no later than the time
+        int segment = 0;
+        for (int i = mSegments.length - 1; i > 0; i--) {
+            long first = firstTime(i);
+            if (first >= 0 && first <= time) {
+                segment = i;
+                break;
+            }
+        }
+        openSegment(segment);
+        mNextPosition = indexedPosition(mSegments[segment], time);
+
+        while (next()) {
+            if (mTime >= time) {
+                mPending = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the payload of the current record. Only the first
+     * {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Return the sequence number of the record, counting every frame
+     * journaled for the peer in either direction.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Return when the frame was received or acknowledged, in milliseconds
+     * since the epoch.
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * Return true if the frame was sent to the peer, false if received.
+     */
+    public boolean isOutgoing() {
+        return mOutgoing;
+    }
+
+    /**
+     * Return the id of the channel the message was sent over, as
+     * {@link Channel#getId()} had it, or {@link #NO_CHANNEL} for a data
+     * frame.
+     */
+    public int getChannelId() {
+        return mChannel;
+    }
+
+    /**
+     * Drop the mapping of the current segment.
+     */
+    public void close() {
+        mBuffer = null;
+        mSegment = mSegments.length;
+        mPending = false;
+    }
+
+    /**
+     * Read the next record of the current segment only.
+     *
+     * @return false at the end of the segment or a torn record
+     */
+    boolean nextInSegment() {
+        ByteBuffer buffer = mBuffer;
+        int position = mNextPosition;
+        if (buffer.limit() - position < MessageJournal.RECORD_HEADER_SIZE) return false;
+        int length = buffer.getInt(position);
+        if (length < 0 || length > buffer.limit() - position - MessageJournal.RECORD_HEADER_SIZE) {
+            return false;
+        }
+        buffer.position(position);
+        buffer.get(mHeader);
+        if (mData.length < length) {
+            mData = new byte[Math.max(length, mData.length * 2)];
+        }
+        buffer.get(mData, 0, length);
+
+        mCrc.reset();
+        mCrc.update(mHeader, 8, MessageJournal.RECORD_HEADER_SIZE - 8);
+        mCrc.update(mData, 0, length);
+        if ((int) mCrc.getValue() != buffer.getInt(position + 4)) return false;
+
+        byte direction = buffer.get(position + 24);
+        mLength = length;
+        mChannel = NO_CHANNEL;
+        if ((direction & MessageJournal.FLAG_CHANNEL) != 0) {
+            if (length < MessageJournal.CHANNEL_ID_SIZE) return false;
+            mLength = length - MessageJournal.CHANNEL_ID_SIZE;
+            mChannel = ((mData[mLength] & 0xff) << 8) | (mData[mLength + 1] & 0xff);
+        }
+        mSequence = buffer.getLong(position + 8);
+        mTime = buffer.getLong(position + 16);
+        mOutgoing = (direction & MessageJournal.DIRECTION_SENT) != 0;
+        mPosition = position;
+        mNextPosition = position + MessageJournal.RECORD_HEADER_SIZE + length;
+        return true;
+    }
+
+    /**
+     * Return where the current record starts in its segment.
+     */
+    int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Return where the current record ends in its segment, or 0 if none
+     * was read from it.
+     */
+    int getNextPosition() {
+        return mNextPosition;
+    }
+
+    void openSegment(File segment) throws IOException {
+        for (int i = 0; i < mSegments.length; i++) {
+            if (mSegments[i].equals(segment)) {
+                openSegment(i);
+                return;
+            }
+        }
+        throw new IOException("No segment " + segment);
+    }
+
+    private void openSegment(int segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mSegments[segment], "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mBuffer = buffer;
+        } finally {
+            // The mapping stays valid after the file is closed
+            file.close();
+        }
+        mSegment = segment;
+        mPosition = 0;
+        mNextPosition = 0;
+    }
+
+    /**
+     * Return the time of the first record of a segment, or -1 if unknown.
+     */
+    private long firstTime(int segment) throws IOException {
+        File index = MessageJournal.indexFile(mSegments[segment]);
+        if (index.length() >= MessageJournal.INDEX_ENTRY_SIZE) {
+            RandomAccessFile file = new RandomAccessFile(index, "r");
+            try {
+                return file.readLong();
+            } finally {
+                file.close();
+            }
+        }
+        // No index, so look at the record itself
+        RandomAccessFile file = new RandomAccessFile(mSegments[segment], "r");
+        try {
+            if (file.length() < MessageJournal.RECORD_HEADER_SIZE) return -1;
+            file.seek(16);
+            return file.readLong();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Return the position of the last indexed record of a segment at or
+     * before a time, or 0.
+     */
+    private static int indexedPosition(File segment, long time) throws IOException {
+        File index = MessageJournal.indexFile(segment);
+        int entries = (int) (index.length() / MessageJournal.INDEX_ENTRY_SIZE);
+        if (entries == 0) return 0;
+        byte[] bytes = new byte[entries * MessageJournal.INDEX_ENTRY_SIZE];
+        RandomAccessFile file = new RandomAccessFile(index, "r");
+        try {
+            file.readFully(bytes);
+        } finally {
+            file.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        // Binary search for the last entry no later than the time
+        int low = 0;
+        int high = entries - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getLong(mid * MessageJournal.INDEX_ENTRY_SIZE) <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found < 0 ? 0 : buffer.getInt(found * MessageJournal.INDEX_ENTRY_SIZE + 16);
+    }
+}
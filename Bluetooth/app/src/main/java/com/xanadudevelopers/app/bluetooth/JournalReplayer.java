@@ -0,0 +1,99 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays back a stretch of a peer's journal, record by record, keeping the
+ * gaps between them as they were or shortened by a speed factor.
+ *
+ * The replayer is a {@link Runnable}; run it on a {@link TaskScope} and
+ * cancel the scope to stop it, or on any thread and interrupt that.
+ */
+public class JournalReplayer implements Runnable {
+
+    /**
+     * Told about each record when its turn comes. Called on the replaying
+     * thread.
+     */
+    public interface Listener {
+        /**
+         * @param record The reader, positioned on the record; valid during
+         *               the call only
+         */
+        void onRecord(JournalReader record);
+
+        /**
+         * The replay ended, because it reached the end or was stopped.
+         *
+         * @param e The error that ended it, or null
+         */
+        void onReplayFinished(IOException e);
+    }
+
+    // Play back as it happened
+    public static final double SPEED_ORIGINAL = 1;
+    // Play back without waiting between records
+    public static final double SPEED_UNLIMITED = 0;
+
+    // Member fields
+    private final JournalReader mReader;
+    private final long mFromTime;
+    private final long mToTime;
+    private final double mSpeed;
+    private final Listener mListener;
+
+    /**
+     * Constructor.
+     *
+     * @param reader   The journal to play back; closed when done
+     * @param fromTime The first time to play back, in milliseconds since
+     *                 the epoch, or 0 for the start
+     * @param toTime   The last time to play back, or Long.MAX_VALUE for
+     *                 the end
+     * @param speed    How many times faster than it happened, e.g.
+     *                 {@link #SPEED_ORIGINAL}, or {@link #SPEED_UNLIMITED}
+     * @param listener Gets the records
+     */
+    public JournalReplayer(JournalReader reader, long fromTime, long toTime, double speed,
+                           Listener listener) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed must not be negative");
+        }
+        mReader = reader;
+        mFromTime = fromTime;
+        mToTime = toTime;
+        mSpeed = speed;
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        IOException error = null;
+        try {
+            if (!mReader.seek(mFromTime)) return;
+            long start = System.nanoTime();
+            long firstTime = -1;
+            while (mReader.next() && mReader.getTime() <= mToTime) {
+                if (firstTime < 0) firstTime = mReader.getTime();
+                if (mSpeed > 0) {
+                    long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(
+                            mReader.getTime() - firstTime) / mSpeed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                if (Thread.currentThread().isInterrupted()) return;
+                mListener.onRecord(mReader);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            mReader.close();
+            mListener.onReplayFinished(error);
+        }
+    }
+}
@@ -11,27 +11,33 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Handler;
-import android.os.Message;
 import android.support.v4.app.FragmentActivity;
 import android.support.v7.app.ActionBarActivity;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.LayoutInflater;
 import android.view.View;
-import android.widget.ArrayAdapter;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class MainActivity extends ActionBarActivity {
 
+    // recent lines of the conversation kept in memory; the rest is paged in
+    private static final int CONVERSATION_RING_SIZE = 512;
+
     // tells handler that is a message
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
@@ -45,7 +51,14 @@ public class MainActivity extends ActionBarActivity {
 
     private String mConnectedDeviceName = null;
     private StringBuffer mOutStringBuffer;
-    private ArrayAdapter<String> mConversationArrayAdapter;
+    private ExecutorService mConversationExecutor;
+    private ConversationLog mConversationLog;
+    private ConversationAdapter mConversationAdapter;
+    // whether the next connection starts a new conversation; a session
+    // that comes back after a dropped link keeps the one it had
+    private boolean mNewConversation = true;
+    private ExecutorService mJournalExecutor;
+    private MessageJournal mJournal;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -54,12 +67,21 @@ public class MainActivity extends ActionBarActivity {
 
         // set up the incoming message field
         ListView conversationView = (ListView) findViewById(R.id.in);
-        mConversationArrayAdapter = new ArrayAdapter<>(this, R.layout.message);
-        conversationView.setAdapter(mConversationArrayAdapter);
+        mConversationExecutor = Executors.newSingleThreadExecutor();
+        mConversationLog = new ConversationLog(new File(getCacheDir(), "conversation"),
+                CONVERSATION_RING_SIZE, mConversationExecutor, mConversationLogListener);
+        mConversationAdapter = new ConversationAdapter();
+        conversationView.setAdapter(mConversationAdapter);
         mOutStringBuffer = new StringBuffer("");
 
         // Initialize the BluetoothChatService to perform bluetooth connections
-        mService = new BluetoothService(this, mHandler);
+        mService = new BluetoothService(this);
+        mService.addListener(mServiceListener, new DisplayFrameExecutor());
+
+        // keep a journal of every message on a thread of its own
+        mJournalExecutor = Executors.newSingleThreadExecutor();
+        mJournal = new MessageJournal(new File(getFilesDir(), "journal"));
+        mService.addListener(mJournal, mJournalExecutor);
 
         // Ensure bluetooth is setup before continuing setup
         // TODO: CHECK IF ALREADY CONNECTED
@@ -90,7 +112,20 @@ public class MainActivity extends ActionBarActivity {
     protected void onDestroy() {
         super.onDestroy();
         unregisterReceiver(bluetoothBroadcastReceiver);
+        mService.removeListener(mServiceListener);
+        mService.removeListener(mJournal);
         disconnect();
+        // write out what the journal still has queued, then close it
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mJournal.close();
+            }
+        });
+        mJournalExecutor.shutdown();
+        // let the log delete its files before the thread goes away
+        mConversationLog.close();
+        mConversationExecutor.shutdown();
     }
 
 
@@ -124,6 +159,7 @@ public class MainActivity extends ActionBarActivity {
         if (mService != null) {
             mService.stop();
         }
+        mNewConversation = true;
         changeState(State.DISCONNECTED);
     }
 
@@ -320,7 +356,7 @@ public class MainActivity extends ActionBarActivity {
     }
 
     // ----------------------------------------------------------------------------------
-    // Message Handler
+    // Messages
     //
 
     /**
@@ -352,48 +388,126 @@ public class MainActivity extends ActionBarActivity {
     }
 
     /**
-     * The Handler that gets information back from the BluetoothChatService
+     * Add everything sent and received during one display frame to the
+     * conversation, redrawing it once for the whole batch.
+     */
+    private void addFrames(FrameBatch batch) {
+        // only say who a message went to when talking to several devices
+        boolean several = mService.getConnectionCount() > 1;
+        for (int i = 0; i < batch.size(); i++) {
+            Frame frame = batch.getFrame(i);
+            // channel messages are not part of the chat
+            if (frame.getType() != Frame.TYPE_DATA) continue;
+            // construct a string from the valid bytes in the frame
+            String message = new String(frame.getData(), 0, frame.getLength());
+            if (batch.isOutgoing(i)) {
+                String recipient = several ? " to " + frame.getConnection().getName() : "";
+                mConversationLog.append("Me" + recipient + ":  " + message);
+            } else {
+                frame.getConnection().getMetrics().onFrameDispatched(frame);
+                mConversationLog.append(frame.getConnection().getName() + ":  " + message);
+            }
+        }
+        mConversationAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Shows the lines of the conversation log. A line still being paged in
+     * from disk shows as a placeholder until the log says it is loaded.
      */
-    private final Handler mHandler = new Handler() {
+    private class ConversationAdapter extends BaseAdapter {
         @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case Constants.MESSAGE_STATE_CHANGE:
-                    switch (msg.arg1) {
-                        case BluetoothService.STATE_CONNECTED:
-                            changeState(State.CONNECTED);
-                            mConversationArrayAdapter.clear();
-                            break;
-                        case BluetoothService.STATE_CONNECTING:
-                            changeState(State.CONNECTING);
-                            break;
-                        case BluetoothService.STATE_LISTEN:
-                        case BluetoothService.STATE_NONE:
-                            changeState(State.DISCONNECTED);
-                            break;
+        public int getCount() {
+            return mConversationLog.size();
+        }
+
+        @Override
+        public String getItem(int position) {
+            return mConversationLog.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            // Check if an existing view is being reused, otherwise inflate the view
+            if (convertView == null) {
+                convertView = LayoutInflater.from(MainActivity.this)
+                        .inflate(R.layout.message, parent, false);
+            }
+            String line = getItem(position);
+            ((TextView) convertView).setText(line != null ? line : "\u2026");
+            return convertView;
+        }
+    }
+
+    /**
+     * Redraws the conversation once older lines were read back from disk
+     */
+    private final ConversationLog.Listener mConversationLogListener =
+            new ConversationLog.Listener() {
+                @Override
+                public void onLinesLoaded() {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mConversationAdapter.notifyDataSetChanged();
+                        }
+                    });
+                }
+            };
+
+    /**
+     * Gets information back from the BluetoothChatService, on the UI thread
+     * once per display frame
+     */
+    private final EventBus.Listener mServiceListener = new EventBus.Listener() {
+        @Override
+        public void onStateChanged(int oldState, int newState) {
+            switch (newState) {
+                case BluetoothService.STATE_CONNECTED:
+                    changeState(State.CONNECTED);
+                    if (mNewConversation) {
+                        mNewConversation = false;
+                        mConversationLog.clear();
+                        mConversationAdapter.notifyDataSetChanged();
                     }
                     break;
-                case Constants.MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
-                    mConversationArrayAdapter.add("Me:  " + writeMessage);
-                    break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
+                case BluetoothService.STATE_CONNECTING:
+                    changeState(State.CONNECTING);
                     break;
-                case Constants.MESSAGE_DEVICE_NAME:
-                    // save the connected device's name
-                    mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
-                    makeShortToast("Connected to " + mConnectedDeviceName);
-                    break;
-                case Constants.MESSAGE_TOAST:
-                    makeShortToast(msg.getData().getString(Constants.TOAST));
+                case BluetoothService.STATE_LISTEN:
+                case BluetoothService.STATE_NONE:
+                    changeState(State.DISCONNECTED);
                     break;
             }
         }
+
+        @Override
+        public void onDeviceConnected(String address, String name) {
+            // save the connected device's name
+            mConnectedDeviceName = name;
+            makeShortToast("Connected to " + mConnectedDeviceName);
+        }
+
+        @Override
+        public void onConnectFailed(String address) {
+            makeShortToast("Unable to connect device");
+        }
+
+        @Override
+        public void onConnectionLost(String address) {
+            // the session is over, not just reconnecting
+            mNewConversation = true;
+            makeShortToast("Device connection was lost");
+        }
+
+        @Override
+        public void onFrames(FrameBatch frames) {
+            addFrames(frames);
+        }
     };
 }
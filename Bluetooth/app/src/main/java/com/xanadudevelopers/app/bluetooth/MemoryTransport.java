@@ -0,0 +1,372 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Transport} whose sockets are in-memory pipes, for running the
+ * connection engine on a plain JVM without radios.
+ *
+ * Every endpoint is a MemoryTransport with its own address; endpoints that
+ * share a {@link Network} can connect to each other. Each direction of a
+ * connection is a bounded ring buffer, so a writer blocks when the reader
+ * falls behind, the same way a socket does when its send buffer is full.
+ * A network can also be given a bandwidth, to stand in for a slow radio
+ * link.
+ */
+public class MemoryTransport implements Transport {
+
+    // Bytes buffered per direction, roughly what an RFCOMM socket holds
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * The address space endpoints listen and connect in.
+     */
+    public static class Network {
+        private final int mPipeCapacity;
+        private final int mBytesPerSecond;
+        private final ConcurrentHashMap<String, MemoryServerSocket> mListeners =
+                new ConcurrentHashMap<>();
+        private final Set<MemorySocket> mSockets =
+                Collections.newSetFromMap(new ConcurrentHashMap<MemorySocket, Boolean>());
+
+        public Network() {
+            this(DEFAULT_PIPE_CAPACITY);
+        }
+
+        /**
+         * @param pipeCapacity Bytes buffered per direction of a connection
+         */
+        public Network(int pipeCapacity) {
+            this(pipeCapacity, 0);
+        }
+
+        /**
+         * @param pipeCapacity   Bytes buffered per direction of a connection
+         * @param bytesPerSecond The most each direction carries per second,
+         *                       or 0 for as fast as the reader takes it
+         */
+        public Network(int pipeCapacity, int bytesPerSecond) {
+            mPipeCapacity = pipeCapacity;
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Break every open connection at once, as if the radio link had
+         * dropped. Both ends see their streams fail.
+         */
+        public void dropConnections() {
+            for (MemorySocket socket : mSockets) {
+                socket.close();
+            }
+        }
+
+        private static String key(String address, boolean secure) {
+            return (secure ? "S/" : "I/") + address;
+        }
+    }
+
+    // Member fields
+    private final Network mNetwork;
+    private final String mAddress;
+    private final String mName;
+
+    /**
+     * Constructor.
+     *
+     * @param network The network this endpoint lives in
+     * @param address The address other endpoints connect to
+     * @param name    The device name other endpoints see
+     */
+    public MemoryTransport(Network network, String address, String name) {
+        mNetwork = network;
+        mAddress = address;
+        mName = name;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public ServerSocketWrapper listen(boolean secure) throws IOException {
+        String key = Network.key(mAddress, secure);
+        MemoryServerSocket serverSocket = new MemoryServerSocket(key);
+        if (mNetwork.mListeners.putIfAbsent(key, serverSocket) != null) {
+            throw new IOException("Address in use: " + key);
+        }
+        return serverSocket;
+    }
+
+    @Override
+    public BluetoothSocketWrapper connect(String address, boolean secure, TaskScope scope)
+            throws IOException {
+        MemoryServerSocket serverSocket = mNetwork.mListeners.get(Network.key(address, secure));
+        if (serverSocket == null) {
+            throw new IOException("Connection refused: " + address);
+        }
+        Pipe toServer = new Pipe(mNetwork.mPipeCapacity, mNetwork.mBytesPerSecond);
+        Pipe toClient = new Pipe(mNetwork.mPipeCapacity, mNetwork.mBytesPerSecond);
+        MemorySocket client = new MemorySocket(mNetwork, address, serverSocket.mOwnerName,
+                secure, toClient, toServer);
+        scope.add(client);
+        serverSocket.offer(new MemorySocket(mNetwork, mAddress, mName, secure, toServer,
+                toClient));
+        return client;
+    }
+
+    private class MemoryServerSocket implements ServerSocketWrapper {
+        private final String mmKey;
+        private final String mOwnerName = mName;
+        private final ArrayDeque<MemorySocket> mmPending = new ArrayDeque<>();
+        private boolean mmClosed;
+
+        MemoryServerSocket(String key) {
+            mmKey = key;
+        }
+
+        synchronized void offer(MemorySocket socket) throws IOException {
+            if (mmClosed) {
+                throw new IOException("Connection refused: " + mmKey);
+            }
+            mmPending.add(socket);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized BluetoothSocketWrapper accept() throws IOException {
+            while (mmPending.isEmpty() && !mmClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("accept() interrupted");
+                }
+            }
+            if (mmClosed) {
+                throw new IOException("Server socket closed");
+            }
+            return mmPending.poll();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mNetwork.mListeners.remove(mmKey, this);
+            synchronized (this) {
+                mmClosed = true;
+                notifyAll();
+                for (MemorySocket socket : mmPending) {
+                    socket.close();
+                }
+                mmPending.clear();
+            }
+        }
+    }
+
+    private static class MemorySocket implements BluetoothSocketWrapper {
+        private final Network mmNetwork;
+        private final String mmRemoteAddress;
+        private final String mmRemoteName;
+        private final boolean mmSecure;
+        private final Pipe mmIn;
+        private final Pipe mmOut;
+
+        MemorySocket(Network network, String remoteAddress, String remoteName, boolean secure,
+                     Pipe in, Pipe out) {
+            mmNetwork = network;
+            mmRemoteAddress = remoteAddress;
+            mmRemoteName = remoteName;
+            mmSecure = secure;
+            mmIn = in;
+            mmOut = out;
+            network.mSockets.add(this);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmIn.mInput;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOut.mOutput;
+        }
+
+        @Override
+        public String getRemoteDeviceName() {
+            return mmRemoteName;
+        }
+
+        @Override
+        public void connect() {
+            // The pipes are connected as soon as the socket exists
+        }
+
+        @Override
+        public String getRemoteDeviceAddress() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public boolean isSecure() {
+            return mmSecure;
+        }
+
+        @Override
+        public void close() {
+            mmNetwork.mSockets.remove(this);
+            mmIn.closeReader();
+            mmOut.closeWriter();
+        }
+    }
+
+    /**
+     * One direction of a connection: a bounded ring buffer with blocking
+     * stream ends. Closing the writer gives the reader end of stream once
+     * the buffer is drained; closing the reader makes further writes fail.
+     * With a bandwidth set, writes are let into the buffer in small chunks
+     * no faster than the link would carry them.
+     */
+    private static class Pipe {
+        // Bytes let through at a time when holding a bandwidth
+        private static final int PACING_CHUNK_SIZE = 512;
+
+        private final byte[] mBuffer;
+        private final int mBytesPerSecond;
+        private long mLinkFreeAt;
+        private int mReadPos;
+        private int mCount;
+        private boolean mReaderClosed;
+        private boolean mWriterClosed;
+
+        final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+
+        Pipe(int capacity, int bytesPerSecond) {
+            mBuffer = new byte[capacity];
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (mCount == 0 && !mWriterClosed && !mReaderClosed) {
+                waitInterruptibly();
+            }
+            if (mReaderClosed) {
+                throw new IOException("Socket closed");
+            }
+            if (mCount == 0) {
+                return -1;
+            }
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mReadPos);
+            System.arraycopy(mBuffer, mReadPos, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mReadPos = (mReadPos + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (!mReaderClosed && !mWriterClosed) {
+                    if (mCount == mBuffer.length) {
+                        waitInterruptibly();
+                        continue;
+                    }
+                    long busy = mLinkFreeAt - System.nanoTime();
+                    if (mBytesPerSecond == 0 || busy <= 0) break;
+                    waitInterruptibly(busy);
+                }
+                if (mReaderClosed || mWriterClosed) {
+                    throw new IOException("Broken pipe");
+                }
+                int n = Math.min(len, mBuffer.length - mCount);
+                if (mBytesPerSecond > 0) {
+                    n = Math.min(n, PACING_CHUNK_SIZE);
+                    mLinkFreeAt = Math.max(mLinkFreeAt, System.nanoTime())
+                            + n * 1000000000L / mBytesPerSecond;
+                }
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int first = Math.min(n, mBuffer.length - writePos);
+                System.arraycopy(b, off, mBuffer, writePos, first);
+                System.arraycopy(b, off + first, mBuffer, 0, n - first);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void closeReader() {
+            mReaderClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeWriter() {
+            mWriterClosed = true;
+            notifyAll();
+        }
+
+        private void waitInterruptibly() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void waitInterruptibly(long nanos) throws InterruptedIOException {
+            try {
+                wait(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
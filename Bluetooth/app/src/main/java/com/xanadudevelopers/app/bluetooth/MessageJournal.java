@@ -0,0 +1,424 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of every data frame and channel message sent to
+ * and received from each peer, for looking at or replaying a session later with a
+ * {@link JournalReader} and {@link JournalReplayer}.
+ *
+ * The journal is an {@link EventBus} listener; add it with an executor of
+ * its own, such as a single background thread. The read loops then only
+ * pay for posting the frame, which they do anyway. Frames arriving while
+ * the journal is still busy are handed over as one larger batch, and each
+ * batch is written and forced to disk with one write and one sync per
+ * peer, so the cost of syncing is shared by all frames of a batch.
+ *
+ * Each peer has a directory of segment files named after the sequence
+ * number of their first record. A record is
+ * <pre>
+ *   int length, int crc32, long sequence, long time, byte direction, payload
+ * </pre>
+ * with the CRC covering everything after itself, so a record torn by a
+ * crash is found and cut off when the journal is opened again. The
+ * direction of a channel message has {@link #FLAG_CHANNEL} set, and its
+ * payload ends with the two-byte id of the channel. Times are
+ * milliseconds since the epoch and never go backwards within a peer. Next
+ * to each segment an index file holds a (time, sequence, position) entry
+ * for the first record and then about every {@link #INDEX_INTERVAL}
+ * bytes, so a reader can seek to a time without scanning. Only the most
+ * recent segments of each peer are kept.
+ */
+public class MessageJournal extends EventBus.SimpleListener {
+
+    // Bytes before the payload of a record
+    static final int RECORD_HEADER_SIZE = 25;
+    // Bytes of one index entry
+    static final int INDEX_ENTRY_SIZE = 20;
+    // Bytes of records between index entries
+    static final int INDEX_INTERVAL = 4096;
+
+    static final byte DIRECTION_RECEIVED = 0;
+    static final byte DIRECTION_SENT = 1;
+    // Set in the direction of a record holding a channel message
+    static final byte FLAG_CHANNEL = 2;
+    // Bytes of the channel id after the message
+    static final int CHANNEL_ID_SIZE = 2;
+
+    static final String SEGMENT_SUFFIX = ".jnl";
+    static final String INDEX_SUFFIX = ".idx";
+
+    public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    // Member fields
+    private final File mDirectory;
+    private final long mSegmentSize;
+    private final int mMaxSegments;
+    private final Map<String, PeerJournal> mPeers = new HashMap<>();
+    private final CRC32 mCrc = new CRC32();
+    private volatile IOException mLastError;
+    private boolean mClosed;
+
+    /**
+     * Constructor, with segments of {@link #DEFAULT_SEGMENT_SIZE} bytes and
+     * at most {@link #DEFAULT_MAX_SEGMENTS} of them per peer.
+     *
+     * @param directory Where the journal goes; created if missing
+     */
+    public MessageJournal(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param directory   Where the journal goes; created if missing
+     * @param segmentSize Bytes after which a new segment is started
+     * @param maxSegments Segments kept per peer; older ones are deleted
+     */
+    public MessageJournal(File directory, long segmentSize, int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("At least one segment must be kept");
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Return the error that last stopped journaling a peer, or null. Frames
+     * of that peer are skipped until it connects again.
+     */
+    public IOException getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Open a reader over everything journaled for a peer so far.
+     */
+    public JournalReader openReader(String address) {
+        return new JournalReader(peerDirectory(mDirectory, address));
+    }
+
+    @Override
+    public synchronized void onFrames(FrameBatch frames) {
+        if (mClosed) return;
+        long now = System.currentTimeMillis();
+        long nanoNow = System.nanoTime();
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.getFrame(i);
+            if (frame.getConnection() == null) continue;
+            byte direction = frames.isOutgoing(i) ? DIRECTION_SENT : DIRECTION_RECEIVED;
+            int length = frame.getLength();
+            int channel = frame.getChannelId();
+            if (frame.getType() == Frame.TYPE_CHANNEL) {
+                // Only messages; opening, closing and credit are left out
+                if (channel == Frame.NO_CHANNEL) continue;
+                direction |= FLAG_CHANNEL;
+            } else if (frame.getType() != Frame.TYPE_DATA) {
+                continue;
+            }
+            PeerJournal peer = peer(frame.getConnection().getAddress());
+            if (peer == null) continue;
+            // A received frame is stamped with when it came off the socket
+            long time = frame.getReceivedTime() != 0
+                    ? now - (nanoNow - frame.getReceivedTime()) / 1000000
+                    : now;
+            try {
+                peer.append(frame.getData(), length, direction, channel, time);
+            } catch (IOException e) {
+                fail(peer, e);
+            }
+        }
+        // Group commit: one write and one sync per peer for the whole batch
+        for (PeerJournal peer : mPeers.values()) {
+            if (peer.mmFailed) continue;
+            try {
+                peer.commit();
+            } catch (IOException e) {
+                fail(peer, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onConnectionLost(String address) {
+        PeerJournal peer = mPeers.remove(address);
+        if (peer != null) {
+            peer.close();
+        }
+    }
+
+    /**
+     * Sync and close every segment. Frames handed over later are ignored.
+     * Call it on the journal's executor so frames already queued for the
+     * journal are written first.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        for (PeerJournal peer : mPeers.values()) {
+            if (!peer.mmFailed) {
+                try {
+                    peer.commit();
+                } catch (IOException e) {
+                    mLastError = e;
+                }
+            }
+            peer.close();
+        }
+        mPeers.clear();
+    }
+
+    private PeerJournal peer(String address) {
+        PeerJournal peer = mPeers.get(address);
+        if (peer == null) {
+            peer = new PeerJournal(peerDirectory(mDirectory, address));
+            mPeers.put(address, peer);
+            try {
+                peer.open();
+            } catch (IOException e) {
+                fail(peer, e);
+            }
+        }
+        return peer.mmFailed ? null : peer;
+    }
+
+    private void fail(PeerJournal peer, IOException e) {
+        mLastError = e;
+        peer.mmFailed = true;
+        peer.close();
+    }
+
+    /**
+     * Return the directory holding the journal of one peer.
+     */
+    static File peerDirectory(File directory, String address) {
+        // Addresses contain colons, which not every file system takes
+        return new File(directory, address.replaceAll("[^A-Za-z0-9.-]", "_"));
+    }
+
+    /**
+     * Return the segments of a peer, oldest first.
+     */
+    static File[] listSegments(File peerDirectory) {
+        File[] files = peerDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return files;
+    }
+
+    static File indexFile(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(),
+                name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    /**
+     * The open segment of one peer and the records not yet written to it.
+     */
+    private class PeerJournal {
+        final File mmDirectory;
+        ByteBuffer mmRecords = ByteBuffer.allocate(INDEX_INTERVAL * 4);
+        ByteBuffer mmIndex = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 16);
+        FileChannel mmSegment;
+        FileChannel mmIndexChannel;
+        // Bytes of the segment on disk
+        long mmPosition;
+        // Position of the latest index entry, -1 if the segment has none
+        long mmLastIndexed = -1;
+        long mmNextSequence;
+        long mmLastTime;
+        boolean mmFailed;
+
+        PeerJournal(File directory) {
+            mmDirectory = directory;
+        }
+
+        /**
+         * Open the latest segment for appending, cutting off a torn record
+         * at its end and rebuilding its index.
+         */
+        void open() throws IOException {
+            if (!mmDirectory.isDirectory() && !mmDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mmDirectory);
+            }
+            File[] segments = listSegments(mmDirectory);
+            if (segments.length == 0) {
+                startSegment();
+                return;
+            }
+            File last = segments[segments.length - 1];
+            openSegment(last);
+            JournalReader reader = new JournalReader(mmDirectory);
+            try {
+                reader.openSegment(last);
+                while (reader.nextInSegment()) {
+                    addIndexEntry(reader.getPosition(), reader.getTime(), reader.getSequence());
+                    mmNextSequence = reader.getSequence() + 1;
+                    mmLastTime = reader.getTime();
+                }
+                mmPosition = reader.getNextPosition();
+            } finally {
+                reader.close();
+            }
+            if (mmNextSequence == 0) {
+                // Nothing valid in it; the name still says where it starts
+                String name = last.getName();
+                mmNextSequence = Long.parseLong(
+                        name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            }
+            mmSegment.truncate(mmPosition);
+            mmSegment.position(mmPosition);
+            mmIndexChannel.truncate(0);
+            mmIndexChannel.position(0);
+            mmIndex.flip();
+            writeFully(mmIndexChannel, mmIndex);
+            mmIndex.clear();
+        }
+
+        void append(byte[] data, int length, byte direction, int channel, long time)
+                throws IOException {
+            int size = channel != JournalReader.NO_CHANNEL ? length + CHANNEL_ID_SIZE : length;
+            long end = mmPosition + mmRecords.position();
+            if (end > 0 && end + RECORD_HEADER_SIZE + size > mSegmentSize) {
+                commit();
+                closeSegment();
+                startSegment();
+                end = 0;
+            }
+            time = Math.max(time, mmLastTime);
+            addIndexEntry(end, time, mmNextSequence);
+
+            mmRecords = ensureCapacity(mmRecords, RECORD_HEADER_SIZE + size);
+            int start = mmRecords.position();
+            mmRecords.putInt(size);
+            mmRecords.putInt(0);
+            mmRecords.putLong(mmNextSequence);
+            mmRecords.putLong(time);
+            mmRecords.put(direction);
+            mmRecords.put(data, 0, length);
+            if (size != length) {
+                mmRecords.putShort((short) channel);
+            }
+            mCrc.reset();
+            mCrc.update(mmRecords.array(), start + 8, RECORD_HEADER_SIZE - 8 + size);
+            mmRecords.putInt(start + 4, (int) mCrc.getValue());
+            mmNextSequence++;
+            mmLastTime = time;
+        }
+
+        /**
+         * Write the records appended since the last commit and sync them.
+         */
+        void commit() throws IOException {
+            if (mmRecords.position() == 0) return;
+            mmRecords.flip();
+            mmIndex.flip();
+            mmPosition += writeFully(mmSegment, mmRecords);
+            writeFully(mmIndexChannel, mmIndex);
+            mmRecords.clear();
+            mmIndex.clear();
+            mmSegment.force(false);
+            // A lost index entry only makes seeking scan a little further
+        }
+
+        void close() {
+            closeSegment();
+            mmRecords.clear();
+            mmIndex.clear();
+        }
+
+        private void addIndexEntry(long position, long time, long sequence) {
+            if (mmLastIndexed >= 0 && position - mmLastIndexed < INDEX_INTERVAL) return;
+            mmIndex = ensureCapacity(mmIndex, INDEX_ENTRY_SIZE);
+            mmIndex.putLong(time);
+            mmIndex.putLong(sequence);
+            mmIndex.putInt((int) position);
+            mmLastIndexed = position;
+        }
+
+        private void startSegment() throws IOException {
+            File[] segments = listSegments(mmDirectory);
+            for (int i = 0; i <= segments.length - mMaxSegments; i++) {
+                indexFile(segments[i]).delete();
+                segments[i].delete();
+            }
+            openSegment(new File(mmDirectory,
+                    String.format(Locale.US, "%020d", mmNextSequence) + SEGMENT_SUFFIX));
+            mmSegment.truncate(0);
+            mmIndexChannel.truncate(0);
+            mmPosition = 0;
+            mmLastIndexed = -1;
+        }
+
+        @SuppressWarnings("resource")
+        private void openSegment(File segment) throws IOException {
+            mmSegment = new RandomAccessFile(segment, "rw").getChannel();
+            try {
+                mmIndexChannel = new RandomAccessFile(indexFile(segment), "rw").getChannel();
+            } catch (IOException e) {
+                closeSegment();
+                throw e;
+            }
+        }
+
+        private void closeSegment() {
+            closeQuietly(mmSegment);
+            closeQuietly(mmIndexChannel);
+            mmSegment = null;
+            mmIndexChannel = null;
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) return buffer;
+        ByteBuffer larger = ByteBuffer.allocate(
+                Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int count = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return count;
+    }
+
+    static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything a {@link ConnectionManager} counts: connection attempts and
+ * their duration, plus a {@link ConnectionMetrics} for every device it was
+ * ever connected to. Query it with {@link #snapshot()}.
+ */
+public class Metrics {
+
+    // Member fields
+    private final ConcurrentHashMap<String, ConnectionMetrics> mConnections =
+            new ConcurrentHashMap<>();
+    private final AtomicLong mConnectAttempts = new AtomicLong();
+    private final AtomicLong mConnectFailures = new AtomicLong();
+    private final AtomicLong mConnects = new AtomicLong();
+    private final LatencyHistogram mConnectTime = new LatencyHistogram();
+
+    /**
+     * Return the metrics of a device, creating them the first time.
+     */
+    ConnectionMetrics forAddress(String address) {
+        ConnectionMetrics metrics = mConnections.get(address);
+        if (metrics == null) {
+            ConnectionMetrics created = new ConnectionMetrics(address);
+            metrics = mConnections.putIfAbsent(address, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    void onConnectStarted() {
+        mConnectAttempts.incrementAndGet();
+    }
+
+    void onConnectFailed() {
+        mConnectFailures.incrementAndGet();
+    }
+
+    /**
+     * @param connectNanos How long connecting took, or -1 if the remote
+     *                     device connected to us
+     */
+    void onConnected(long connectNanos) {
+        mConnects.incrementAndGet();
+        if (connectNanos >= 0) {
+            mConnectTime.record(connectNanos);
+        }
+    }
+
+    public Snapshot snapshot() {
+        List<ConnectionMetrics.Snapshot> connections = new ArrayList<>(mConnections.size());
+        for (ConnectionMetrics metrics : mConnections.values()) {
+            connections.add(metrics.snapshot());
+        }
+        return new Snapshot(this, connections);
+    }
+
+    /**
+     * The metrics of the whole service at one point in time.
+     */
+    public static class Snapshot {
+        private final long mConnectAttempts;
+        private final long mConnectFailures;
+        private final long mConnects;
+        private final LatencyHistogram.Snapshot mConnectTime;
+        private final List<ConnectionMetrics.Snapshot> mConnections;
+
+        Snapshot(Metrics metrics, List<ConnectionMetrics.Snapshot> connections) {
+            mConnectAttempts = metrics.mConnectAttempts.get();
+            mConnectFailures = metrics.mConnectFailures.get();
+            mConnects = metrics.mConnects.get();
+            mConnectTime = metrics.mConnectTime.snapshot();
+            mConnections = Collections.unmodifiableList(connections);
+        }
+
+        /**
+         * Return the number of outgoing connection attempts.
+         */
+        public long getConnectAttempts() {
+            return mConnectAttempts;
+        }
+
+        public long getConnectFailures() {
+            return mConnectFailures;
+        }
+
+        /**
+         * Return the number of connections established, in either direction.
+         */
+        public long getConnects() {
+            return mConnects;
+        }
+
+        /**
+         * Return how long successful outgoing connection attempts took.
+         */
+        public LatencyHistogram.Snapshot getConnectTime() {
+            return mConnectTime;
+        }
+
+        /**
+         * Return the devices that are connected now.
+         */
+        public int getActiveConnections() {
+            int active = 0;
+            for (ConnectionMetrics.Snapshot connection : mConnections) {
+                if (connection.isConnected()) active++;
+            }
+            return active;
+        }
+
+        /**
+         * Return every device ever connected, whether connected now or not.
+         */
+        public List<ConnectionMetrics.Snapshot> getConnections() {
+            return mConnections;
+        }
+
+        /**
+         * Return a device's metrics, or null if it was never connected.
+         */
+        public ConnectionMetrics.Snapshot getConnection(String address) {
+            for (ConnectionMetrics.Snapshot connection : mConnections) {
+                if (connection.getAddress().equals(address)) return connection;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("connects=").append(mConnects)
+                    .append(" attempts=").append(mConnectAttempts)
+                    .append(" failures=").append(mConnectFailures)
+                    .append(" connectTime=[").append(mConnectTime).append(']');
+            for (ConnectionMetrics.Snapshot connection : mConnections) {
+                sb.append('\n').append(connection);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The listening side of a {@link Transport}, standing in for a
+ * {@link android.bluetooth.BluetoothServerSocket}.
+ */
+public interface ServerSocketWrapper extends Closeable {
+
+    /**
+     * Block until a remote device connects. Closing the server socket from
+     * another thread makes a blocked call throw.
+     */
+    BluetoothSocketWrapper accept() throws IOException;
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,1031 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The conversation with one remote device. It outlives the connections
+ * it runs over, so a link that drops and comes back picks up where it
+ * left off instead of losing what was in flight.
+ *
+ * Data frames, and the {@link Frame#TYPE_FILE} and
+ * {@link Frame#TYPE_CHANNEL} frames of file transfers and channels along
+ * with them, are numbered implicitly: the stream under a connection is
+ * ordered and reliable, so the n-th data frame sent on a session is
+ * sequence number n and each side only has to count. The receiver
+ * periodically sends a cumulative {@link Frame#TYPE_ACK} with the number
+ * of frames it has received, and the sender keeps every frame until it is
+ * acknowledged; only then is its callback told it was sent, so callers
+ * must leave the payload alone until that. When a new connection is attached both sides exchange a
+ * {@link Frame#TYPE_HELLO} with their session id and receive count, and
+ * each retransmits exactly the frames the other has not seen. New data is
+ * held back until then so it cannot overtake a retransmission. The hello
+ * also carries feature flags; compression is used on a connection when
+ * both sides offer it, and channels only once the peer said it has them.
+ *
+ * Acks and hellos also grant credit: the number the sender may number
+ * its frames up to. A received frame holds on to credit until the last
+ * consumer recycles it, so a receiver whose listeners fall behind stops
+ * granting, and the sender stops sending, with at most
+ * {@link #RECEIVE_WINDOW} frames waiting to be consumed. A peer that
+ * grants no credit is not limited by it.
+ *
+ * Frames are not numbered when they are handed to the session but when
+ * they leave it, so the order they go out in can still be chosen. Each
+ * has a priority and waits in the lane of it: control frames, which
+ * other frames depend on, go first; interactive and bulk frames share
+ * the link by deficit round robin, interactive ones getting
+ * {@link #WEIGHT_INTERACTIVE} times the bytes. Only about a batch is
+ * kept waiting in the write queue of the connection, so a frame that
+ * arrives later but matters more never waits behind much. A message larger than
+ * {@link #FRAGMENT_SIZE} is cut into {@link Frame#TYPE_FRAGMENT} frames
+ * for a peer that can put them back together, so no single message
+ * holds the link for long either. On a compressed connection a large data
+ * message is deflated whole before it is cut, and inflated again once
+ * its last fragment is in. Messages of one priority stay in
+ * order; messages of different priorities may overtake each other.
+ *
+ * A link to a peer that walked out of range can stay silent for a long
+ * time before a read fails. While a connection runs, the session sends a
+ * {@link Frame#TYPE_PING} every heartbeat interval, and the peer answers
+ * it straight away; the answers give the round trip time in the
+ * connection's metrics. If nothing at all has come in for
+ * {@link #MISSED_HEARTBEATS} intervals plus a margin of the smoothed round
+ * trip time and four times its deviation, the connection is aborted and
+ * reported lost, so that happens within a bound known in advance.
+ */
+public class Session {
+
+    // Most data frames sent but not yet acknowledged. The write queue of a
+    // connection must be able to hold all of them plus the control frames.
+    static final int WINDOW = 128;
+    // Acknowledge at least this often, in frames and in time
+    private static final int ACK_EVERY = WINDOW / 4;
+    private static final long ACK_INTERVAL_MS = 20;
+    // Most frames received but not yet consumed before credit runs out
+    static final int RECEIVE_WINDOW = WINDOW;
+
+    // Feature flags in the last byte of a hello
+    private static final int FLAG_COMPRESSION = 1;
+    private static final int FLAG_CHANNELS = 2;
+    private static final int FLAG_FRAGMENTS = 4;
+    private static final int FLAG_HEARTBEATS = 8;
+
+    // Operation and the sender's System.nanoTime(), echoed in the answer
+    private static final int PING_SIZE = 9;
+    private static final int OP_PING = 0;
+    private static final int OP_PONG = 1;
+    // Heartbeats that may go unanswered before a connection is given up
+    static final int MISSED_HEARTBEATS = 3;
+    // Bounds of the time a connection may stay silent
+    private static final long MIN_DEAD_PEER_TIMEOUT_MS = 1000;
+    private static final long MAX_DEAD_PEER_TIMEOUT_MS = 30000;
+
+    // Priorities, the lanes frames wait in until they are numbered
+    public static final int PRIORITY_CONTROL = 0;     // always first
+    public static final int PRIORITY_INTERACTIVE = 1; // messages
+    public static final int PRIORITY_BULK = 2;        // file chunks and the like
+    // Share of the link per round, in fragments, while both have frames
+    private static final int WEIGHT_INTERACTIVE = 4;
+    private static final int WEIGHT_BULK = 1;
+    // Most messages of a priority waiting or unacknowledged, as many as
+    // the window so a full lane does not add to the wait
+    private static final int LANE_CAPACITY = WINDOW;
+
+    // The largest message the peer takes, whole or put back together
+    public static final int MAX_MESSAGE_SIZE = FrameCodec.DEFAULT_MAX_FRAME_SIZE;
+    // The largest frame sent whole to a peer that takes fragments: the
+    // size of the read buffers, so fragments are read into pooled ones
+    static final int FRAGMENT_SIZE = 1024;
+    // Type of the message and flags, at the end of a fragment
+    private static final int FRAGMENT_TRAILER_SIZE = 2;
+    private static final int FRAGMENT_FIRST = 1;
+    private static final int FRAGMENT_LAST = 2;
+    private static final int FRAGMENT_LANE_SHIFT = 2;
+    private static final int FRAGMENT_LANE_MASK = 3;
+    private static final int FRAGMENT_DEFLATED = 16;
+    // Fragment buffers kept for reuse
+    private static final int FRAGMENT_POOL_SIZE = WINDOW / 4;
+    // Stop numbering frames while this many bytes wait for the writer of
+    // the connection, about a batch; it asks for more when it runs dry
+    private static final int MAX_QUEUED_BYTES = 4096;
+
+    private static final Random sRandom = new Random();
+
+    // Member fields
+    private final String mAddress;
+    private final long mLocalId;
+    private final TaskScope mScope;
+    private final Connection.Listener mListener;
+    private final ArrayDeque<Pending> mUnacked = new ArrayDeque<>();
+    private final Lane[] mLanes = {
+            new Lane(PRIORITY_CONTROL, 0),
+            new Lane(PRIORITY_INTERACTIVE, WEIGHT_INTERACTIVE),
+            new Lane(PRIORITY_BULK, WEIGHT_BULK)};
+    private int mLaneTurn = PRIORITY_INTERACTIVE;
+    // Messages in the lanes; read without the lock by the writer
+    private volatile int mQueued;
+    private BufferPool mFragmentPool;
+    private final Reassembly[] mReassembly = new Reassembly[mLanes.length];
+    private List<Pending> mDelivered;
+    private long mRemoteId;
+    private long mAckedSeq;
+    private long mNextSeq;
+    private long mReceived;
+    private long mLastAckSent;
+    private long mCreditLimit = RECEIVE_WINDOW;
+    private long mLastCreditSent;
+    private int mHeld;
+    private boolean mAckQueued;
+    private Connection mConnection;
+    private Connection mLastConnection;
+    private boolean mResumed;
+    private boolean mOutgoing;
+    private boolean mSecure;
+    private boolean mCompression;
+    private boolean mDeflate;
+    private boolean mPeerChannels;
+    private boolean mPeerFragments;
+    private boolean mPeerHeartbeats;
+    private long mLastPingSent;
+    private volatile Runnable mWritableListener;
+    private int mReconnectAttempts;
+    private ScheduledFuture<?> mTimer;
+    private boolean mClosed;
+
+    /**
+     * Constructor.
+     *
+     * @param address  The remote device address
+     * @param engine   Runs the session's timers
+     * @param listener Told when a data frame has been acknowledged, or
+     *                 given up on
+     */
+    Session(String address, IoEngine engine, Connection.Listener listener) {
+        mAddress = address;
+        mScope = engine.newScope("Session " + address);
+        mListener = listener;
+        long id;
+        do {
+            id = sRandom.nextLong();
+        } while (id == 0);
+        mLocalId = id;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public synchronized boolean isAttached() {
+        return mConnection != null;
+    }
+
+    /**
+     * Return the number of messages waiting to be sent plus the frames
+     * sent but not yet acknowledged.
+     */
+    public synchronized int getUnackedCount() {
+        return mQueued + mUnacked.size();
+    }
+
+    /**
+     * Return how many more frames can be sent right now, within both the
+     * window and the peer's credit.
+     */
+    public synchronized long getSendCredit() {
+        if (mClosed) return 0;
+        return Math.max(0, Math.min(WINDOW - mUnacked.size(), mCreditLimit - mNextSeq));
+    }
+
+    /**
+     * Return true while the session runs over a connection and has caught
+     * up with the peer.
+     */
+    synchronized boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * Return true if the session is resumed and the peer takes
+     * {@link Frame#TYPE_CHANNEL} frames.
+     */
+    synchronized boolean hasChannels() {
+        return mResumed && mPeerChannels;
+    }
+
+    /**
+     * Set a task to run whenever acks, credit or a resume may have made
+     * room to send. It runs on the reader thread, without the session lock.
+     */
+    void setWritableListener(Runnable listener) {
+        mWritableListener = listener;
+    }
+
+    /**
+     * Return true once the session has ended for good.
+     */
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    synchronized Connection getLastConnection() {
+        return mLastConnection;
+    }
+
+    synchronized boolean isOutgoing() {
+        return mOutgoing;
+    }
+
+    synchronized boolean isSecure() {
+        return mSecure;
+    }
+
+    /**
+     * Run the session over a new connection and start resuming it. Call
+     * before starting the connection, so the peer's hello finds the
+     * session attached.
+     *
+     * @param outgoing Whether we connected out, which makes us the side that
+     *                 reconnects after a drop
+     * @param secure      How the connection was made, for reconnecting
+     * @param compression Whether to offer compressing data frames
+     */
+    synchronized void attach(Connection connection, boolean outgoing, boolean secure,
+                             boolean compression) {
+        mConnection = connection;
+        mLastConnection = connection;
+        mResumed = false;
+        mAckQueued = false;
+        mOutgoing = outgoing;
+        mSecure = secure;
+        mCompression = compression;
+        mReconnectAttempts = 0;
+        cancelTimer();
+        connection.getWriteQueue().setIdleListener(mIdleListener);
+
+        byte[] hello = new byte[33];
+        putLong(hello, 0, mLocalId);
+        putLong(hello, 8, mRemoteId);
+        putLong(hello, 16, mReceived);
+        hello[24] = (byte) ((compression ? FLAG_COMPRESSION : 0) | FLAG_CHANNELS
+                | FLAG_FRAGMENTS | FLAG_HEARTBEATS);
+        putLong(hello, 25, getCreditLimit());
+        mLastAckSent = mReceived;
+        mLastCreditSent = getCreditLimit();
+        connection.write(Frame.TYPE_HELLO, hello, null);
+    }
+
+    /**
+     * Start acknowledging and sending heartbeats on a timer, once the
+     * connection has been started.
+     *
+     * @param heartbeatMillis How often to ping the peer, or 0 to neither
+     *                        ping it nor give up on a silent connection
+     */
+    void startTimers(final Connection connection, long heartbeatMillis) {
+        final long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        try {
+            connection.getScope().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Session.this) {
+                        if (mConnection != connection) return;
+                        if (mReceived != mLastAckSent || getCreditLimit() != mLastCreditSent) {
+                            sendAck();
+                        }
+                        if (heartbeatNanos > 0) {
+                            heartbeat(connection, heartbeatNanos);
+                        }
+                    }
+                }
+            }, ACK_INTERVAL_MS, ACK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Already closed again; the loss is handled elsewhere
+        }
+    }
+
+    /**
+     * Abort the connection if the peer has been silent for too long, and
+     * ping it when a heartbeat is due. Called with the session lock held.
+     */
+    private void heartbeat(Connection connection, long heartbeatNanos) {
+        long now = System.nanoTime();
+        // A peer without heartbeats may be silent while idle, but every
+        // peer says hello right away
+        if (!mResumed || mPeerHeartbeats) {
+            long timeout = getDeadPeerTimeoutNanos(connection, heartbeatNanos);
+            long silent = now - connection.getLastReceivedTime();
+            if (silent > timeout) {
+                connection.abort(new IOException(String.format(Locale.US,
+                        "No word from %s in %d ms", mAddress,
+                        TimeUnit.NANOSECONDS.toMillis(silent))));
+                return;
+            }
+        }
+        if (mResumed && mPeerHeartbeats && now - mLastPingSent >= heartbeatNanos) {
+            byte[] ping = new byte[PING_SIZE];
+            ping[0] = OP_PING;
+            putLong(ping, 1, now);
+            if (connection.write(Frame.TYPE_PING, ping, null)) {
+                mLastPingSent = now;
+            }
+        }
+    }
+
+    /**
+     * Return how long the peer may be silent: a few heartbeats, plus the
+     * retransmission timeout of RFC 6298 for the answer to the last one.
+     */
+    private static long getDeadPeerTimeoutNanos(Connection connection, long heartbeatNanos) {
+        ConnectionMetrics metrics = connection.getMetrics();
+        long rtt = metrics.getSmoothedRttNanos();
+        long margin = rtt >= 0 ? rtt + 4 * metrics.getRttJitterNanos() : heartbeatNanos;
+        long timeout = MISSED_HEARTBEATS * heartbeatNanos + margin;
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_DEAD_PEER_TIMEOUT_MS),
+                Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_DEAD_PEER_TIMEOUT_MS), timeout));
+    }
+
+    /**
+     * Answer a heartbeat, or take the round trip time from an answer.
+     * Called on the reader thread.
+     */
+    void onPing(Connection connection, Frame frame) {
+        if (frame.getLength() < PING_SIZE) return;
+        byte[] data = frame.getData();
+        if (data[0] == OP_PING) {
+            byte[] pong = Arrays.copyOf(data, PING_SIZE);
+            pong[0] = OP_PONG;
+            // If the queue is full the next heartbeat is answered instead
+            connection.write(Frame.TYPE_PING, pong, null);
+        } else if (data[0] == OP_PONG) {
+            long rtt = frame.getReceivedTime() - getLong(data, 1);
+            if (rtt >= 0) {
+                connection.getMetrics().onRttSample(rtt);
+            }
+        }
+    }
+
+    /**
+     * Stop using a connection. Unacknowledged frames stay queued for the
+     * next one.
+     *
+     * @return false if the session had already moved on to another connection
+     */
+    synchronized boolean detach(Connection connection) {
+        if (mConnection != connection) return false;
+        mConnection = null;
+        mResumed = false;
+        return true;
+    }
+
+    /**
+     * Queue an interactive data frame. It is sent as soon as the session is
+     * resumed and has room.
+     *
+     * @return false if too many messages are waiting or the session has
+     * ended
+     */
+    synchronized boolean send(byte[] data, WriteQueue.Callback callback) {
+        return send(Frame.TYPE_DATA, PRIORITY_INTERACTIVE, data, callback);
+    }
+
+    /**
+     * Queue a frame of a type the session numbers, see
+     * {@link Frame#isSequenced(int)}. Only data frames are reported to the
+     * listener; the callback hears about any type.
+     *
+     * @param priority {@link #PRIORITY_CONTROL}, {@link #PRIORITY_INTERACTIVE}
+     *                 or {@link #PRIORITY_BULK}
+     * @return false if too many messages of the priority are waiting or
+     * unacknowledged, or the session has ended
+     * @throws IllegalArgumentException if data is larger than
+     *                                  {@link #MAX_MESSAGE_SIZE}
+     */
+    synchronized boolean send(int type, int priority, byte[] data,
+                              WriteQueue.Callback callback) {
+        if (priority < 0 || priority >= mLanes.length) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        // Refused here rather than acknowledged and dropped by the peer
+        if (data.length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Message of " + data.length
+                    + " bytes exceeds the limit of " + MAX_MESSAGE_SIZE);
+        }
+        Lane lane = mLanes[priority];
+        if (mClosed || lane.mOutstanding >= LANE_CAPACITY) return false;
+        lane.mQueue.add(new Outgoing(type, priority, data, callback));
+        lane.mOutstanding++;
+        mQueued++;
+        pump();
+        return true;
+    }
+
+    /**
+     * Queue a frame, waiting for room at its priority. Do not call on the UI
+     * thread.
+     *
+     * @return false if there was no room before the timeout, the session
+     * ended or the thread was interrupted; the interrupt is kept
+     */
+    synchronized boolean send(int type, int priority, byte[] data,
+                              WriteQueue.Callback callback, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!send(type, priority, data, callback)) {
+            long wait = deadline - System.nanoTime();
+            if (mClosed || wait <= 0) return false;
+            try {
+                // Woken by acks
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number frames from the lanes and hand them to the connection, while
+     * the window, the peer's credit and the write queue have room. Called
+     * with the session lock held.
+     *
+     * @return true if any message left its lane
+     */
+    private boolean pump() {
+        if (mClosed || !mResumed) return false;
+        WriteQueue queue = mConnection.getWriteQueue();
+        boolean moved = false;
+        while (mUnacked.size() < WINDOW && mNextSeq < mCreditLimit
+                && queue.getQueuedBytes() < MAX_QUEUED_BYTES) {
+            Lane lane = nextLane();
+            if (lane == null) break;
+            Outgoing message = lane.mQueue.peek();
+            int type = message.mType;
+            byte[] data = message.mData;
+            boolean last = true;
+            if (message.mOffset > 0 || (mPeerFragments && data.length > FRAGMENT_SIZE)) {
+                if (message.mPayload == null) {
+                    message.mPayload = deflate(message);
+                }
+                data = cutFragment(message, lane.mPriority);
+                type = Frame.TYPE_FRAGMENT;
+                last = message.mOffset + data.length - FRAGMENT_TRAILER_SIZE
+                        == message.mPayload.length;
+            }
+            // The latency of a message is that of the frame that ends it
+            long queuedAt = last ? message.mQueuedAt : WriteQueue.UNTIMED;
+            if (!mConnection.write(type, data, queuedAt)) {
+                // Full of frames too small to reach the byte limit
+                if (type == Frame.TYPE_FRAGMENT) releaseFragment(data);
+                break;
+            }
+            lane.mDeficit -= data.length;
+            if (type == Frame.TYPE_FRAGMENT) {
+                message.mOffset += data.length - FRAGMENT_TRAILER_SIZE;
+            }
+            mUnacked.add(new Pending(type, data, last ? message : null, queuedAt,
+                    mConnection));
+            mNextSeq++;
+            if (last) {
+                lane.mQueue.poll();
+                mQueued--;
+                moved = true;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Pick the lane to take the next frame from: control first, then
+     * interactive and bulk in turn, each for as many bytes as its weight
+     * allows.
+     *
+     * @return the lane, or null if all are empty
+     */
+    private Lane nextLane() {
+        if (!mLanes[PRIORITY_CONTROL].mQueue.isEmpty()) return mLanes[PRIORITY_CONTROL];
+        if (mLanes[PRIORITY_INTERACTIVE].mQueue.isEmpty()
+                && mLanes[PRIORITY_BULK].mQueue.isEmpty()) return null;
+        while (true) {
+            Lane lane = mLanes[mLaneTurn];
+            if (lane.mQueue.isEmpty()) {
+                // An idle lane does not save up for later
+                lane.mDeficit = 0;
+            } else if (lane.mDeficit > 0) {
+                return lane;
+            } else {
+                lane.mDeficit += lane.mQuantum;
+            }
+            mLaneTurn = mLaneTurn == PRIORITY_INTERACTIVE ? PRIORITY_BULK : PRIORITY_INTERACTIVE;
+        }
+    }
+
+    /**
+     * Return what to cut a message into fragments from: the message
+     * deflated, if the connection is compressed and that pays off, or
+     * the message as it is.
+     */
+    private byte[] deflate(Outgoing message) {
+        if (mDeflate && message.mType == Frame.TYPE_DATA) {
+            byte[] deflated = mConnection.getCompressor().compressMessage(message.mData);
+            if (deflated != null) return deflated;
+        }
+        return message.mData;
+    }
+
+    /**
+     * Copy the next piece of a message into a fragment, followed by the
+     * message's type and the fragment's flags.
+     */
+    private byte[] cutFragment(Outgoing message, int priority) {
+        byte[] payload = message.mPayload;
+        int length = Math.min(FRAGMENT_SIZE - FRAGMENT_TRAILER_SIZE,
+                payload.length - message.mOffset);
+        boolean last = message.mOffset + length == payload.length;
+        byte[] fragment;
+        if (last) {
+            // Frames are sent whole, so the last one gets a buffer of its size
+            fragment = new byte[length + FRAGMENT_TRAILER_SIZE];
+        } else {
+            if (mFragmentPool == null) {
+                mFragmentPool = new BufferPool(FRAGMENT_SIZE, FRAGMENT_POOL_SIZE);
+            }
+            fragment = mFragmentPool.acquire();
+        }
+        System.arraycopy(payload, message.mOffset, fragment, 0, length);
+        int flags = priority << FRAGMENT_LANE_SHIFT;
+        if (message.mOffset == 0) flags |= FRAGMENT_FIRST;
+        if (last) flags |= FRAGMENT_LAST;
+        if (payload != message.mData) flags |= FRAGMENT_DEFLATED;
+        fragment[length] = (byte) message.mType;
+        fragment[length + 1] = (byte) flags;
+        return fragment;
+    }
+
+    /**
+     * Give a fragment's buffer back. The pool is only made once a message
+     * needs more than one fragment; a last one is never from it.
+     */
+    private void releaseFragment(byte[] fragment) {
+        if (mFragmentPool != null) mFragmentPool.release(fragment);
+    }
+
+    /**
+     * Numbers more frames when the writer runs out of them. Called on the
+     * writer thread.
+     */
+    private final Runnable mIdleListener = new Runnable() {
+        @Override
+        public void run() {
+            // A send into an empty lane pumps by itself
+            if (mQueued == 0) return;
+            boolean moved;
+            synchronized (Session.this) {
+                moved = pump();
+            }
+            if (moved) notifyWritable();
+        }
+    };
+
+    /**
+     * Count a received frame of a sequenced type. It holds on to its
+     * credit until it is recycled.
+     *
+     * @return false if the frame came in on a connection the session has
+     * left; it must be dropped, the peer will send it again
+     */
+    synchronized boolean onDataReceived(Connection connection, Frame frame) {
+        if (connection != mConnection) return false;
+        mReceived++;
+        mHeld++;
+        frame.setSession(this);
+        if (frame.getType() != Frame.TYPE_FRAGMENT) {
+            connection.getMetrics().onFrameReceived(frame.getLength());
+        }
+        if (mReceived - mLastAckSent >= ACK_EVERY) {
+            sendAck();
+        }
+        return true;
+    }
+
+    /**
+     * A received frame was recycled by its last consumer. Grant its credit
+     * back, in steps like acks.
+     */
+    synchronized void onConsumed() {
+        mHeld--;
+        if (mConnection != null && getCreditLimit() - mLastCreditSent >= ACK_EVERY) {
+            sendAck();
+        }
+    }
+
+    /**
+     * Add a counted {@link Frame#TYPE_FRAGMENT} to the message it belongs
+     * to, and recycle it.
+     *
+     * @return the whole message once its last fragment is in, holding
+     * credit like a received frame, or null
+     */
+    synchronized Frame reassemble(Frame fragment) {
+        try {
+            int length = fragment.getLength() - FRAGMENT_TRAILER_SIZE;
+            if (length < 0) return null;
+            byte[] data = fragment.getData();
+            int type = data[length] & 0xff;
+            int flags = data[length + 1] & 0xff;
+            int lane = ((flags >> FRAGMENT_LANE_SHIFT) & FRAGMENT_LANE_MASK)
+                    % mReassembly.length;
+            Reassembly message = mReassembly[lane];
+            if ((flags & FRAGMENT_FIRST) != 0) {
+                message = new Reassembly(type, (flags & FRAGMENT_DEFLATED) != 0,
+                        Math.max(2 * length, FRAGMENT_SIZE));
+                mReassembly[lane] = message;
+            } else if (message == null) {
+                // The start went to a peer that has since restarted
+                return null;
+            }
+            if (message.mLength + length > MAX_MESSAGE_SIZE) {
+                mReassembly[lane] = null;
+                return null;
+            }
+            message.append(data, length);
+            if ((flags & FRAGMENT_LAST) == 0) return null;
+            mReassembly[lane] = null;
+            Frame frame = Frame.obtain(message.mDeflated ? Frame.TYPE_COMPRESSED : message.mType,
+                    message.mData, message.mLength, null);
+            if (message.mDeflated) {
+                try {
+                    frame = fragment.getConnection().getCompressor().decompress(frame);
+                } catch (IOException e) {
+                    // As for a corrupt compressed frame: drop the link
+                    fragment.getConnection().abort(e);
+                    return null;
+                }
+            }
+            frame.setConnection(fragment.getConnection());
+            frame.setReceivedTime(fragment.getReceivedTime());
+            fragment.getConnection().getMetrics().onFrameReceived(frame.getLength());
+            mHeld++;
+            frame.setSession(this);
+            return frame;
+        } finally {
+            fragment.recycle();
+        }
+    }
+
+    void onAck(Connection connection, Frame frame) {
+        synchronized (this) {
+            if (connection != mConnection || frame.getLength() < 8) return;
+            byte[] data = frame.getData();
+            ackUpTo(getLong(data, 0));
+            mCreditLimit = frame.getLength() >= 16 ? getLong(data, 8) : Long.MAX_VALUE;
+            notifyAll();
+            pump();
+        }
+        reportDelivered();
+        notifyWritable();
+    }
+
+    /**
+     * The peer told us who it is and how much of ours it has. Retransmit
+     * the rest and let new data through.
+     */
+    void onHello(Connection connection, Frame frame) {
+        synchronized (this) {
+            resume(connection, frame);
+        }
+        reportDelivered();
+        notifyWritable();
+    }
+
+    private void notifyWritable() {
+        Runnable listener = mWritableListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void resume(Connection connection, Frame frame) {
+        if (connection != mConnection || frame.getLength() < 24) return;
+        byte[] data = frame.getData();
+        long remoteId = getLong(data, 0);
+        long seenId = getLong(data, 8);
+        long received = getLong(data, 16);
+        int flags = frame.getLength() > 24 ? data[24] & 0xff : 0;
+        long creditLimit = frame.getLength() >= 33 ? getLong(data, 25) : Long.MAX_VALUE;
+
+        if (remoteId != mRemoteId) {
+            // A new peer, or the peer restarted: count its frames afresh
+            mRemoteId = remoteId;
+            mReceived = 0;
+            mLastAckSent = 0;
+            // The hello granted credit in the old count; correct it soon
+            mLastCreditSent = -1;
+            for (int i = 0; i < mReassembly.length; i++) {
+                mReassembly[i] = null;
+            }
+        }
+        if (seenId != mLocalId || !ackUpTo(received)) {
+            // The peer has no record of what we sent: number the frames it
+            // never acknowledged from zero and send them all
+            mAckedSeq = 0;
+            mNextSeq = mUnacked.size();
+        }
+        mCreditLimit = creditLimit;
+        mPeerChannels = (flags & FLAG_CHANNELS) != 0;
+        mPeerFragments = (flags & FLAG_FRAGMENTS) != 0;
+        mPeerHeartbeats = (flags & FLAG_HEARTBEATS) != 0;
+        mDeflate = mCompression && (flags & FLAG_COMPRESSION) != 0;
+        if (mDeflate) {
+            connection.enableCompression();
+        }
+        for (Pending pending : mUnacked) {
+            pending.mConnection = connection;
+            connection.write(pending.mType, pending.mData, pending.mQueuedAt);
+        }
+        mResumed = true;
+        notifyAll();
+        pump();
+    }
+
+    /**
+     * Return how many reconnects have been tried since the last connection,
+     * counting the one about to start.
+     */
+    synchronized int nextReconnectAttempt() {
+        return ++mReconnectAttempts;
+    }
+
+    /**
+     * Run a task on the session's timer, replacing any that is pending.
+     *
+     * @return false if the session has ended
+     */
+    synchronized boolean schedule(Runnable task, long delayMillis) {
+        if (mClosed) return false;
+        cancelTimer();
+        try {
+            mTimer = mScope.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    synchronized void cancelTimer() {
+        if (mTimer != null) {
+            mTimer.cancel(false);
+            mTimer = null;
+        }
+    }
+
+    /**
+     * End the session for good. Messages never acknowledged are failed.
+     */
+    void close(IOException e) {
+        List<Outgoing> failed = new ArrayList<>();
+        Connection connection;
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            mConnection = null;
+            connection = mLastConnection;
+            for (Pending pending : mUnacked) {
+                if (pending.mMessage != null) failed.add(pending.mMessage);
+            }
+            mUnacked.clear();
+            for (Lane lane : mLanes) {
+                failed.addAll(lane.mQueue);
+                lane.mQueue.clear();
+            }
+            mQueued = 0;
+            notifyAll();
+        }
+        mScope.cancel();
+        for (Outgoing message : failed) {
+            message.fail(connection, e);
+        }
+    }
+
+    private boolean ackUpTo(long count) {
+        if (count < mAckedSeq || count > mNextSeq) return false;
+        while (mAckedSeq < count) {
+            Pending pending = mUnacked.poll();
+            if (pending.mMessage != null) {
+                mLanes[pending.mMessage.mPriority].mOutstanding--;
+            }
+            if (mDelivered == null) mDelivered = new ArrayList<>();
+            mDelivered.add(pending);
+            mAckedSeq++;
+        }
+        return true;
+    }
+
+    /**
+     * Report acknowledged frames as sent. Called without holding the
+     * session lock.
+     */
+    private void reportDelivered() {
+        List<Pending> delivered;
+        synchronized (this) {
+            delivered = mDelivered;
+            mDelivered = null;
+        }
+        if (delivered != null) {
+            for (Pending pending : delivered) {
+                if (pending.mType == Frame.TYPE_FRAGMENT) {
+                    releaseFragment(pending.mData);
+                }
+                if (pending.mMessage != null) {
+                    pending.mMessage.complete(pending.mConnection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the number the peer may number its frames up to: what was
+     * consumed, in the peer's numbering, plus the receive window.
+     */
+    private long getCreditLimit() {
+        return mReceived - mHeld + RECEIVE_WINDOW;
+    }
+
+    private void sendAck() {
+        // One ack in the write queue at a time; a stalled writer must not
+        // fill the queue with them
+        if (mAckQueued) return;
+        long creditLimit = getCreditLimit();
+        byte[] ack = new byte[16];
+        putLong(ack, 0, mReceived);
+        putLong(ack, 8, creditLimit);
+        if (mConnection.write(Frame.TYPE_ACK, ack, mAckCallback)) {
+            mAckQueued = true;
+            mLastAckSent = mReceived;
+            mLastCreditSent = creditLimit;
+        }
+    }
+
+    private final WriteQueue.Callback mAckCallback = new WriteQueue.Callback() {
+        @Override
+        public void onWriteComplete(byte[] data) {
+            synchronized (Session.this) {
+                mAckQueued = false;
+            }
+        }
+
+        @Override
+        public void onWriteFailed(byte[] data, IOException e) {
+            onWriteComplete(data);
+        }
+    };
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    @Override
+    public String toString() {
+        return "Session[" + mAddress + "]";
+    }
+
+    /**
+     * A frame waiting to be acknowledged.
+     */
+    private static class Pending {
+        final int mType;
+        final byte[] mData;
+        // The message, if this is the frame that completes it
+        final Outgoing mMessage;
+        final long mQueuedAt;
+        Connection mConnection;
+
+        Pending(int type, byte[] data, Outgoing message, long queuedAt,
+                Connection connection) {
+            mType = type;
+            mData = data;
+            mMessage = message;
+            mQueuedAt = queuedAt;
+            mConnection = connection;
+        }
+    }
+
+    /**
+     * A message handed to the session, sent whole or in fragments.
+     */
+    private class Outgoing {
+        final int mType;
+        final int mPriority;
+        final byte[] mData;
+        final WriteQueue.Callback mCallback;
+        // When it was handed to the session, for the write latency
+        final long mQueuedAt = System.nanoTime();
+        // What is cut into fragments, once the first one is: the data,
+        // or the data deflated
+        byte[] mPayload;
+        // Bytes of the payload already sent in fragments
+        int mOffset;
+
+        Outgoing(int type, int priority, byte[] data, WriteQueue.Callback callback) {
+            mType = type;
+            mPriority = priority;
+            mData = data;
+            mCallback = callback != null ? callback : NO_CALLBACK;
+        }
+
+        void complete(Connection connection) {
+            connection.getMetrics().onFrameSent(mData.length);
+            mCallback.onWriteComplete(mData);
+            if (isMessage()) {
+                mListener.onFrameSent(connection, mType, mData);
+            }
+        }
+
+        void fail(Connection connection, IOException e) {
+            mCallback.onWriteFailed(mData, e);
+            if (isMessage()) {
+                mListener.onWriteFailed(connection, mData, e);
+            }
+        }
+
+        /**
+         * Return true for what the listener hears about: data frames and
+         * channel messages, not file chunks or channel control.
+         */
+        private boolean isMessage() {
+            return mType == Frame.TYPE_DATA || mType == Frame.TYPE_CHANNEL
+                    && ChannelManager.isMessage(mData, mData.length);
+        }
+    }
+
+    /**
+     * The messages of one priority, in order.
+     */
+    private static class Lane {
+        final ArrayDeque<Outgoing> mQueue = new ArrayDeque<>();
+        final int mPriority;
+        final int mQuantum;
+        // Messages waiting or sent but not acknowledged
+        int mOutstanding;
+        // Bytes the lane may still send this round
+        int mDeficit;
+
+        Lane(int priority, int weight) {
+            mPriority = priority;
+            mQuantum = weight * FRAGMENT_SIZE;
+        }
+    }
+
+    /**
+     * A message coming in fragments.
+     */
+    private static class Reassembly {
+        final int mType;
+        final boolean mDeflated;
+        byte[] mData;
+        int mLength;
+
+        Reassembly(int type, boolean deflated, int capacity) {
+            mType = type;
+            mDeflated = deflated;
+            mData = new byte[capacity];
+        }
+
+        void append(byte[] data, int length) {
+            if (mLength + length > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mLength + length, 2 * mData.length));
+            }
+            System.arraycopy(data, 0, mData, mLength, length);
+            mLength += length;
+        }
+    }
+
+    private static final WriteQueue.Callback NO_CALLBACK = new WriteQueue.Callback() {
+        @Override
+        public void onWriteComplete(byte[] data) {
+        }
+
+        @Override
+        public void onWriteFailed(byte[] data, IOException e) {
+        }
+    };
+}
@@ -0,0 +1,161 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A group of tasks, timers and resources that live and die together, such
+ * as the reader, writer and timers of one connection.
+ *
+ * {@link #cancel()} interrupts every task, cancels every timer and closes
+ * every registered resource. Closing matters because a thread blocked in a
+ * socket read does not react to interrupts; closing the socket is what
+ * makes the read return. Anything started on a scope after it has been
+ * cancelled is rejected, so a stopped connection cannot come back to life
+ * through a late callback.
+ */
+public class TaskScope {
+
+    // Member fields
+    private final IoEngine mEngine;
+    private final String mName;
+    private final List<Future<?>> mFutures = new ArrayList<>();
+    private final List<Closeable> mResources = new ArrayList<>();
+    private boolean mCancelled;
+
+    TaskScope(IoEngine engine, String name) {
+        mEngine = engine;
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Run a blocking task on a worker thread of the engine.
+     *
+     * @param name Appended to the scope name while the task runs, for thread dumps
+     * @param task The task to run
+     * @throws RejectedExecutionException if the scope has been cancelled or
+     *                                    the engine has no thread to spare
+     */
+    public synchronized Future<?> execute(final String name, final Runnable task) {
+        checkNotCancelled();
+        Future<?> future = mEngine.getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                String previous = thread.getName();
+                thread.setName(mName + " " + name);
+                try {
+                    task.run();
+                } finally {
+                    thread.setName(previous);
+                }
+            }
+        });
+        track(future);
+        return future;
+    }
+
+    /**
+     * Run a short task once after a delay on the engine's timer thread.
+     *
+     * @throws RejectedExecutionException if the scope has been cancelled
+     */
+    public synchronized ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        checkNotCancelled();
+        ScheduledFuture<?> future = mEngine.getTimer().schedule(task, delay, unit);
+        track(future);
+        return future;
+    }
+
+    /**
+     * Run a short task repeatedly on the engine's timer thread until the
+     * scope is cancelled.
+     *
+     * @throws RejectedExecutionException if the scope has been cancelled
+     */
+    public synchronized ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay,
+                                                               long period, TimeUnit unit) {
+        checkNotCancelled();
+        ScheduledFuture<?> future = mEngine.getTimer().scheduleAtFixedRate(task, initialDelay,
+                period, unit);
+        track(future);
+        return future;
+    }
+
+    /**
+     * Close a resource when the scope is cancelled. If the scope already
+     * is cancelled the resource is closed right away.
+     */
+    public void add(Closeable resource) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mResources.add(resource);
+                return;
+            }
+        }
+        closeQuietly(resource);
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Stop everything in the scope. Safe to call more than once and from
+     * any thread, including one of the scope's own tasks.
+     */
+    public void cancel() {
+        List<Future<?>> futures;
+        List<Closeable> resources;
+        synchronized (this) {
+            if (mCancelled) return;
+            mCancelled = true;
+            futures = new ArrayList<>(mFutures);
+            resources = new ArrayList<>(mResources);
+            mFutures.clear();
+            mResources.clear();
+        }
+
+        // Close first so blocked reads and writes return, then interrupt
+        for (Closeable resource : resources) {
+            closeQuietly(resource);
+        }
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private void checkNotCancelled() {
+        if (mCancelled) {
+            throw new RejectedExecutionException(mName + " has been cancelled");
+        }
+    }
+
+    private void track(Future<?> future) {
+        // Forget tasks that already finished so long-lived scopes stay small
+        Iterator<Future<?>> it = mFutures.iterator();
+        while (it.hasNext()) {
+            if (it.next().isDone()) it.remove();
+        }
+        mFutures.add(future);
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with it
+        }
+    }
+}
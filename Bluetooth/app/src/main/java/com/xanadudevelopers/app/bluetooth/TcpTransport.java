@@ -0,0 +1,155 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A {@link Transport} over TCP, for running the connection engine between
+ * processes or machines without radios. Addresses are "host:port"; the
+ * secure listener uses that port and the insecure one the port after it.
+ *
+ * TCP_NODELAY is set on every socket so that write batching is left to
+ * {@link WriteQueue}, as it is on RFCOMM.
+ */
+public class TcpTransport implements Transport {
+
+    // Member fields
+    private final String mHost;
+    private final int mPort;
+
+    /**
+     * Constructor.
+     *
+     * @param host The local interface to listen on, e.g. "127.0.0.1"
+     * @param port The port of the secure listener; the insecure one uses port + 1
+     */
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Return the address other endpoints connect to.
+     */
+    public String getAddress() {
+        return mHost + ":" + mPort;
+    }
+
+    @Override
+    public ServerSocketWrapper listen(boolean secure) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mHost, secure ? mPort : mPort + 1));
+        return new TcpServerSocket(serverSocket, secure);
+    }
+
+    @Override
+    public BluetoothSocketWrapper connect(String address, boolean secure, TaskScope scope)
+            throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Not a host:port address: " + address);
+        }
+        String host = address.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a host:port address: " + address);
+        }
+
+        TcpSocket socket = new TcpSocket(new Socket(), address,
+                new InetSocketAddress(host, secure ? port : port + 1), secure);
+        scope.add(socket);
+        socket.connect();
+        return socket;
+    }
+
+    private static class TcpServerSocket implements ServerSocketWrapper {
+        private final ServerSocket mmServerSocket;
+        private final boolean mmSecure;
+
+        TcpServerSocket(ServerSocket serverSocket, boolean secure) {
+            mmServerSocket = serverSocket;
+            mmSecure = secure;
+        }
+
+        @Override
+        public BluetoothSocketWrapper accept() throws IOException {
+            Socket socket = mmServerSocket.accept();
+            socket.setTcpNoDelay(true);
+            InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+            return new TcpSocket(socket,
+                    remote.getAddress().getHostAddress() + ":" + remote.getPort(), null,
+                    mmSecure);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+
+    private static class TcpSocket implements BluetoothSocketWrapper {
+        private final Socket mmSocket;
+        private final String mmRemoteAddress;
+        private final InetSocketAddress mmEndpoint;
+        private final boolean mmSecure;
+
+        /**
+         * @param endpoint Where {@link #connect()} connects to, or null for
+         *                 an accepted socket
+         * @param secure   Whether it is on the secure port; TCP itself is
+         *                 neither authenticated nor encrypted
+         */
+        TcpSocket(Socket socket, String remoteAddress, InetSocketAddress endpoint,
+                  boolean secure) {
+            mmSocket = socket;
+            mmRemoteAddress = remoteAddress;
+            mmEndpoint = endpoint;
+            mmSecure = secure;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteDeviceName() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mmEndpoint != null && !mmSocket.isConnected()) {
+                mmSocket.connect(mmEndpoint);
+                mmSocket.setTcpNoDelay(true);
+            }
+        }
+
+        @Override
+        public String getRemoteDeviceAddress() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public boolean isSecure() {
+            return mmSecure;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
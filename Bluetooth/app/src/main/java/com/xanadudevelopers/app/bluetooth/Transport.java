@@ -0,0 +1,32 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Opens the sockets a {@link ConnectionManager} works with. The manager
+ * only ever talks to devices through this interface, so the same engine
+ * runs over RFCOMM ({@link BluetoothTransport}), in memory
+ * ({@link MemoryTransport}) or over localhost TCP ({@link TcpTransport}).
+ */
+public interface Transport {
+
+    /**
+     * Open a server socket that remote devices can connect to.
+     *
+     * @param secure Whether to listen for authenticated, encrypted links
+     */
+    ServerSocketWrapper listen(boolean secure) throws IOException;
+
+    /**
+     * Open a connection to a remote device. Blocks until connected or failed.
+     *
+     * @param address The address of the remote device
+     * @param secure  Whether to ask for an authenticated, encrypted link
+     * @param scope   Every socket the attempt opens is added to this scope,
+     *                so cancelling it aborts the attempt
+     * @throws InterruptedException if the scope was cancelled while waiting
+     */
+    BluetoothSocketWrapper connect(String address, boolean secure, TaskScope scope)
+            throws IOException, InterruptedException;
+
+}
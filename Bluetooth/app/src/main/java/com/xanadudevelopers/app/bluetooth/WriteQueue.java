@@ -0,0 +1,310 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded queue of outgoing frames drained by a writer task.
+ *
+ * Callers never touch the socket: {@link #send(int, byte[], Callback)}
+ * only enqueues and returns straight away. The writer thread takes the
+ * first pending frame, keeps collecting more until either the batch buffer
+ * of the {@link FrameWriter} is full or the flush delay has passed, and
+ * then hands the whole batch to the socket in one write. Control frames,
+ * those the session does not number, are flushed as soon as they are
+ * batched, since the peer is waiting for them.
+ *
+ * The queue is a {@link Runnable}; run it on a {@link TaskScope} and cancel
+ * the scope to stop the writer.
+ */
+public class WriteQueue implements Runnable {
+
+    /**
+     * Told about the outcome of a single send. Called on the writer thread.
+     */
+    public interface Callback {
+        void onWriteComplete(byte[] data);
+
+        void onWriteFailed(byte[] data, IOException e);
+    }
+
+    // Handed-over time of a frame left out of the latency histogram
+    public static final long UNTIMED = Long.MIN_VALUE;
+
+    // Member fields
+    private final FrameWriter mWriter;
+    private final long mFlushDelayNanos;
+    private final Callback mListener;
+    private final LatencyHistogram mLatency;
+    private final ArrayBlockingQueue<PendingWrite> mQueue;
+    private final ArrayBlockingQueue<PendingWrite> mFree;
+    private final PendingWrite[] mBatch;
+    private final AtomicInteger mQueuedBytes = new AtomicInteger();
+    private volatile FrameCompressor mCompressor;
+    private volatile Runnable mIdleListener;
+    private volatile boolean mClosed;
+
+    /**
+     * Constructor.
+     *
+     * @param writer           The frame writer wrapping the socket stream
+     * @param capacity         The maximum number of frames waiting to be sent
+     * @param flushDelayMillis How long the writer waits for more frames
+     *                         before flushing a partial batch; 0 only
+     *                         batches what is already queued
+     * @param listener         Told about every send after its own callback,
+     *                         or null
+     */
+    public WriteQueue(FrameWriter writer, int capacity, long flushDelayMillis,
+                      Callback listener) {
+        this(writer, capacity, flushDelayMillis, listener, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param writer           The frame writer wrapping the socket stream
+     * @param capacity         The maximum number of frames waiting to be sent
+     * @param flushDelayMillis How long the writer waits for more frames
+     *                         before flushing a partial batch
+     * @param listener         Told about every send after its own callback,
+     *                         or null
+     * @param latency          Records the time from the frame being handed
+     *                         over until it reached the socket, or null
+     */
+    public WriteQueue(FrameWriter writer, int capacity, long flushDelayMillis,
+                      Callback listener, LatencyHistogram latency) {
+        mWriter = writer;
+        mFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(flushDelayMillis);
+        mListener = listener;
+        mLatency = latency;
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mFree = new ArrayBlockingQueue<>(capacity);
+        mBatch = new PendingWrite[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mFree.offer(new PendingWrite());
+        }
+    }
+
+    /**
+     * Queue a frame for sending without blocking.
+     *
+     * @param type     The frame type
+     * @param data     The payload; must not be modified until the callback ran
+     * @param callback Told once the frame was written or failed, or null
+     * @return false if the queue is full or closed, in which case the
+     * callback is not called
+     * @throws IllegalArgumentException if data is larger than a frame may be
+     */
+    public boolean send(int type, byte[] data, Callback callback) {
+        return send(type, data, callback, System.nanoTime());
+    }
+
+    /**
+     * Queue a frame that waited elsewhere before, such as in a session.
+     *
+     * @param queuedAt The {@link System#nanoTime()} the frame was handed
+     *                 over, the start of its write latency, or
+     *                 {@link #UNTIMED} to not record it
+     * @see #send(int, byte[], Callback)
+     */
+    public boolean send(int type, byte[] data, Callback callback, long queuedAt) {
+        if (data.length > mWriter.getMaxFrameSize()) {
+            throw new IllegalArgumentException("Frame of " + data.length
+                    + " bytes exceeds the limit of " + mWriter.getMaxFrameSize());
+        }
+        if (mClosed) return false;
+        PendingWrite pending = mFree.poll();
+        if (pending == null) return false;
+        pending.type = type;
+        pending.data = data;
+        pending.callback = callback;
+        pending.queuedAt = queuedAt;
+        mQueuedBytes.addAndGet(data.length);
+        mQueue.offer(pending);
+
+        // close() may have drained the queue just before we added to it
+        if (mClosed) {
+            failPending(new IOException("Write queue closed"));
+        }
+        return true;
+    }
+
+    /**
+     * Start deflating data frames that are worth it. Frames queued before
+     * are compressed too if they have not been written yet.
+     *
+     * @param compressor The compressor, used on the writer thread only
+     */
+    public void setCompressor(FrameCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * Return the number of frames waiting for the writer thread.
+     */
+    public int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Return the payload bytes waiting for the writer thread.
+     */
+    public int getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    /**
+     * Set a task the writer thread runs whenever it finds the queue empty,
+     * before it waits for more. A producer that keeps the queue short tops
+     * it up from there, so batches still fill.
+     */
+    public void setIdleListener(Runnable listener) {
+        mIdleListener = listener;
+    }
+
+    /**
+     * Stop accepting frames and fail those still queued. A writer blocked
+     * waiting for frames only returns once it is interrupted, which
+     * cancelling its scope does.
+     */
+    public void close() {
+        mClosed = true;
+        failPending(new IOException("Write queue closed"));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mClosed) {
+                int count = 0;
+                mBatch[count++] = take();
+                long deadline = System.nanoTime() + mFlushDelayNanos;
+                IOException error = null;
+                try {
+                    boolean urgent = write(mBatch[0]);
+
+                    // Keep adding frames until the batch buffer is full or
+                    // the flush deadline has passed
+                    while (!urgent && count < mBatch.length
+                            && mWriter.getBufferedSize() < mWriter.getBatchSize()) {
+                        long wait = deadline - System.nanoTime();
+                        PendingWrite next;
+                        try {
+                            next = poll(wait);
+                        } catch (InterruptedException e) {
+                            // Closing; still send what has been batched
+                            break;
+                        }
+                        if (next == null) break;
+                        mBatch[count++] = next;
+                        urgent = write(next);
+                    }
+                    mWriter.flush();
+                } catch (IOException e) {
+                    error = e;
+                }
+                complete(count, error);
+                if (error != null) {
+                    mClosed = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The scope was cancelled
+        }
+        failPending(new IOException("Write queue closed"));
+    }
+
+    private PendingWrite take() throws InterruptedException {
+        PendingWrite pending = mQueue.poll();
+        if (pending == null) {
+            runIdleListener();
+            pending = mQueue.take();
+        }
+        mQueuedBytes.addAndGet(-pending.data.length);
+        return pending;
+    }
+
+    private PendingWrite poll(long waitNanos) throws InterruptedException {
+        PendingWrite pending = mQueue.poll();
+        if (pending == null) {
+            runIdleListener();
+            pending = waitNanos > 0
+                    ? mQueue.poll(waitNanos, TimeUnit.NANOSECONDS)
+                    : mQueue.poll();
+        }
+        if (pending != null) {
+            mQueuedBytes.addAndGet(-pending.data.length);
+        }
+        return pending;
+    }
+
+    private void runIdleListener() {
+        Runnable listener = mIdleListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Batch one frame.
+     *
+     * @return true if it is a control frame that should be flushed now
+     */
+    private boolean write(PendingWrite pending) throws IOException {
+        FrameCompressor compressor = mCompressor;
+        if (compressor != null && pending.type == Frame.TYPE_DATA) {
+            int length = compressor.compress(pending.data, pending.data.length);
+            if (length >= 0) {
+                mWriter.write(Frame.TYPE_COMPRESSED, compressor.getOutput(), 0, length);
+                return false;
+            }
+        }
+        mWriter.write(pending.type, pending.data, 0, pending.data.length);
+        return !Frame.isSequenced(pending.type);
+    }
+
+    private void complete(int count, IOException error) {
+        for (int i = 0; i < count; i++) {
+            finish(mBatch[i], error);
+            mBatch[i] = null;
+        }
+    }
+
+    private void failPending(IOException error) {
+        PendingWrite pending;
+        while ((pending = mQueue.poll()) != null) {
+            mQueuedBytes.addAndGet(-pending.data.length);
+            finish(pending, error);
+        }
+    }
+
+    private void finish(PendingWrite pending, IOException error) {
+        byte[] data = pending.data;
+        Callback callback = pending.callback;
+        long queuedAt = pending.queuedAt;
+        pending.data = null;
+        pending.callback = null;
+        mFree.offer(pending);
+
+        if (error == null) {
+            if (mLatency != null && queuedAt != UNTIMED) {
+                mLatency.record(System.nanoTime() - queuedAt);
+            }
+            if (callback != null) callback.onWriteComplete(data);
+            if (mListener != null) mListener.onWriteComplete(data);
+        } else {
+            if (callback != null) callback.onWriteFailed(data, error);
+            if (mListener != null) mListener.onWriteFailed(data, error);
+        }
+    }
+
+    private static class PendingWrite {
+        int type;
+        long queuedAt;
+        byte[] data;
+        Callback callback;
+    }
+}
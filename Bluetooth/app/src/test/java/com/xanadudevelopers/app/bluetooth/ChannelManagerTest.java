@@ -0,0 +1,147 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.xanadudevelopers.app.bluetooth.LoopbackPair.ADDRESS_B;
+import static com.xanadudevelopers.app.bluetooth.LoopbackPair.TIMEOUT_MS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChannelManagerTest {
+
+    private LoopbackPair mPair;
+    private ExecutorService mExecutorA;
+    private ExecutorService mExecutorB;
+    private Events mEventsA;
+    private Events mEventsB;
+    private volatile Channel mAccepted;
+
+    @Before
+    public void setUp() throws Exception {
+        mPair = new LoopbackPair(new MemoryTransport.Network());
+        mExecutorA = Executors.newSingleThreadExecutor();
+        mExecutorB = Executors.newSingleThreadExecutor();
+        mEventsA = new Events();
+        mEventsB = new Events();
+        mPair.mB.setChannelAcceptor(new Channel.Acceptor() {
+            @Override
+            public Channel.Listener onChannelRequested(Channel channel) {
+                mAccepted = channel;
+                return mEventsB;
+            }
+        }, mExecutorB);
+    }
+
+    @After
+    public void tearDown() {
+        mPair.close();
+        mExecutorA.shutdown();
+        mExecutorB.shutdown();
+    }
+
+    @Test(timeout = 20000)
+    public void closeComesAfterQueuedMessages() throws Exception {
+        Channel channel = mPair.mA.openChannel(ADDRESS_B, "ordered", mEventsA, mExecutorA);
+        assertNotNull(channel);
+        int count = 3 * Channel.MAX_QUEUED;
+        send(channel, count);
+        channel.close();
+        assertFalse(channel.isOpen());
+
+        assertEquals("open", mEventsB.take());
+        for (int i = 0; i < count; i++) {
+            assertEquals("message " + i, mEventsB.take());
+        }
+        assertEquals("closed null", mEventsB.take());
+
+        // Our close is only done once the peer answered it
+        assertEquals("open", mEventsA.take());
+        assertEquals("closed null", mEventsA.take());
+    }
+
+    @Test(timeout = 20000)
+    public void peerCloseComesAfterItsMessages() throws Exception {
+        Channel channel = mPair.mA.openChannel(ADDRESS_B, "ordered", mEventsA, mExecutorA);
+        assertNotNull(channel);
+        assertEquals("open", mEventsA.take());
+        assertEquals("open", mEventsB.take());
+
+        int count = 3 * Channel.MAX_QUEUED;
+        send(mAccepted, count);
+        mAccepted.close();
+
+        for (int i = 0; i < count; i++) {
+            assertEquals("message " + i, mEventsA.take());
+        }
+        assertEquals("closed null", mEventsA.take());
+        assertEquals("closed null", mEventsB.take());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test(timeout = 20000)
+    public void messageOverTheLimitIsRefused() throws Exception {
+        Channel channel = mPair.mA.openChannel(ADDRESS_B, "large", mEventsA, mExecutorA);
+        assertNotNull(channel);
+        assertEquals("open", mEventsA.take());
+        try {
+            channel.send(new byte[Channel.MAX_MESSAGE_SIZE + 1], null);
+            fail("Accepted a message the peer would drop");
+        } catch (IllegalArgumentException expected) {
+            // Refused up front
+        }
+
+        assertTrue(channel.send(LoopbackPair.message(7, Channel.MAX_MESSAGE_SIZE), null));
+        assertEquals("open", mEventsB.take());
+        assertEquals("message 7", mEventsB.take());
+    }
+
+    private static void send(Channel channel, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        for (int i = 0; i < count; i++) {
+            while (!channel.send(LoopbackPair.message(i, 64), null)) {
+                assertTrue("Send not accepted", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * Writes down what happens on a channel, in order.
+     */
+    private static class Events implements Channel.Listener {
+        final BlockingQueue<String> mmEvents = new LinkedBlockingQueue<>();
+
+        String take() throws InterruptedException {
+            String event = mmEvents.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Nothing happened", event);
+            return event;
+        }
+
+        @Override
+        public void onChannelOpen(Channel channel) {
+            mmEvents.add("open");
+        }
+
+        @Override
+        public void onMessage(Channel channel, Frame frame) {
+            mmEvents.add("message " + LoopbackPair.number(frame.getData()));
+        }
+
+        @Override
+        public void onChannelClosed(Channel channel, IOException e) {
+            mmEvents.add("closed " + e);
+        }
+    }
+}
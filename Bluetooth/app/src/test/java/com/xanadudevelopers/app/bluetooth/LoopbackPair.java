@@ -0,0 +1,136 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two connection managers on a {@link MemoryTransport.Network}, the first
+ * connected to the second, for tests that need a real session between
+ * them.
+ */
+class LoopbackPair {
+
+    static final String ADDRESS_A = "00:00:00:00:00:0A";
+    static final String ADDRESS_B = "00:00:00:00:00:0B";
+
+    static final long TIMEOUT_MS = 5000;
+
+    final MemoryTransport.Network mNetwork;
+    final Recorder mRecorderA = new Recorder();
+    final Recorder mRecorderB = new Recorder();
+    final ConnectionManager mA;
+    final ConnectionManager mB;
+
+    /**
+     * Constructor. Returns once both sides have their connection.
+     */
+    LoopbackPair(MemoryTransport.Network network) throws InterruptedException {
+        mNetwork = network;
+        mA = new ConnectionManager(new MemoryTransport(network, ADDRESS_A, "A"), mRecorderA);
+        mB = new ConnectionManager(new MemoryTransport(network, ADDRESS_B, "B"), mRecorderB);
+        mA.start();
+        mB.start();
+        mA.connect(ADDRESS_B, true);
+        assertTrue("A did not connect",
+                mRecorderA.mmConnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue("B did not connect",
+                mRecorderB.mmConnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    void close() {
+        mA.stop();
+        mB.stop();
+        mA.getEngine().shutdown();
+        mB.getEngine().shutdown();
+    }
+
+    /**
+     * A message of the given size that starts with its number.
+     */
+    static byte[] message(int number, int size) {
+        byte[] data = new byte[size];
+        data[0] = (byte) (number >>> 24);
+        data[1] = (byte) (number >>> 16);
+        data[2] = (byte) (number >>> 8);
+        data[3] = (byte) number;
+        return data;
+    }
+
+    /**
+     * Return the number a message starts with.
+     */
+    static int number(byte[] data) {
+        return ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16)
+                | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+    }
+
+    /**
+     * Keeps what a connection manager tells it. Received data frames are
+     * kept as they are, so they hold on to session credit until the test
+     * recycles them.
+     */
+    static class Recorder implements ConnectionManager.Listener {
+        final BlockingQueue<Frame> mmReceived = new LinkedBlockingQueue<>();
+        final AtomicInteger mmSent = new AtomicInteger();
+        final AtomicInteger mmFailed = new AtomicInteger();
+        final CountDownLatch mmConnected = new CountDownLatch(1);
+
+        /**
+         * Wait for the next data frame.
+         */
+        Frame take() throws InterruptedException {
+            Frame frame = mmReceived.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Nothing received", frame);
+            return frame;
+        }
+
+        @Override
+        public void onStateChanged(int oldState, int newState) {
+        }
+
+        @Override
+        public void onConnected(Connection connection) {
+            mmConnected.countDown();
+        }
+
+        @Override
+        public void onConnectFailed(String address, IOException e) {
+        }
+
+        @Override
+        public void onListenFailed(boolean secure, IOException e) {
+        }
+
+        @Override
+        public void onFrameReceived(Connection connection, Frame frame) {
+            if (frame.getType() == Frame.TYPE_DATA) {
+                mmReceived.add(frame);
+            } else {
+                frame.recycle();
+            }
+        }
+
+        @Override
+        public void onFrameSent(Connection connection, int type, byte[] data) {
+            if (type == Frame.TYPE_DATA) {
+                mmSent.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onWriteFailed(Connection connection, byte[] data, IOException e) {
+            mmFailed.incrementAndGet();
+        }
+
+        @Override
+        public void onConnectionLost(Connection connection, IOException e) {
+        }
+    }
+}
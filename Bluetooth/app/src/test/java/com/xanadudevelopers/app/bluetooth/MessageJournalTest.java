@@ -0,0 +1,134 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageJournalTest {
+
+    private static final String ADDRESS = "00:00:00:00:00:0B";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Connection mConnection;
+
+    @Before
+    public void setUp() throws Exception {
+        mConnection = new Connection(new IdleSocket(), "Secure", new BufferPool(1024, 1),
+                new ConnectionMetrics(ADDRESS), null);
+    }
+
+    @Test
+    public void reopenCutsOffTornRecord() throws Exception {
+        File directory = mFolder.getRoot();
+        MessageJournal journal = new MessageJournal(directory);
+        FrameBatch batch = new FrameBatch();
+        for (int i = 0; i < 10; i++) {
+            batch.add(frame("message " + i), i % 2 == 0);
+        }
+        journal.onFrames(batch);
+        batch.recycle();
+        journal.close();
+
+        // A crash in the middle of writing the last record
+        File[] segments = MessageJournal.listSegments(
+                MessageJournal.peerDirectory(directory, ADDRESS));
+        assertEquals(1, segments.length);
+        RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        journal = new MessageJournal(directory);
+        batch.add(frame("after"), true);
+        journal.onFrames(batch);
+        batch.recycle();
+        journal.close();
+        assertNull(journal.getLastError());
+
+        // The torn record is gone and the next one took its place
+        JournalReader reader = journal.openReader(ADDRESS);
+        try {
+            for (int i = 0; i < 9; i++) {
+                assertTrue(reader.next());
+                assertEquals(i, reader.getSequence());
+                assertEquals(i % 2 == 0, reader.isOutgoing());
+                assertEquals("message " + i, text(reader));
+            }
+            assertTrue(reader.next());
+            assertEquals(9, reader.getSequence());
+            assertTrue(reader.isOutgoing());
+            assertEquals("after", text(reader));
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Frame frame(String text) {
+        byte[] data = text.getBytes(UTF_8);
+        Frame frame = Frame.obtain(Frame.TYPE_DATA, data, data.length, null);
+        frame.setConnection(mConnection);
+        return frame;
+    }
+
+    private static String text(JournalReader reader) {
+        return new String(reader.getData(), 0, reader.getLength(), UTF_8);
+    }
+
+    /**
+     * A socket that is never read from or written to.
+     */
+    private static class IdleSocket implements BluetoothSocketWrapper {
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public String getRemoteDeviceName() {
+            return "B";
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public String getRemoteDeviceAddress() {
+            return ADDRESS;
+        }
+
+        @Override
+        public boolean isSecure() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.xanadudevelopers.app.bluetooth.LoopbackPair.ADDRESS_B;
+import static com.xanadudevelopers.app.bluetooth.LoopbackPair.TIMEOUT_MS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionTest {
+
+    // Small pipes, so the writer cannot run far ahead of the link
+    private static final int PIPE_CAPACITY = 4096;
+
+    private LoopbackPair mPair;
+
+    @After
+    public void tearDown() {
+        if (mPair != null) {
+            mPair.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void fragmentsOfEachLaneAreReassembled() throws Exception {
+        mPair = new LoopbackPair(new MemoryTransport.Network(PIPE_CAPACITY, 256 * 1024));
+        Random random = new Random(1);
+        byte[] bulk = new byte[32 * Session.FRAGMENT_SIZE + 100];
+        byte[] interactive = new byte[4 * Session.FRAGMENT_SIZE + 7];
+        random.nextBytes(bulk);
+        random.nextBytes(interactive);
+
+        assertTrue(mPair.mA.write(ADDRESS_B, bulk, Session.PRIORITY_BULK, null));
+        assertTrue(mPair.mA.write(ADDRESS_B, interactive, Session.PRIORITY_INTERACTIVE, null));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mPair.mA.write(ADDRESS_B, LoopbackPair.message(i, 16), null));
+        }
+
+        // The interactive lane overtakes the bulk message cut up before it
+        List<byte[]> received = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            Frame frame = mPair.mRecorderB.take();
+            received.add(Arrays.copyOf(frame.getData(), frame.getLength()));
+            frame.recycle();
+        }
+        assertArrayEquals(interactive, received.get(0));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(16, received.get(i + 1).length);
+            assertEquals(i, LoopbackPair.number(received.get(i + 1)));
+        }
+        assertArrayEquals(bulk, received.get(11));
+    }
+
+    @Test(timeout = 20000)
+    public void messageOverTheLimitIsRefused() throws Exception {
+        mPair = new LoopbackPair(new MemoryTransport.Network());
+        try {
+            mPair.mA.write(ADDRESS_B, new byte[200 * 1024], null);
+            fail("Accepted a message the peer would drop");
+        } catch (IllegalArgumentException expected) {
+            // Refused up front
+        }
+
+        // The largest message there may be still arrives whole
+        byte[] largest = new byte[Session.MAX_MESSAGE_SIZE];
+        new Random(2).nextBytes(largest);
+        assertTrue(mPair.mA.write(ADDRESS_B, largest, Session.PRIORITY_BULK, null));
+        Frame frame = mPair.mRecorderB.take();
+        assertArrayEquals(largest, Arrays.copyOf(frame.getData(), frame.getLength()));
+        frame.recycle();
+    }
+
+    @Test(timeout = 20000)
+    public void resumeRetransmitsUnackedFrames() throws Exception {
+        mPair = new LoopbackPair(new MemoryTransport.Network(PIPE_CAPACITY, 64 * 1024));
+        Session session = mPair.mA.getSession(ADDRESS_B);
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            assertTrue(mPair.mA.write(ADDRESS_B, LoopbackPair.message(i, 100), null));
+        }
+        // The link is slow enough that most of them are still in flight
+        assertTrue(session.getUnackedCount() > 0);
+        mPair.mNetwork.dropConnections();
+
+        for (int i = 0; i < count; i++) {
+            Frame frame = mPair.mRecorderB.take();
+            assertEquals(i, LoopbackPair.number(frame.getData()));
+            frame.recycle();
+        }
+        // Exactly once: nothing the peer already had comes again
+        assertNull(mPair.mRecorderB.mmReceived.poll(200, TimeUnit.MILLISECONDS));
+
+        assertSame(session, mPair.mA.getSession(ADDRESS_B));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mPair.mRecorderA.mmSent.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mPair.mRecorderA.mmSent.get());
+        assertEquals(0, mPair.mRecorderA.mmFailed.get());
+    }
+
+    @Test(timeout = 20000)
+    public void creditStallsUntilFramesAreRecycled() throws Exception {
+        mPair = new LoopbackPair(new MemoryTransport.Network());
+        Session session = mPair.mA.getSession(ADDRESS_B);
+        int extra = 50;
+        int count = Session.RECEIVE_WINDOW + extra;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        for (int i = 0; i < count; i++) {
+            while (!mPair.mA.write(ADDRESS_B, LoopbackPair.message(i, 32), null)) {
+                assertTrue("Write not accepted", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+
+        // The receiver holds on to a window of frames and grants no more
+        List<Frame> held = new ArrayList<>();
+        for (int i = 0; i < Session.RECEIVE_WINDOW; i++) {
+            Frame frame = mPair.mRecorderB.take();
+            assertEquals(i, LoopbackPair.number(frame.getData()));
+            held.add(frame);
+        }
+        assertNull(mPair.mRecorderB.mmReceived.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, session.getSendCredit());
+        assertEquals(extra, session.getUnackedCount());
+
+        // Consuming them gives the credit back
+        for (Frame frame : held) {
+            frame.recycle();
+        }
+        for (int i = Session.RECEIVE_WINDOW; i < count; i++) {
+            Frame frame = mPair.mRecorderB.take();
+            assertEquals(i, LoopbackPair.number(frame.getData()));
+            frame.recycle();
+        }
+        deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (session.getUnackedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, session.getUnackedCount());
+    }
+}
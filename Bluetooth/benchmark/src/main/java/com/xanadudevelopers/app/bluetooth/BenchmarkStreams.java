@@ -0,0 +1,103 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stand-ins for socket streams that neither block nor run dry, so the
+ * benchmarks measure the data path rather than the transport.
+ */
+final class BenchmarkStreams {
+
+    private BenchmarkStreams() {
+    }
+
+    /**
+     * Return count frames of payloadSize bytes each, encoded back to back.
+     */
+    static byte[] encodeFrames(int payloadSize, int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out, FrameCodec.DEFAULT_MAX_FRAME_SIZE, 4096);
+        byte[] payload = payload(payloadSize);
+        for (int i = 0; i < count; i++) {
+            writer.write(Frame.TYPE_DATA, payload, 0, payload.length);
+        }
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Return a printable ASCII payload of the given size.
+     */
+    static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        return payload;
+    }
+
+    /**
+     * Replays the same bytes forever, handing out at most maxRead bytes per
+     * call the way a socket hands out whatever has arrived so far.
+     */
+    static class LoopingInputStream extends InputStream {
+        private final byte[] mData;
+        private final int mMaxRead;
+        private int mPos;
+
+        LoopingInputStream(byte[] data, int maxRead) {
+            mData = data;
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public int read() {
+            int b = mData[mPos] & 0xff;
+            mPos = (mPos + 1) % mData.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(Math.min(len, mMaxRead), mData.length - mPos);
+            System.arraycopy(mData, mPos, b, off, n);
+            mPos = (mPos + n) % mData.length;
+            return n;
+        }
+    }
+
+    /**
+     * Discards everything, burning a fixed amount of CPU per write call to
+     * model the cost of a system call and a radio packet.
+     */
+    static class SinkOutputStream extends OutputStream {
+        private final long mWriteCost;
+        private long mWrites;
+
+        SinkOutputStream(long writeCost) {
+            mWriteCost = writeCost;
+        }
+
+        long getWrites() {
+            return mWrites;
+        }
+
+        @Override
+        public void write(int b) {
+            write(null, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mWrites++;
+            if (mWriteCost > 0) {
+                Blackhole.consumeCPU(mWriteCost);
+            }
+        }
+    }
+}
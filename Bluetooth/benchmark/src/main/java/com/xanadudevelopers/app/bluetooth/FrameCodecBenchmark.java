@@ -0,0 +1,57 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+/**
+ * Cost of putting one frame on the wire and of taking one off it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+
+    @Param({"16", "128", "1024", "8192", "65536"})
+    public int payloadSize;
+
+    private byte[] mPayload;
+    private FrameWriter mWriter;
+    private FrameReader mReader;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPayload = BenchmarkStreams.payload(payloadSize);
+        mWriter = new FrameWriter(new BenchmarkStreams.SinkOutputStream(0),
+                FrameCodec.DEFAULT_MAX_FRAME_SIZE, 4096);
+        mReader = new FrameReader(
+                new BenchmarkStreams.LoopingInputStream(
+                        BenchmarkStreams.encodeFrames(payloadSize, 64), Integer.MAX_VALUE),
+                new BufferPool(1024, 64), FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        mWriter.write(Frame.TYPE_DATA, mPayload, 0, mPayload.length);
+        mWriter.flush();
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        Frame frame = mReader.read();
+        int length = frame.getLength();
+        frame.recycle();
+        return length;
+    }
+}
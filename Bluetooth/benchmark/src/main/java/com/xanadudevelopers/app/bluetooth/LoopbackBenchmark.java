@@ -0,0 +1,510 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end harness: two {@link ConnectionManager} endpoints, the engine
+ * behind BluetoothService, connected over a loopback {@link Transport}. A
+ * stream of messages goes in through write() on one side and comes out of
+ * the frame listener, the MESSAGE_READ path, on the other.
+ *
+ * Every payload carries its send time and sequence number, so one-way
+ * latency is measured per message and loss or reordering is counted.
+ *
+ * <pre>
+ *   ./gradlew :benchmark:loopback -Ploopback='--size 256 --rate 2000 --burst 16'
+ * </pre>
+ *
+ * Options:
+ * <ul>
+ * <li>--transport memory|tcp: stand-in socket, default memory</li>
+ * <li>--size N: payload bytes, at least 12, default 128</li>
+ * <li>--messages N: messages measured, default 200000</li>
+ * <li>--warmup N: messages sent before measuring, default 20000</li>
+ * <li>--rate N: messages per second, 0 for as fast as possible (default)</li>
+ * <li>--burst N: messages sent back to back before pausing to hold the
+ * rate, default 1</li>
+ * <li>--payload zeros|text|random: what fills the payload behind the
+ * header, default zeros; text is repetitive telemetry</li>
+ * <li>--compress true|false: negotiate compression, default false</li>
+ * <li>--bandwidth N: bytes per second each direction of the memory
+ * transport carries, 0 for unlimited (default)</li>
+ * <li>--journal DIR: journal every received frame through a
+ * {@link MessageJournal} in DIR, as the app does; none by default</li>
+ * <li>--out FILE: where the JSON results go</li>
+ * </ul>
+ */
+public class LoopbackBenchmark {
+
+    private static final String SERVER_ADDRESS = "server";
+    private static final String CLIENT_ADDRESS = "client";
+    private static final int TCP_PORT = 47300;
+    private static final int HEADER_SIZE = 12;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    // Options
+    private String mTransport = "memory";
+    private int mSize = 128;
+    private int mMessages = 200000;
+    private int mWarmup = 20000;
+    private int mRate = 0;
+    private int mBurst = 1;
+    private String mPayload = "zeros";
+    private boolean mCompress;
+    private int mBandwidth;
+    private String mJournal;
+    private String mOut = "build/reports/loopback/results.json";
+
+    // Results
+    private long[] mLatencies;
+    private final AtomicInteger mReceived = new AtomicInteger();
+    private final AtomicInteger mErrors = new AtomicInteger();
+    private volatile int mExpectedSeq;
+    private volatile long mFirstReceive;
+    private volatile long mLastReceive;
+    private long mStalls;
+    private ConnectionMetrics.Snapshot mSenderMetrics;
+    private CountDownLatch mDone;
+    private EventBus mEventBus;
+    private long mJournalRecords;
+    private long mJournalBytes;
+
+    public static void main(String[] args) throws Exception {
+        LoopbackBenchmark benchmark = new LoopbackBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--transport":
+                    mTransport = value;
+                    break;
+                case "--size":
+                    mSize = Integer.parseInt(value);
+                    break;
+                case "--messages":
+                    mMessages = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    mWarmup = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    mRate = Integer.parseInt(value);
+                    break;
+                case "--burst":
+                    mBurst = Integer.parseInt(value);
+                    break;
+                case "--payload":
+                    mPayload = value;
+                    break;
+                case "--compress":
+                    mCompress = Boolean.parseBoolean(value);
+                    break;
+                case "--bandwidth":
+                    mBandwidth = Integer.parseInt(value);
+                    break;
+                case "--journal":
+                    mJournal = value;
+                    break;
+                case "--out":
+                    mOut = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+        }
+        if (mSize < HEADER_SIZE || mSize > FrameCodec.DEFAULT_MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("--size must be between " + HEADER_SIZE
+                    + " and " + FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        }
+        if (mBurst < 1) {
+            throw new IllegalArgumentException("--burst must be at least 1");
+        }
+        if (!Arrays.asList("zeros", "text", "random").contains(mPayload)) {
+            throw new IllegalArgumentException("Unknown payload " + mPayload);
+        }
+    }
+
+    private void run() throws Exception {
+        Transport serverTransport;
+        Transport clientTransport;
+        String target;
+        if ("tcp".equals(mTransport)) {
+            serverTransport = new TcpTransport("127.0.0.1", TCP_PORT);
+            clientTransport = new TcpTransport("127.0.0.1", TCP_PORT + 2);
+            target = "127.0.0.1:" + TCP_PORT;
+        } else if ("memory".equals(mTransport)) {
+            MemoryTransport.Network network = new MemoryTransport.Network(
+                    MemoryTransport.DEFAULT_PIPE_CAPACITY, mBandwidth);
+            serverTransport = new MemoryTransport(network, SERVER_ADDRESS, "Server");
+            clientTransport = new MemoryTransport(network, CLIENT_ADDRESS, "Client");
+            target = SERVER_ADDRESS;
+        } else {
+            throw new IllegalArgumentException("Unknown transport " + mTransport);
+        }
+
+        int total = mWarmup + mMessages;
+        mLatencies = new long[mMessages];
+        mDone = new CountDownLatch(1);
+
+        MessageJournal journal = null;
+        ExecutorService journalExecutor = null;
+        if (mJournal != null) {
+            journal = new MessageJournal(new File(mJournal));
+            journalExecutor = Executors.newSingleThreadExecutor();
+            mEventBus = new EventBus();
+            mEventBus.addListener(journal, journalExecutor);
+        }
+
+        Endpoint server = new Endpoint(true);
+        Endpoint client = new Endpoint(false);
+        ConnectionManager serverManager = new ConnectionManager(serverTransport, server);
+        ConnectionManager clientManager = new ConnectionManager(clientTransport, client);
+        serverManager.setCompressionEnabled(mCompress);
+        clientManager.setCompressionEnabled(mCompress);
+        serverManager.start();
+        clientManager.start();
+        clientManager.connect(target, true);
+        if (!client.mConnected.await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IOException("Could not connect over " + mTransport);
+        }
+
+        send(clientManager, target, total);
+        boolean drained = mDone.await(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (drained) {
+            // Let the last acknowledgement arrive, or stopping fails the
+            // frames it covers
+            Session session = clientManager.getSession(target);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (session != null && session.getUnackedCount() > 0
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+
+        mSenderMetrics = clientManager.getMetrics().snapshot().getConnection(target);
+        clientManager.stop();
+        serverManager.stop();
+        clientManager.getEngine().shutdown();
+        serverManager.getEngine().shutdown();
+
+        if (journal != null) {
+            closeJournal(journal, journalExecutor);
+        }
+
+        if (!drained) {
+            mErrors.addAndGet(total - mReceived.get());
+        }
+        report();
+    }
+
+    /**
+     * Send total messages, holding the configured rate and burst size. The
+     * payload arrays are recycled once written, so the sender allocates
+     * nothing in the steady state.
+     */
+    private void send(ConnectionManager manager, String address, int total) {
+        final ArrayBlockingQueue<byte[]> free = new ArrayBlockingQueue<>(1024);
+        Random random = new Random(1);
+        for (int i = 0; i < 1024; i++) {
+            byte[] data = new byte[mSize];
+            if ("text".equals(mPayload)) {
+                fillText(data, random);
+            } else if ("random".equals(mPayload)) {
+                random.nextBytes(data);
+            }
+            free.offer(data);
+        }
+        WriteQueue.Callback recycle = new WriteQueue.Callback() {
+            @Override
+            public void onWriteComplete(byte[] data) {
+                free.offer(data);
+            }
+
+            @Override
+            public void onWriteFailed(byte[] data, IOException e) {
+                mErrors.incrementAndGet();
+                free.offer(data);
+            }
+        };
+
+        long burstInterval = mRate > 0 ? TimeUnit.SECONDS.toNanos(mBurst) / mRate : 0;
+        long nextBurst = System.nanoTime();
+        for (int seq = 0; seq < total; seq++) {
+            if (burstInterval > 0 && seq % mBurst == 0) {
+                long wait;
+                while ((wait = nextBurst - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                nextBurst += burstInterval;
+            }
+
+            byte[] data;
+            while ((data = free.poll()) == null) {
+                mStalls++;
+                Thread.yield();
+            }
+            putInt(data, 8, seq);
+            putLong(data, 0, System.nanoTime());
+            while (!manager.write(address, data, recycle)) {
+                // The write queue is full: wait for the writer to catch up
+                mStalls++;
+                Thread.yield();
+                putLong(data, 0, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Let the journal write what it still has queued, then count what it
+     * holds.
+     */
+    private void closeJournal(final MessageJournal journal, ExecutorService executor)
+            throws Exception {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                journal.close();
+            }
+        });
+        executor.shutdown();
+        executor.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (journal.getLastError() != null) {
+            throw journal.getLastError();
+        }
+        JournalReader reader = journal.openReader(CLIENT_ADDRESS);
+        try {
+            while (reader.next()) {
+                mJournalRecords++;
+                mJournalBytes += reader.getLength();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void received(Frame frame) {
+        long now = System.nanoTime();
+        byte[] data = frame.getData();
+        int seq = getInt(data, 8);
+        long latency = now - getLong(data, 0);
+        if (frame.getLength() != mSize || seq != mExpectedSeq) {
+            mErrors.incrementAndGet();
+        }
+        // Only the receiving reader thread touches these
+        mExpectedSeq = seq + 1;
+        if (seq >= mWarmup && seq - mWarmup < mLatencies.length) {
+            if (seq == mWarmup) mFirstReceive = now;
+            mLatencies[seq - mWarmup] = latency;
+            mLastReceive = now;
+        }
+        if (mReceived.incrementAndGet() == mWarmup + mMessages) {
+            mDone.countDown();
+        }
+    }
+
+    private void report() throws IOException {
+        int measured = Math.max(0, mReceived.get() - mWarmup);
+        long[] latencies = Arrays.copyOf(mLatencies, Math.min(measured, mLatencies.length));
+        Arrays.sort(latencies);
+        double seconds = Math.max(1, mLastReceive - mFirstReceive) / 1e9;
+        double messagesPerSecond = measured / seconds;
+        double megabytesPerSecond = messagesPerSecond * mSize / (1024 * 1024);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"transport\": \"").append(mTransport).append("\",\n");
+        json.append("  \"payloadSize\": ").append(mSize).append(",\n");
+        json.append("  \"messages\": ").append(mMessages).append(",\n");
+        json.append("  \"warmup\": ").append(mWarmup).append(",\n");
+        json.append("  \"rate\": ").append(mRate).append(",\n");
+        json.append("  \"burst\": ").append(mBurst).append(",\n");
+        json.append("  \"payload\": \"").append(mPayload).append("\",\n");
+        json.append("  \"compress\": ").append(mCompress).append(",\n");
+        json.append("  \"bandwidth\": ").append(mBandwidth).append(",\n");
+        json.append("  \"received\": ").append(measured).append(",\n");
+        json.append("  \"errors\": ").append(mErrors.get()).append(",\n");
+        json.append("  \"senderStalls\": ").append(mStalls).append(",\n");
+        json.append("  \"seconds\": ").append(format(seconds)).append(",\n");
+        json.append("  \"messagesPerSecond\": ").append(format(messagesPerSecond)).append(",\n");
+        json.append("  \"megabytesPerSecond\": ").append(format(megabytesPerSecond)).append(",\n");
+        json.append("  \"latencyMicros\": {\n");
+        json.append("    \"p50\": ").append(percentile(latencies, 0.50)).append(",\n");
+        json.append("    \"p99\": ").append(percentile(latencies, 0.99)).append(",\n");
+        json.append("    \"p999\": ").append(percentile(latencies, 0.999)).append(",\n");
+        json.append("    \"max\": ").append(percentile(latencies, 1.0)).append("\n");
+        json.append("  }");
+        if (mSenderMetrics != null) {
+            // Covers the warmup as well
+            json.append(",\n  \"compression\": {\n");
+            json.append("    \"compressedFrames\": ")
+                    .append(mSenderMetrics.getCompressedFrames()).append(",\n");
+            json.append("    \"skippedFrames\": ")
+                    .append(mSenderMetrics.getSkippedFrames()).append(",\n");
+            json.append("    \"ratio\": ")
+                    .append(format(mSenderMetrics.getCompressionRatio())).append(",\n");
+            json.append("    \"compressMillis\": ")
+                    .append(format(mSenderMetrics.getCompressNanos() / 1e6)).append("\n");
+            json.append("  }");
+        }
+        if (mJournal != null) {
+            json.append(",\n  \"journal\": {\n");
+            json.append("    \"records\": ").append(mJournalRecords).append(",\n");
+            json.append("    \"payloadBytes\": ").append(mJournalBytes).append("\n");
+            json.append("  }");
+        }
+        json.append("\n");
+        json.append("}\n");
+
+        System.out.print(json);
+        File file = new File(mOut);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Fill a payload with lines of sensor readings, about as repetitive as
+     * real telemetry.
+     */
+    private static void fillText(byte[] data, Random random) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < data.length) {
+            text.append("t=").append(1000 + random.nextInt(9000))
+                    .append(" temp=").append(20 + random.nextInt(5)).append('.')
+                    .append(random.nextInt(10))
+                    .append(" hum=").append(40 + random.nextInt(20))
+                    .append(" state=OK\n");
+        }
+        byte[] bytes = text.toString().getBytes(Charset.forName("US-ASCII"));
+        System.arraycopy(bytes, 0, data, 0, data.length);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+
+    /**
+     * Return the given percentile of sorted nanosecond latencies, in
+     * microseconds.
+     */
+    private static String percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return "null";
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return format(sorted[Math.max(0, index)] / 1e3);
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        for (int i = 3; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static int getInt(byte[] b, int off) {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * One side of the link. Only the receiving side counts frames.
+     */
+    private class Endpoint implements ConnectionManager.Listener {
+        private final boolean mReceiving;
+        final CountDownLatch mConnected = new CountDownLatch(1);
+
+        Endpoint(boolean receiving) {
+            mReceiving = receiving;
+        }
+
+        @Override
+        public void onStateChanged(int oldState, int newState) {
+        }
+
+        @Override
+        public void onConnected(Connection connection) {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onConnectFailed(String address, IOException e) {
+            System.err.println("Connect to " + address + " failed: " + e);
+        }
+
+        @Override
+        public void onListenFailed(boolean secure, IOException e) {
+            // Only the secure listener is needed
+        }
+
+        @Override
+        public void onFrameReceived(Connection connection, Frame frame) {
+            if (mReceiving) {
+                received(frame);
+                if (mEventBus != null) {
+                    // The bus recycles the frame once the journal has it
+                    mEventBus.postFrame(frame, false);
+                    return;
+                }
+            }
+            frame.recycle();
+        }
+
+        @Override
+        public void onFrameSent(Connection connection, int type, byte[] data) {
+        }
+
+        @Override
+        public void onWriteFailed(Connection connection, byte[] data, IOException e) {
+        }
+
+        @Override
+        public void onConnectionLost(Connection connection, IOException e) {
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * One turn of a connection's read loop: read what arrived and hand it to
+ * the consumer. The Blackhole stands in for the Handler.
+ *
+ * shared reads into one buffer for every message, as the original
+ * ConnectedThread did; copied gives every message a fresh array; pooled
+ * borrows from a {@link BufferPool}; framed runs the {@link FrameReader}
+ * that {@link Connection} uses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadLoopBenchmark {
+
+    @Param({"16", "128", "1024"})
+    public int payloadSize;
+
+    private InputStream mRawIn;
+    private FrameReader mFrameReader;
+    private BufferPool mBufferPool;
+    private byte[] mSharedBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Every read returns exactly one message, as on a quiet link
+        mRawIn = new BenchmarkStreams.LoopingInputStream(
+                BenchmarkStreams.payload(payloadSize * 64), payloadSize);
+        mBufferPool = new BufferPool(1024, 64);
+        mFrameReader = new FrameReader(
+                new BenchmarkStreams.LoopingInputStream(
+                        BenchmarkStreams.encodeFrames(payloadSize, 64), Integer.MAX_VALUE),
+                mBufferPool, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        mSharedBuffer = new byte[1024];
+    }
+
+    @Benchmark
+    public void shared(Blackhole bh) throws IOException {
+        int bytes = mRawIn.read(mSharedBuffer);
+        bh.consume(bytes);
+        bh.consume(mSharedBuffer);
+    }
+
+    @Benchmark
+    public void copied(Blackhole bh) throws IOException {
+        int bytes = mRawIn.read(mSharedBuffer);
+        bh.consume(Arrays.copyOf(mSharedBuffer, bytes));
+    }
+
+    @Benchmark
+    public void pooled(Blackhole bh) throws IOException {
+        byte[] buffer = mBufferPool.acquire();
+        int bytes = mRawIn.read(buffer);
+        bh.consume(bytes);
+        bh.consume(buffer);
+        mBufferPool.release(buffer);
+    }
+
+    @Benchmark
+    public void framed(Blackhole bh) throws IOException {
+        Frame frame = mFrameReader.read();
+        bh.consume(frame);
+        frame.recycle();
+    }
+}
@@ -0,0 +1,68 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Turning a received payload into text, as MainActivity does for every
+ * MESSAGE_READ.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StringDecodeBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"16", "128", "1024"})
+    public int payloadSize;
+
+    private byte[] mPayload;
+    private CharsetDecoder mDecoder;
+    private CharBuffer mChars;
+
+    @Setup
+    public void setUp() {
+        mPayload = BenchmarkStreams.payload(payloadSize);
+        mDecoder = UTF_8.newDecoder();
+        mChars = CharBuffer.allocate(payloadSize);
+    }
+
+    @Benchmark
+    public String defaultCharset() {
+        return new String(mPayload, 0, mPayload.length);
+    }
+
+    @Benchmark
+    public String utf8Charset() {
+        return new String(mPayload, 0, mPayload.length, UTF_8);
+    }
+
+    @Benchmark
+    public CharBuffer reusedDecoder() {
+        mDecoder.reset();
+        mChars.clear();
+        CoderResult result = mDecoder.decode(ByteBuffer.wrap(mPayload), mChars, true);
+        if (result.isError()) {
+            throw new IllegalStateException(result.toString());
+        }
+        mChars.flip();
+        return mChars;
+    }
+}
@@ -0,0 +1,114 @@
+package com.xanadudevelopers.app.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sending a burst of messages. Scores are per message.
+ *
+ * unbatched writes every message to the stream on its own, as the original
+ * BluetoothService.write did; batched gathers the burst in a
+ * {@link FrameWriter}; writeQueue goes through a {@link WriteQueue} and its
+ * writer thread, including the hand-off between threads. writeCost models
+ * what each call into the socket costs beyond copying the bytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBatchingBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({"16", "128", "1024"})
+    public int payloadSize;
+
+    @Param({"0", "1000"})
+    public long writeCost;
+
+    private byte[] mPayload;
+    private BenchmarkStreams.SinkOutputStream mSink;
+    private FrameWriter mWriter;
+    private IoEngine mEngine;
+    private TaskScope mScope;
+    private WriteQueue mWriteQueue;
+    private final AtomicInteger mCompleted = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        mPayload = BenchmarkStreams.payload(payloadSize);
+        mSink = new BenchmarkStreams.SinkOutputStream(writeCost);
+        mWriter = new FrameWriter(mSink, FrameCodec.DEFAULT_MAX_FRAME_SIZE, 4096);
+
+        mEngine = new IoEngine(1);
+        mScope = mEngine.newScope("benchmark");
+        mWriteQueue = new WriteQueue(
+                new FrameWriter(new BenchmarkStreams.SinkOutputStream(writeCost),
+                        FrameCodec.DEFAULT_MAX_FRAME_SIZE, 4096),
+                BURST, 0, new WriteQueue.Callback() {
+                    @Override
+                    public void onWriteComplete(byte[] data) {
+                        mCompleted.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onWriteFailed(byte[] data, IOException e) {
+                        mCompleted.incrementAndGet();
+                    }
+                });
+        mScope.execute("writer", mWriteQueue);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mWriteQueue.close();
+        mScope.cancel();
+        mEngine.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void unbatched() throws IOException {
+        for (int i = 0; i < BURST; i++) {
+            mSink.write(mPayload);
+            mSink.flush();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void batched() throws IOException {
+        for (int i = 0; i < BURST; i++) {
+            mWriter.write(Frame.TYPE_DATA, mPayload, 0, mPayload.length);
+        }
+        mWriter.flush();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void writeQueue() {
+        mCompleted.set(0);
+        for (int i = 0; i < BURST; i++) {
+            if (!mWriteQueue.send(Frame.TYPE_DATA, mPayload, null)) {
+                throw new IllegalStateException("Write queue rejected a frame");
+            }
+        }
+        while (mCompleted.get() < BURST) {
+            Thread.yield();
+        }
+    }
+}